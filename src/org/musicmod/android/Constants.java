@@ -23,9 +23,11 @@ public interface Constants {
 	public final static int LAST = 3;
 	public final static int PLAYBACKSERVICE_STATUS = 1;
 	public final static int SLEEPTIMER_STATUS = 2;
+	public final static int LYRICS_FETCH_STATUS = 3;
 
 	public final static int SHUFFLE_NONE = 0;
 	public final static int SHUFFLE_NORMAL = 1;
+	public final static int SHUFFLE_WEIGHTED = 2;
 
 	public final static int REPEAT_NONE = 0;
 	public final static int REPEAT_CURRENT = 1;
@@ -73,6 +75,9 @@ public interface Constants {
 	public final static int LYRICS_STATUS_NOT_FOUND = 1;
 	public final static int LYRICS_STATUS_INVALID = 2;
 
+	// central lyrics folder on the external storage
+	public final static String LYRICS_FOLDER = "lyrics";
+
 	public final static String PLUGINS_PNAME_PATTERN = "org.musicmod.plugin";
 	public final static String THEMES_PNAME_PATTERN = "org.musicmod.theme";
 
@@ -117,11 +122,20 @@ public interface Constants {
 	public final static String BEHAVIOR_PLAY_PAUSE = "play_pause";
 	public final static String DEFAULT_SHAKING_BEHAVIOR = BEHAVIOR_NEXT_SONG;
 
+	public final static String CROSSFADE_CURVE_LINEAR = "linear";
+	public final static String CROSSFADE_CURVE_EQUAL_POWER = "equal_power";
+	public final static String DEFAULT_CROSSFADE_CURVE = CROSSFADE_CURVE_EQUAL_POWER;
+	// in seconds, 0 disables crossfading
+	public final static String DEFAULT_CROSSFADE_DURATION = "0";
+
 	public final static String LYRICS_CHARSET = "auto";
 	public final static long LYRICS_REFRESH_RATE = 200;
 	public final static long LYRICS_TIMER_DELAY = 50;
 
 	public final static boolean DEFAULT_LYRICS_WAKELOCK = false;
+	public final static boolean DEFAULT_LYRICS_BROADCAST = false;
+	public final static String DEFAULT_FETCH_LYRICS_CONCURRENCY = "2";
+	public final static String DEFAULT_FETCH_LYRICS_RATE = "30";
 	public final static boolean DEFAULT_SPLIT_LYRICS = true;
 	public final static boolean DEFAULT_SKIP_BLANK = true;
 	public final static boolean DEFAULT_DISPLAY_LYRICS = true;
@@ -139,16 +153,24 @@ public interface Constants {
 	public final static String STATE_KEY_SEEKPOS = "seekpos";
 	public final static String STATE_KEY_REPEATMODE = "repeatmode";
 	public final static String STATE_KEY_SHUFFLEMODE = "shufflemode";
+	public final static String STATE_KEY_FETCH_RUNNING = "fetch_running";
+	public final static String STATE_KEY_FETCH_CHECKPOINT = "fetch_checkpoint";
 
 	public final static String PREF_KEY_NUMWEEKS = "numweeks";
 
 	public final static String KEY_RESCAN_MEDIA = "rescan_media";
 	public final static String KEY_LYRICS_WAKELOCK = "lyrics_wakelock";
+	public final static String KEY_LYRICS_BROADCAST = "lyrics_broadcast";
+	public final static String KEY_FETCH_LYRICS = "fetch_lyrics";
+	public final static String KEY_FETCH_LYRICS_CONCURRENCY = "fetch_lyrics_concurrency";
+	public final static String KEY_FETCH_LYRICS_RATE = "fetch_lyrics_rate";
 	public final static String KEY_ALBUMART_SIZE = "albumart_size";
 	public final static String KEY_DISPLAY_LYRICS = "display_lyrics";
 	public final static String KEY_PLUGINS_MANAGER = "plugins_manager";
 	public final static String KEY_ENABLE_SCROBBLING = "enable_scrobbling";
 	public final static String KEY_GENTLE_SLEEPTIMER = "gentle_sleeptimer";
+	public final static String KEY_CROSSFADE_DURATION = "crossfade_duration";
+	public final static String KEY_CROSSFADE_CURVE = "crossfade_curve";
 	public final static String KEY_DISPLAY_VISUALIZER = "display_visualizer";
 	public final static String KEY_VISUALIZER_TYPE = "visualizer_type";
 	public final static String KEY_VISUALIZER_REFRESHRATE = "visualizer_refreshrate";
@@ -187,6 +209,8 @@ public interface Constants {
 	public final static String BROADCAST_KEY_LYRICS_STATUS = "lyrics_status";
 	public final static String BROADCAST_KEY_LYRICS_ID = "lyrics_id";
 	public final static String BROADCAST_KEY_LYRICS = "lyrics";
+	public final static String BROADCAST_KEY_CLOCK = "clock";
+	public final static String BROADCAST_KEY_LYRICS_OFFSET = "lyrics_offset";
 
 	public final static String INTENT_KEY_CONTENT = "content";
 	public final static String INTENT_KEY_ITEMS = "items";
@@ -209,6 +233,8 @@ public interface Constants {
 
 	public final static String INTENT_SEARCH_LYRICS = "org.musicmod.android.SEARCH_LYRICS";
 	public final static String INTENT_SEARCH_ALBUMART = "org.musicmod.android.SEARCH_ALBUMART";
+	public final static String INTENT_FETCH_LYRICS = "org.musicmod.android.FETCH_LYRICS";
+	public final static String INTENT_CANCEL_FETCH_LYRICS = "org.musicmod.android.CANCEL_FETCH_LYRICS";
 	public final static String INTENT_DELETE_ITEMS = "org.musicmod.android.DELETE_ITEMS";
 	public final static String INTENT_CONFIGURE_PLUGIN = "org.musicmod.android.CONFIGURE_PLUGIN";
 	public final static String INTENT_OPEN_PLUGIN = "org.musicmod.android.OPEN_PLUGIN";
@@ -233,6 +259,7 @@ public interface Constants {
 	public final static String BROADCAST_FAVORITESTATE_CHANGED = "org.musicmod.android.favoritestatechanged";
 	public final static String BROADCAST_NEW_LYRICS_LOADED = "org.musicmod.android.newlyricsloaded";
 	public final static String BROADCAST_LYRICS_REFRESHED = "org.musicmod.android.lyricsrefreshed";
+	public final static String BROADCAST_LYRICS_TIMELINE_CHANGED = "org.musicmod.android.lyricstimelinechanged";
 	public final static String BROADCAST_QUEUE_CHANGED = "org.musicmod.android.queuechanged";
 	public final static String BROADCAST_REPEATMODE_CHANGED = "org.musicmod.android.repeatmodechanged";
 	public final static String BROADCAST_SHUFFLEMODE_CHANGED = "org.musicmod.android.shufflemodechanged";
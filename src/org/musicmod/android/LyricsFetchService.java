@@ -0,0 +1,268 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.musicmod.android.util.LyricsDownloader;
+import org.musicmod.android.util.LyricsFetcher;
+import org.musicmod.android.util.LyricsFetcher.Track;
+import org.musicmod.android.util.MusicUtils;
+import org.musicmod.android.util.PreferencesEditor;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.provider.MediaStore;
+
+/**
+ * Fetches lyrics for the whole library in background.
+ *
+ * The job walks the MediaStore audio table in id order. Its checkpoint is
+ * saved as it goes, so when the process is killed the job continues where it
+ * stopped once the system restarts the service.
+ */
+public class LyricsFetchService extends Service implements Constants {
+
+	private final static int JOB_FINISHED = 1;
+	private final static long CHECKPOINT_INTERVAL = 5000;
+	private final static long NOTIFY_INTERVAL = 1000;
+
+	private PreferencesEditor mPrefs;
+	private NotificationManager mNotification;
+	private WakeLock mWakeLock;
+
+	private LyricsFetcher mFetcher;
+	private Thread mThread;
+	private long mLastCheckpoint, mLastNotified;
+
+	@Override
+	public void onCreate() {
+
+		super.onCreate();
+		mPrefs = new PreferencesEditor(this);
+		mNotification = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getClass().getName());
+		mWakeLock.setReferenceCounted(false);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+
+		String action = intent != null ? intent.getAction() : null;
+		if (INTENT_CANCEL_FETCH_LYRICS.equals(action)) {
+			mPrefs.setBooleanState(STATE_KEY_FETCH_RUNNING, false);
+			if (mFetcher != null) {
+				mFetcher.cancel();
+			} else {
+				stopSelf();
+			}
+			return START_NOT_STICKY;
+		}
+		// a null intent means the system restarted us after the process died
+		if (action == null && !mPrefs.getBooleanState(STATE_KEY_FETCH_RUNNING, false)) {
+			stopSelf();
+			return START_NOT_STICKY;
+		}
+		if (mThread == null) {
+			mPrefs.setBooleanState(STATE_KEY_FETCH_RUNNING, true);
+			startJob();
+		}
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+
+		if (mFetcher != null) {
+			saveCheckpoint();
+			mFetcher.cancel();
+		}
+		mWakeLock.release();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+
+		return null;
+	}
+
+	private void startJob() {
+
+		int concurrency = Integer.valueOf(mPrefs.getStringPref(KEY_FETCH_LYRICS_CONCURRENCY,
+				DEFAULT_FETCH_LYRICS_CONCURRENCY));
+		int rate = Integer.valueOf(mPrefs.getStringPref(KEY_FETCH_LYRICS_RATE,
+				DEFAULT_FETCH_LYRICS_RATE));
+		final long checkpoint = mPrefs.getLongState(STATE_KEY_FETCH_CHECKPOINT, 0);
+
+		mFetcher = new LyricsFetcher(new LyricsDownloader(new File(getCacheDir(), "search")),
+				concurrency, rate);
+		mFetcher.setOnProgressListener(mProgressListener);
+		mWakeLock.acquire();
+		updateNotification();
+
+		mThread = new Thread("LyricsFetcher") {
+
+			@Override
+			public void run() {
+
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				boolean finished = mFetcher.run(mMediaStoreSource, checkpoint);
+				mHandler.obtainMessage(JOB_FINISHED, finished ? 1 : 0, 0).sendToTarget();
+			}
+		};
+		mThread.start();
+	}
+
+	private Handler mHandler = new Handler() {
+
+		@Override
+		public void handleMessage(Message msg) {
+
+			switch (msg.what) {
+				case JOB_FINISHED:
+					mNotification.cancel(LYRICS_FETCH_STATUS);
+					if (msg.arg1 != 0) {
+						// start over next time
+						mPrefs.setLongState(STATE_KEY_FETCH_CHECKPOINT, 0);
+						mPrefs.setBooleanState(STATE_KEY_FETCH_RUNNING, false);
+						showFinishedNotification();
+					} else {
+						saveCheckpoint();
+					}
+					mFetcher = null;
+					mThread = null;
+					mWakeLock.release();
+					stopSelf();
+					break;
+			}
+		}
+	};
+
+	private LyricsFetcher.OnProgressListener mProgressListener = new LyricsFetcher.OnProgressListener() {
+
+		@Override
+		public void onProgress(LyricsFetcher fetcher) {
+
+			long now = System.currentTimeMillis();
+			synchronized (LyricsFetchService.this) {
+				if (now - mLastCheckpoint >= CHECKPOINT_INTERVAL) {
+					mLastCheckpoint = now;
+					saveCheckpoint();
+				}
+				if (now - mLastNotified >= NOTIFY_INTERVAL && !fetcher.isCancelled()) {
+					mLastNotified = now;
+					updateNotification();
+				}
+			}
+		}
+	};
+
+	private void saveCheckpoint() {
+
+		LyricsFetcher fetcher = mFetcher;
+		if (fetcher != null) {
+			mPrefs.setLongState(STATE_KEY_FETCH_CHECKPOINT, fetcher.getCheckpoint());
+		}
+	}
+
+	private void updateNotification() {
+
+		LyricsFetcher fetcher = mFetcher;
+		if (fetcher == null) return;
+
+		CharSequence contentTitle = getString(R.string.fetching_lyrics);
+		CharSequence contentText = getString(R.string.notification_fetching_lyrics,
+				fetcher.getFetched(), fetcher.getFailed(), (int) fetcher.getThroughput());
+		PendingIntent contentIntent = PendingIntent.getService(this, 0, new Intent(
+				INTENT_CANCEL_FETCH_LYRICS), 0);
+		Notification notification = new Notification(android.R.drawable.stat_sys_download, null,
+				0);
+		notification.flags = Notification.FLAG_ONGOING_EVENT;
+		notification.setLatestEventInfo(this, contentTitle, contentText, contentIntent);
+		mNotification.notify(LYRICS_FETCH_STATUS, notification);
+	}
+
+	private void showFinishedNotification() {
+
+		CharSequence contentTitle = getString(R.string.fetch_lyrics_finished);
+		CharSequence contentText = getString(R.string.notification_fetch_lyrics_finished,
+				mFetcher.getFetched(), mFetcher.getScanned());
+		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(), 0);
+		Notification notification = new Notification(android.R.drawable.stat_sys_download_done,
+				null, System.currentTimeMillis());
+		notification.flags = Notification.FLAG_AUTO_CANCEL;
+		notification.setLatestEventInfo(this, contentTitle, contentText, contentIntent);
+		mNotification.notify(LYRICS_FETCH_STATUS, notification);
+	}
+
+	private LyricsFetcher.TrackSource mMediaStoreSource = new LyricsFetcher.TrackSource() {
+
+		@Override
+		public List<Track> query(long after, int max) {
+
+			List<Track> tracks = new ArrayList<Track>(max);
+			String[] cols = new String[] { MediaStore.Audio.Media._ID,
+					MediaStore.Audio.Media.DATA, MediaStore.Audio.Media.ARTIST,
+					MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.DURATION };
+			String where = MediaStore.Audio.Media.IS_MUSIC + "=1 AND "
+					+ MediaStore.Audio.Media._ID + ">" + after;
+			Cursor c = MusicUtils.query(LyricsFetchService.this,
+					MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, cols, where, null,
+					MediaStore.Audio.Media._ID, max);
+			if (c == null) return tracks;
+			try {
+				while (c.moveToNext()) {
+					tracks.add(new Track(c.getLong(0), c.getString(1), c.getString(2), c
+							.getString(3), c.getLong(4)));
+				}
+			} finally {
+				c.close();
+			}
+			return tracks;
+		}
+	};
+
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+
+		LyricsFetcher fetcher = mFetcher;
+		if (fetcher != null) {
+			fetcher.dump(writer);
+		} else {
+			writer.println("lyrics fetcher: idle, checkpoint "
+					+ mPrefs.getLongState(STATE_KEY_FETCH_CHECKPOINT, 0));
+		}
+		LyricsDownloader.dump(writer);
+	}
+}
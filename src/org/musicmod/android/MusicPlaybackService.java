@@ -23,8 +23,6 @@ import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -36,10 +34,14 @@ import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
 import android.provider.MediaStore;
@@ -49,22 +51,32 @@ import android.text.format.DateUtils;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.lang.reflect.Method;
 import java.util.Calendar;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Random;
-import java.util.Vector;
 
 import org.musicmod.android.util.EqualizerWrapper;
+import org.musicmod.android.util.FadeScheduler;
+import org.musicmod.android.util.LyricsCache;
+import org.musicmod.android.util.LyricsLocator;
+import org.musicmod.android.util.LyricsOffsetStore;
 import org.musicmod.android.util.LyricsParser;
 import org.musicmod.android.util.MusicUtils;
 import org.musicmod.android.util.ShakeListener;
+import org.musicmod.android.util.ShuffleOrder;
+import org.musicmod.android.util.WeightedShuffle;
 import org.musicmod.android.util.ShakeListener.OnShakeListener;
+import org.musicmod.android.util.PlayQueue;
 import org.musicmod.android.util.PreferencesEditor;
+import org.musicmod.android.util.QueueMetadata;
+import org.musicmod.android.util.QueueStore;
 
 /**
  * Provides "background" audio playback capabilities, allowing the user to
@@ -82,14 +94,36 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	private static final int RELEASE_WAKELOCK = 2;
 	private static final int SERVER_DIED = 3;
 	private static final int FOCUSCHANGE = 4;
-	private static final int FADEDOWN = 5;
-	private static final int FADEUP = 6;
+	private static final int TRACK_WENT_TO_NEXT = 7;
+	private static final int OPEN_COMPLETED = 8;
+	private static final int OPEN_FAILED = 9;
+
+	// how a track that played to its end was followed by the next one
+	private static final int TRANSITION_CHAINED = 0;
+	private static final int TRANSITION_SWAPPED = 1;
+	private static final int TRANSITION_REOPENED = 2;
+	private static final int TRANSITION_CROSSFADED = 3;
+
+	// volume fades across the full range, in milliseconds
+	private static final long FADE_UP_DURATION = 1000;
+	private static final long FADE_DOWN_DURATION = 200;
+	private static final float DUCK_VOLUME = 0.2f;
+	// the gentle sleep timer fades out the end of the last track
+	private static final long SLEEP_FADE_DURATION = 10000;
 
 	private static final int NEW_LYRICS_LOADED = 1;
 	private static final int POSITION_CHANGED = 2;
 	private static final int LYRICS_REFRESHED = 3;
 	private static final int LYRICS_PAUSED = 4;
 	private static final int LYRICS_RESUMED = 5;
+	private static final int LYRICS_LOADED = 6;
+
+	private static final int LOAD_LYRICS = 1;
+	private static final int PREFETCH_LYRICS = 2;
+	private static final int SAVE_LYRICS_OFFSETS = 3;
+
+	// nudges come in bursts, save once they stop
+	private static final long LYRICS_OFFSETS_SAVE_DELAY = 5000;
 
 	private static final int START_SLEEP_TIMER = 1;
 	private static final int STOP_SLEEP_TIMER = 2;
@@ -100,35 +134,44 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	private int mShuffleMode = SHUFFLE_NONE;
 	private int mRepeatMode = REPEAT_NONE;
 	private int mMediaMountedCount = 0;
-	private long[] mPlayList = null;
-	private int mPlayListLen = 0;
-	private Vector<Integer> mHistory = new Vector<Integer>();
-	private Cursor mCursor;
+	private final PlayQueue mPlayQueue = new PlayQueue();
+	private QueueMetadata mQueueMetadata;
+	private QueueStore mQueueStore;
+	// audio id of the current track, -1 if not in the media provider
+	private long mCurrentId = -1;
 	private int mPlayPos = -1;
-	private final Shuffler mShuffler = new Shuffler();
+	// play order in shuffle mode, kept in step with the queue
+	private ShuffleOrder mShuffleOrder = new ShuffleOrder(new Random());
+	private WeightedShuffle mWeightedShuffle;
+	// weighted pick for the next track, kept until the queue or current track
+	// changes so the prepared track and next() agree
+	private int mWeightedNextPos = -1;
+	private long mWeightedNextId = -1;
+	// position of the track prepared on the player to follow the current one
+	private int mNextPlayPos = -1;
+	// BROADCAST_META_CHANGED is held back until the track is prepared
+	private boolean mMetaChangePending = false;
+	// changes notified since the last dispatch, bits of CHANGE_ACTIONS
+	private int mPendingChanges = 0;
+	private int mChangeEvents, mChangeDispatches, mChangeBroadcasts;
+	// the last track ended without a prepared successor
+	private boolean mReopening = false;
 	private int mOpenFailedCounter = 0;
-	private String[] mCursorCols = new String[] { "audio._id AS _id",
-			MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM,
-			MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.DATA,
-			MediaStore.Audio.Media.MIME_TYPE, MediaStore.Audio.Media.ARTIST_ID,
-			MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.IS_PODCAST,
-			MediaStore.Audio.Media.BOOKMARK };
-	private final static int IDCOLIDX = 0;
-	private final static int PODCASTCOLIDX = 8;
-	private final static int BOOKMARKCOLIDX = 9;
 	private BroadcastReceiver mUnmountReceiver = null;
 	private BroadcastReceiver mA2dpReceiver = null;
 	private WakeLock mWakeLock;
 	private int mServiceStartId = -1;
 	private boolean mServiceInUse = false;
 	private boolean mIsSupposedToBePlaying = false;
+	// the saved queue is being restored, failing to open it clears it quietly
 	private boolean mQuietMode = false;
+	private boolean mRestoring = false;
 	private AudioManager mAudioManager;
 	private boolean mQueueIsSaveable = true;
 	// used to track what type of audio focus loss caused the playback to pause
 	private boolean mPausedByTransientLossOfFocus = false;
-	// used to track current volume
-	private float mCurrentVolume = 1.0f;
+	// drives volume fades of the player
+	private FadeScheduler mFadeScheduler;
 
 	private PreferencesEditor mPrefs;
 	// We use this to distinguish between different cards when saving/restoring
@@ -152,6 +195,11 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	private boolean mEqualizerSupported = EqualizerWrapper.isSupported();
 
 	private LyricsParser mLyricsParser = new LyricsParser();
+	private LyricsCache mLyricsCache;
+	private LyricsLocator mLyricsLocator;
+	private LyricsOffsetStore mLyricsOffsets;
+	private LyricsLoader mLyricsLoader;
+	private int mLyricsGeneration = 0;
 	private int mLyricsStatus = 0;
 	private int mLyricsId = -1;
 	private String[] mLyrics = new String[] {};
@@ -170,24 +218,6 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 			MusicUtils.debugLog("mMediaplayerHandler.handleMessage " + msg.what);
 			switch (msg.what) {
-				case FADEDOWN:
-					mCurrentVolume -= 0.05f;
-					if (mCurrentVolume > 0.2f) {
-						mMediaplayerHandler.sendEmptyMessageDelayed(FADEDOWN, 10);
-					} else {
-						mCurrentVolume = 0.2f;
-					}
-					mPlayer.setVolume(mCurrentVolume);
-					break;
-				case FADEUP:
-					mCurrentVolume += 0.01f;
-					if (mCurrentVolume < 1.0f) {
-						mMediaplayerHandler.sendEmptyMessageDelayed(FADEUP, 10);
-					} else {
-						mCurrentVolume = 1.0f;
-					}
-					mPlayer.setVolume(mCurrentVolume);
-					break;
 				case SERVER_DIED:
 					if (mIsSupposedToBePlaying) {
 						next(true);
@@ -204,9 +234,32 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 						seek(0);
 						play();
 					} else {
+						mReopening = true;
 						next(false);
 					}
 					break;
+				case TRACK_WENT_TO_NEXT:
+					wentToNext();
+					break;
+				case OPEN_COMPLETED:
+					mOpenFailedCounter = 0;
+					// the saved queue, if that was it, is restored
+					mQuietMode = false;
+					if (mReopening && isPlaying()) {
+						mPlayer.recordTransition(TRANSITION_REOPENED);
+					}
+					mReopening = false;
+					if (mMetaChangePending) {
+						mMetaChangePending = false;
+						notifyChange(BROADCAST_META_CHANGED);
+					} else {
+						setNextTrack();
+					}
+					break;
+				case OPEN_FAILED:
+					mReopening = false;
+					openFailed();
+					break;
 				case RELEASE_WAKELOCK:
 					mWakeLock.release();
 					break;
@@ -222,8 +275,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 							pause();
 							break;
 						case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-							mMediaplayerHandler.removeMessages(FADEUP);
-							mMediaplayerHandler.sendEmptyMessage(FADEDOWN);
+							mPlayer.fadeVolume(DUCK_VOLUME, FADE_DOWN_DURATION);
 							break;
 						case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
 							Log.v(LOGTAG_SERVICE, "AudioFocus: received AUDIOFOCUS_LOSS_TRANSIENT");
@@ -235,12 +287,10 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 							Log.v(LOGTAG_SERVICE, "AudioFocus: received AUDIOFOCUS_GAIN");
 							if (isPlaying() || mPausedByTransientLossOfFocus) {
 								mPausedByTransientLossOfFocus = false;
-								mCurrentVolume = 0f;
-								mPlayer.setVolume(mCurrentVolume);
-								play(); // also queues a fade-in
+								mPlayer.setVolume(0f);
+								play(); // also starts a fade-in
 							} else {
-								mMediaplayerHandler.removeMessages(FADEDOWN);
-								mMediaplayerHandler.sendEmptyMessage(FADEUP);
+								mPlayer.fadeVolume(1f, FADE_UP_DURATION);
 							}
 							break;
 						default:
@@ -257,7 +307,8 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public void reloadLyrics() {
 
 		mLyricsHandler.removeCallbacksAndMessages(null);
-		mLyricsHandler.sendEmptyMessage(NEW_LYRICS_LOADED);
+		// the file has changed, don't use prefetched lyrics
+		mLyricsHandler.obtainMessage(NEW_LYRICS_LOADED, 1, 0).sendToTarget();
 
 	}
 
@@ -266,63 +317,81 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	 * 
 	 * load lyrics automatically, most accurate and fastest ever.<br>
 	 * Usage: send a empty message {@link #NEW_LYRICS_LOADED} when new song
-	 * played.
+	 * played. Lyrics are read and parsed by {@link LyricsLoader} on its own
+	 * thread, which also prepares lyrics of the upcoming tracks, so in most
+	 * cases they are ready when the track changes.<br>
+	 * Clients follow the lyrics with the timestamp table and a playback clock,
+	 * see {@link #getLyricsTimestamps()}. Per line refresh broadcasts are only
+	 * scheduled when {@link #KEY_LYRICS_BROADCAST} is enabled.
 	 * 
 	 * @author mariotaku
 	 */
 	private Handler mLyricsHandler = new Handler() {
 
-		private List<String> mLyricsList = new ArrayList<String>();
-		private int lyrics_id = 0;
-
 		@Override
 		public void handleMessage(Message msg) {
 
+			if (msg.what == LYRICS_LOADED && msg.arg1 != mLyricsGeneration) {
+				// superseded by another track
+				return;
+			}
 			mLyricsHandler.removeMessages(LYRICS_REFRESHED);
 			switch (msg.what) {
 				case NEW_LYRICS_LOADED:
 					mLyricsId = -1;
-					lyrics_id = 0;
-
-					if (getMediaPath() == null) return;
+					mLyricsGeneration++;
 
 					String media_path = getMediaPath();
-					String lyrics_path = media_path.substring(0, media_path.lastIndexOf("."))
-							+ ".lrc";
-					mLyricsStatus = mLyricsParser.parseLyrics(lyrics_path);
-					mLyricsList = mLyricsParser.getAllLyrics();
-					mLyrics = mLyricsList.toArray(new String[mLyricsList.size()]);
-					notifyLyricsChange(BROADCAST_NEW_LYRICS_LOADED);
-					if (mLyricsStatus == LYRICS_STATUS_OK && isPlaying()) {
-						if (mLyricsParser.getTimestamp(lyrics_id) <= position()) {
-							mLyricsHandler.sendEmptyMessage(LYRICS_REFRESHED);
-						} else {
-							mLyricsHandler.sendEmptyMessageDelayed(LYRICS_REFRESHED,
-									mLyricsParser.getTimestamp(lyrics_id) - position());
-						}
+					if (media_path == null) return;
+
+					long audio_id = getAudioId();
+					LyricsRequest prefetched = msg.arg1 == 0 ? mLyricsLoader.take(audio_id) : null;
+					if (prefetched != null && media_path.equals(prefetched.media_path)) {
+						setLyrics(prefetched);
+					} else {
+						mLyricsParser = new LyricsParser();
+						mLyricsStatus = LYRICS_STATUS_NOT_FOUND;
+						mLyrics = new String[] {};
+						LyricsRequest request = new LyricsRequest(audio_id, media_path,
+								mLyricsGeneration);
+						request.reload = msg.arg1 != 0;
+						mLyricsLoader.obtainMessage(LOAD_LYRICS, request).sendToTarget();
 					}
+					prefetchLyrics();
+					break;
+				case LYRICS_LOADED:
+					setLyrics((LyricsRequest) msg.obj);
 					break;
 				case LYRICS_REFRESHED:
-					if (mLyricsParser == null || mLyricsStatus != LYRICS_STATUS_OK) {
+					if (mLyricsParser == null || mLyricsStatus != LYRICS_STATUS_OK
+							|| !isLyricsBroadcastEnabled()) {
+						return;
+					}
+					long position = position();
+					int lyrics_id = mLyricsParser.advance(position);
+					if (mLyricsParser.getTimestamp(lyrics_id) > position) {
+						// not reached the first line yet
+						scheduleLyricsRefresh(lyrics_id);
 						return;
 					}
-					if (lyrics_id < mLyricsParser.getAllLyrics().size()) {
+					if (lyrics_id != mLyricsId) {
 						mLyricsId = lyrics_id;
-						lyrics_id++;
 						notifyLyricsChange(BROADCAST_LYRICS_REFRESHED);
-						if (isPlaying()) {
-							mLyricsHandler.sendEmptyMessageDelayed(LYRICS_REFRESHED,
-									mLyricsParser.getTimestamp(lyrics_id) - position());
-						}
+					}
+					if (isPlaying() && lyrics_id + 1 < mLyricsParser.getCount()) {
+						scheduleLyricsRefresh(lyrics_id + 1);
 					}
 					break;
 				case POSITION_CHANGED:
 					if (mLyricsParser == null || mLyricsStatus != LYRICS_STATUS_OK) {
 						return;
 					}
-					lyrics_id = mLyricsParser.getId(msg.arg1);
-					mLyricsHandler.sendEmptyMessageDelayed(LYRICS_REFRESHED,
-							mLyricsParser.getTimestamp(lyrics_id) - position());
+					notifyLyricsChange(BROADCAST_LYRICS_TIMELINE_CHANGED);
+					if (isLyricsBroadcastEnabled()) {
+						mLyricsId = mLyricsParser.seek(msg.arg1);
+						notifyLyricsChange(BROADCAST_LYRICS_REFRESHED);
+						scheduleLyricsRefresh(mLyricsId);
+					}
 					break;
 				case LYRICS_PAUSED:
 					if (mLyricsParser == null || mLyricsStatus != LYRICS_STATUS_OK) {
@@ -330,19 +399,177 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 					}
 					break;
 				case LYRICS_RESUMED:
-					if (mLyricsParser == null || mLyricsStatus != LYRICS_STATUS_OK) {
+					if (mLyricsParser == null || mLyricsStatus != LYRICS_STATUS_OK
+							|| !isLyricsBroadcastEnabled()) {
 						return;
 					}
-					if (lyrics_id < mLyricsParser.getAllLyrics().size()) {
-						lyrics_id = mLyricsParser.getId(position());
-						mLyricsHandler.sendEmptyMessageDelayed(LYRICS_REFRESHED,
-								mLyricsParser.getTimestamp(lyrics_id) - position());
-					}
+					scheduleLyricsRefresh(mLyricsParser.seek(position()));
 					break;
 			}
 		}
+
+		private void setLyrics(LyricsRequest request) {
+
+			synchronized (mLyricsOffsets) {
+				// picks up nudges made while the lyrics were loading
+				request.parser.setOffset(mLyricsOffsets.get(request.id));
+				mLyricsParser = request.parser;
+			}
+			mLyricsStatus = request.status;
+			mLyrics = request.lyrics;
+			notifyLyricsChange(BROADCAST_NEW_LYRICS_LOADED);
+			if (mLyricsStatus == LYRICS_STATUS_OK && isPlaying() && isLyricsBroadcastEnabled()) {
+				scheduleLyricsRefresh(mLyricsParser.seek(position()));
+			}
+		}
+
+		private void scheduleLyricsRefresh(int lyrics_id) {
+
+			long delay = mLyricsParser.getTimestamp(lyrics_id) - position();
+			mLyricsHandler.sendEmptyMessageDelayed(LYRICS_REFRESHED, delay > 0 ? delay : 0);
+		}
 	};
 
+	/**
+	 * Asks the lyrics loader to prepare lyrics for the tracks that will be
+	 * played after the current one.
+	 */
+	private void prefetchLyrics() {
+
+		long[] ids;
+		synchronized (this) {
+			int next = getNextPosition(false);
+			if (next < 0 || next == mPlayPos) {
+				ids = new long[] {};
+			} else if (mShuffleMode != SHUFFLE_NONE) {
+				// only the next shuffle pick is prefetched
+				ids = new long[] { mPlayQueue.get(next) };
+			} else {
+				int after = next + 1 < mPlayQueue.size() ? next + 1 : mRepeatMode == REPEAT_ALL ? 0
+						: -1;
+				if (after < 0 || after == mPlayPos || after == next) {
+					ids = new long[] { mPlayQueue.get(next) };
+				} else {
+					ids = new long[] { mPlayQueue.get(next), mPlayQueue.get(after) };
+				}
+			}
+		}
+		mLyricsLoader.removeMessages(PREFETCH_LYRICS);
+		mLyricsLoader.obtainMessage(PREFETCH_LYRICS, ids).sendToTarget();
+	}
+
+	private static class LyricsRequest {
+
+		final long id;
+		final String media_path;
+		final int generation;
+		boolean reload;
+		LyricsParser parser;
+		int status;
+		String[] lyrics;
+
+		LyricsRequest(long id, String media_path, int generation) {
+
+			this.id = id;
+			this.media_path = media_path;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Reads, detects charset of and parses lyrics files on a background
+	 * thread, so none of this blocks the main looper. Lyrics of upcoming tracks
+	 * are kept until the track is played or the upcoming tracks change.
+	 */
+	private class LyricsLoader extends Handler {
+
+		private final HashMap<Long, LyricsRequest> mPrefetched = new HashMap<Long, LyricsRequest>();
+
+		public LyricsLoader(Looper looper) {
+
+			super(looper);
+		}
+
+		public LyricsRequest take(long id) {
+
+			synchronized (mPrefetched) {
+				return mPrefetched.remove(id);
+			}
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+
+			switch (msg.what) {
+				case LOAD_LYRICS:
+					LyricsRequest request = (LyricsRequest) msg.obj;
+					load(request);
+					mLyricsHandler.obtainMessage(LYRICS_LOADED, request.generation, 0, request)
+							.sendToTarget();
+					break;
+				case SAVE_LYRICS_OFFSETS:
+					mLyricsOffsets.save();
+					break;
+				case PREFETCH_LYRICS:
+					long[] ids = (long[]) msg.obj;
+					synchronized (mPrefetched) {
+						Iterator<Long> it = mPrefetched.keySet().iterator();
+						while (it.hasNext()) {
+							long id = it.next();
+							boolean wanted = false;
+							for (long want : ids) {
+								if (want == id) wanted = true;
+							}
+							if (!wanted) it.remove();
+						}
+					}
+					for (long id : ids) {
+						synchronized (mPrefetched) {
+							if (mPrefetched.containsKey(id)) continue;
+						}
+						String media_path = queryMediaPath(id);
+						if (media_path == null) continue;
+						LyricsRequest prefetch = new LyricsRequest(id, media_path, 0);
+						load(prefetch);
+						synchronized (mPrefetched) {
+							mPrefetched.put(id, prefetch);
+						}
+					}
+					break;
+			}
+		}
+
+		private void load(LyricsRequest request) {
+
+			if (request.reload) {
+				mLyricsLocator.rescan(request.media_path);
+			}
+			request.parser = new LyricsParser();
+			request.parser.setOffset(mLyricsOffsets.get(request.id));
+			File lyrics = mLyricsLocator.locate(request.id, request.media_path);
+			if (lyrics != null) {
+				request.status = mLyricsCache.parseLyrics(lyrics, request.parser);
+			} else {
+				request.status = LYRICS_STATUS_NOT_FOUND;
+			}
+			request.lyrics = request.parser.getAllLyrics();
+		}
+
+		private String queryMediaPath(long id) {
+
+			Cursor c = MusicUtils.query(MusicPlaybackService.this,
+					MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+					new String[] { MediaStore.Audio.Media.DATA }, MediaStore.Audio.Media._ID + "="
+							+ id, null, null);
+			if (c == null) return null;
+			try {
+				return c.moveToFirst() ? c.getString(0) : null;
+			} finally {
+				c.close();
+			}
+		}
+	}
+
 	private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
 
 		@Override
@@ -450,9 +677,28 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 		mCardId = MusicUtils.getCardId(this);
 
+		mLyricsCache = new LyricsCache(new File(getCacheDir(), "lyrics"));
+		mQueueMetadata = new QueueMetadata(this, new QueueMetadata.QueueSource() {
+
+			@Override
+			public long[] getQueue() {
+
+				return MusicPlaybackService.this.getQueue();
+			}
+		});
+		mQueueStore = new QueueStore(new File(getFilesDir(), "queue"));
+		mWeightedShuffle = new WeightedShuffle(this, new File(getFilesDir(), "play_stats"));
+		mLyricsLocator = new LyricsLocator(this);
+		mLyricsOffsets = new LyricsOffsetStore(new File(getFilesDir(), "lyrics_offsets"));
+		HandlerThread thread = new HandlerThread("LyricsLoader", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mLyricsLoader = new LyricsLoader(thread.getLooper());
+
 		registerExternalStorageListener();
 		registerA2dpServiceListener();
 
+		mFadeScheduler = new FadeScheduler("FadeScheduler");
+
 		// Needs to be done in this thread, since otherwise
 		// ApplicationContext.getPowerManager() crashes.
 		mPlayer = new MultiPlayer();
@@ -535,6 +781,10 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			Log.e(LOGTAG_SERVICE, "Service being destroyed while still playing.");
 		}
 
+		// send what's still pending while the player is there
+		mChangeHandler.removeCallbacksAndMessages(null);
+		dispatchChanges();
+
 		if (mEqualizer != null) {
 			mEqualizer.setEnabled(false);
 			mEqualizer.release();
@@ -542,6 +792,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 		mPlayer.release();
 		mPlayer = null;
+		mFadeScheduler.quit();
 
 		mAudioManager.abandonAudioFocus(mAudioFocusListener);
 
@@ -551,11 +802,13 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		// make sure there aren't any other messages coming
 		mDelayedStopHandler.removeCallbacksAndMessages(null);
 		mMediaplayerHandler.removeCallbacksAndMessages(null);
+		mLyricsHandler.removeCallbacksAndMessages(null);
+		mLyricsLoader.getLooper().quit();
+		mLyricsOffsets.save();
 
-		if (mCursor != null) {
-			mCursor.close();
-			mCursor = null;
-		}
+		mQueueMetadata.release();
+		mWeightedShuffle.release();
+		mQueueStore.release();
 
 		unregisterReceiver(mIntentReceiver);
 		unregisterReceiver(mA2dpReceiver);
@@ -568,126 +821,118 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		super.onDestroy();
 	}
 
-	private final char hexdigits[] = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-			'a', 'b', 'c', 'd', 'e', 'f' };
-
-	private void saveQueue(boolean full) {
+	private void saveQueue() {
 
 		if (!mQueueIsSaveable) {
 			return;
 		}
 
-		// long start = System.currentTimeMillis();
-		if (full) {
-			StringBuilder q = new StringBuilder();
-
-			// The current playlist is saved as a list of "reverse hexadecimal"
-			// numbers, which we can generate faster than normal decimal or
-			// hexadecimal numbers, which in turn allows us to save the playlist
-			// more often without worrying too much about performance.
-			// (saving the full state takes about 40 ms under no-load conditions
-			// on the phone)
-			int len = mPlayListLen;
-			for (int i = 0; i < len; i++) {
-				long n = mPlayList[i];
-				if (n < 0) {
-					continue;
-				} else if (n == 0) {
-					q.append("0;");
-				} else {
-					while (n != 0) {
-						int digit = (int) (n & 0xf);
-						n >>>= 4;
-						q.append(hexdigits[digit]);
-					}
-					q.append(";");
-				}
-			}
-			// Log.i("@@@@ service", "created queue string in " +
-			// (System.currentTimeMillis() - start) + " ms");
-			mPrefs.setStringState(STATE_KEY_QUEUE, q.toString());
-			mPrefs.setIntState(STATE_KEY_CARDID, mCardId);
-			if (mShuffleMode != SHUFFLE_NONE) {
-				// In shuffle mode we need to save the history too
-				len = mHistory.size();
-				q.setLength(0);
-				for (int i = 0; i < len; i++) {
-					int n = mHistory.get(i);
-					if (n == 0) {
-						q.append("0;");
-					} else {
-						while (n != 0) {
-							int digit = (n & 0xf);
-							n >>>= 4;
-							q.append(hexdigits[digit]);
-						}
-						q.append(";");
-					}
-				}
-				mPrefs.setStringState(STATE_KEY_HISTORY, q.toString());
-			}
-		}
-		mPrefs.setIntState(STATE_KEY_CURRPOS, mPlayPos);
-		if (mPlayer.isInitialized()) {
-			mPrefs.setLongState(STATE_KEY_SEEKPOS, mPlayer.position());
-		}
+		journalQueue();
+		saveState(mPlayer.isInitialized() ? mPlayer.position() : -1, mRepeatMode, mShuffleMode);
+	}
 
-		mPrefs.setIntState(STATE_KEY_REPEATMODE, mRepeatMode);
-		mPrefs.setIntState(STATE_KEY_SHUFFLEMODE, mShuffleMode);
+	/**
+	 * Edits of the queue are journaled as they are made, the whole queue is
+	 * only written when the journal asks for it. The files are written in
+	 * background.
+	 */
+	private void journalQueue() {
 
-		// Log.i("@@@@ service", "saved state in " + (System.currentTimeMillis()
-		// - start) + " ms");
+		if (mQueueStore.needsSnapshot()) {
+			mQueueStore.snapshot(mPlayQueue, mShuffleOrder, mPlayPos, mCardId);
+		} else {
+			mQueueStore.setPosition(mPlayPos);
+		}
 	}
 
-	private void reloadQueue() {
-
-		String q = null;
+	/**
+	 * @param seekpos
+	 *            position in the track, or -1 if there is none.
+	 */
+	private void saveState(long seekpos, int repeatmode, int shufflemode) {
 
-		int id = mCardId;
-		if (getSharedPreferences(SHAREDPREFS_STATES, Context.MODE_PRIVATE).contains(
-				STATE_KEY_CARDID)) {
-			id = mPrefs.getIntState(STATE_KEY_CARDID, mCardId);
-		}
-		if (id == mCardId) {
-			// Only restore the saved playlist if the card is still
-			// the same one as when the playlist was saved
-			q = mPrefs.getStringState(STATE_KEY_QUEUE, "");
+		if (seekpos >= 0) {
+			mPrefs.setLongState(STATE_KEY_SEEKPOS, seekpos);
 		}
+
+		mPrefs.setIntState(STATE_KEY_REPEATMODE, repeatmode);
+		mPrefs.setIntState(STATE_KEY_SHUFFLEMODE, shufflemode);
+	}
+
+	/**
+	 * Reads the queue saved as "reverse hexadecimal" numbers in the shared
+	 * preferences by earlier versions.
+	 * 
+	 * @return the queue, or null if none was saved.
+	 */
+	private QueueStore.Queue loadLegacyQueue() {
+
+		String q = mPrefs.getStringState(STATE_KEY_QUEUE, "");
 		int qlen = q != null ? q.length() : 0;
-		if (qlen > 1) {
-			// Log.i("@@@@ service", "loaded queue: " + q);
-			int plen = 0;
-			int n = 0;
-			int shift = 0;
-			for (int i = 0; i < qlen; i++) {
-				char c = q.charAt(i);
-				if (c == ';') {
-					ensurePlayListCapacity(plen + 1);
-					mPlayList[plen] = n;
-					plen++;
-					n = 0;
-					shift = 0;
+		if (qlen <= 1) {
+			return null;
+		}
+		long[] list = new long[16];
+		int plen = 0;
+		int n = 0;
+		int shift = 0;
+		for (int i = 0; i < qlen; i++) {
+			char c = q.charAt(i);
+			if (c == ';') {
+				if (plen == list.length) {
+					long[] newlist = new long[plen * 2];
+					System.arraycopy(list, 0, newlist, 0, plen);
+					list = newlist;
+				}
+				list[plen] = n;
+				plen++;
+				n = 0;
+				shift = 0;
+			} else {
+				if (c >= '0' && c <= '9') {
+					n += ((c - '0') << shift);
+				} else if (c >= 'a' && c <= 'f') {
+					n += ((10 + c - 'a') << shift);
 				} else {
-					if (c >= '0' && c <= '9') {
-						n += ((c - '0') << shift);
-					} else if (c >= 'a' && c <= 'f') {
-						n += ((10 + c - 'a') << shift);
-					} else {
-						// bogus playlist data
-						plen = 0;
-						break;
-					}
-					shift += 4;
+					// bogus playlist data
+					plen = 0;
+					break;
 				}
+				shift += 4;
 			}
-			mPlayListLen = plen;
+		}
+		return new QueueStore.Queue(list, plen, mPrefs.getIntState(STATE_KEY_CURRPOS, 0),
+				mPrefs.getIntState(STATE_KEY_CARDID, mCardId));
+	}
 
-			int pos = mPrefs.getIntState(STATE_KEY_CURRPOS, 0);
-			if (pos < 0 || pos >= mPlayListLen) {
+	private void reloadQueue() {
+
+		boolean legacy = false;
+		// the current order is kept if the saved queue isn't restored
+		ShuffleOrder order = new ShuffleOrder(new Random());
+		QueueStore.Queue queue = mQueueStore.load(order);
+		if (queue == null) {
+			queue = loadLegacyQueue();
+			legacy = queue != null;
+		}
+		// Only restore the saved playlist if the card is still
+		// the same one as when the playlist was saved
+		if (queue != null && queue.cardId == mCardId && queue.length > 0) {
+			mPlayQueue.set(queue.list, queue.length);
+			mShuffleOrder = order;
+
+			int pos = queue.position;
+			if (pos < 0 || pos >= mPlayQueue.size()) {
 				// The saved playlist is bogus, discard it
-				mPlayListLen = 0;
+				mPlayQueue.clear();
+				mShuffleOrder.reset(0, -1);
+				mQueueStore.invalidate();
 				return;
 			}
+			if (legacy) {
+				// the old play order isn't read, shuffle afresh
+				mShuffleOrder.reset(mPlayQueue.size(), pos);
+			}
 			mPlayPos = pos;
 
 			// When reloadQueue is called in response to a card-insertion,
@@ -696,31 +941,40 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			// that fails, wait a while and try again. If that too fails,
 			// assume there is a problem and don't restore the state.
 			Cursor crsr = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-					new String[] { "_id" }, "_id=" + mPlayList[mPlayPos], null, null);
+					new String[] { "_id" }, "_id=" + mPlayQueue.get(mPlayPos), null, null);
 			if (crsr == null || crsr.getCount() == 0) {
 				// wait a bit and try again
 				SystemClock.sleep(3000);
 				crsr = getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-						mCursorCols, "_id=" + mPlayList[mPlayPos], null, null);
+						new String[] { "_id" }, "_id=" + mPlayQueue.get(mPlayPos), null, null);
 			}
 			if (crsr != null) {
 				crsr.close();
 			}
 
 			mOpenFailedCounter = 20;
+			// quiet until the track is prepared or failed, see OPEN_COMPLETED
+			// and openFailed()
 			mQuietMode = true;
+			mRestoring = true;
 			openCurrent();
-			mQuietMode = false;
-			if (!mPlayer.isInitialized()) {
-				// couldn't restore the saved state
-				mPlayListLen = 0;
+			mRestoring = false;
+			if (mPlayQueue.size() == 0) {
+				// failed right away, cleared by openFailed()
 				return;
 			}
+			if (legacy) {
+				mQueueStore.snapshot(mPlayQueue, mShuffleOrder, mPlayPos, mCardId);
+				mPrefs.setStringState(STATE_KEY_QUEUE, "");
+				mPrefs.setStringState(STATE_KEY_HISTORY, "");
+			}
+			mQueueMetadata.load(mPlayQueue.toArray());
 
 			mLyricsHandler.sendEmptyMessage(NEW_LYRICS_LOADED);
 
 			long seekpos = mPrefs.getLongState(STATE_KEY_SEEKPOS, 0);
-			seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
+			// checked against the duration once prepared
+			seek(seekpos >= 0 ? seekpos : 0);
 			Log.d(LOGTAG_SERVICE, "restored queue, currently at position " + position() + "/"
 					+ duration() + " (requested " + seekpos + ")");
 
@@ -731,47 +985,13 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			mRepeatMode = repmode;
 
 			int shufmode = mPrefs.getIntState(STATE_KEY_SHUFFLEMODE, SHUFFLE_NONE);
-			if (shufmode != SHUFFLE_NORMAL) {
+			if (shufmode != SHUFFLE_NORMAL && shufmode != SHUFFLE_WEIGHTED) {
 				shufmode = SHUFFLE_NONE;
 			}
-			if (shufmode != SHUFFLE_NONE) {
-				// in shuffle mode we need to restore the history too
-				q = mPrefs.getStringState(STATE_KEY_HISTORY, "");
-				qlen = q != null ? q.length() : 0;
-				if (qlen > 1) {
-					plen = 0;
-					n = 0;
-					shift = 0;
-					mHistory.clear();
-					for (int i = 0; i < qlen; i++) {
-						char c = q.charAt(i);
-						if (c == ';') {
-							if (n >= mPlayListLen) {
-								// bogus history data
-								mHistory.clear();
-								break;
-							}
-							if (!mHistory.contains(mPlayPos)) {
-								mHistory.add(mPlayPos);
-							}
-							n = 0;
-							shift = 0;
-						} else {
-							if (c >= '0' && c <= '9') {
-								n += ((c - '0') << shift);
-							} else if (c >= 'a' && c <= 'f') {
-								n += ((10 + c - 'a') << shift);
-							} else {
-								// bogus history data
-								mHistory.clear();
-								break;
-							}
-							shift += 4;
-						}
-					}
-				}
-			}
 			mShuffleMode = shufmode;
+		} else {
+			// edits are not journaled on top of another queue
+			mQueueStore.invalidate();
 		}
 	}
 
@@ -848,7 +1068,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		mServiceInUse = false;
 
 		// Take a snapshot of the current playlist
-		saveQueue(true);
+		saveQueue();
 
 		if (isPlaying() || mPausedByTransientLossOfFocus) {
 			// something is currently playing, or will be playing once
@@ -861,7 +1081,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		// before stopping the service, so that pause/resume isn't slow.
 		// Also delay stopping the service if we're transitioning between
 		// tracks.
-		if (mPlayListLen > 0 || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
+		if (mPlayQueue.size() > 0 || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
 			Message msg = mDelayedStopHandler.obtainMessage();
 			mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
 			return true;
@@ -885,7 +1105,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			// save the queue again, because it might have changed
 			// since the user exited the music app (because of
 			// party-shuffle or because the play-position changed)
-			saveQueue(true);
+			saveQueue();
 			stopSelf(mServiceStartId);
 		}
 	};
@@ -919,22 +1139,26 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 					String action = intent.getAction();
 					if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
-						saveQueue(true);
+						saveQueue();
 						mQueueIsSaveable = false;
 						closeExternalStorageFiles(intent.getData().getPath());
 					} else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
 						mMediaMountedCount++;
 						mCardId = MusicUtils.getCardId(MusicPlaybackService.this);
+						mLyricsLocator.refresh();
 						reloadQueue();
 						mQueueIsSaveable = true;
 						notifyChange(BROADCAST_QUEUE_CHANGED);
 						notifyChange(BROADCAST_META_CHANGED);
+					} else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
+						mLyricsLocator.refresh();
 					}
 				}
 			};
 			IntentFilter iFilter = new IntentFilter();
 			iFilter.addAction(Intent.ACTION_MEDIA_EJECT);
 			iFilter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+			iFilter.addAction(Intent.ACTION_MEDIA_SCANNER_FINISHED);
 			iFilter.addDataScheme("file");
 			registerReceiver(mUnmountReceiver, iFilter);
 		}
@@ -974,67 +1198,181 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	 */
 	private void notifyChange(String what) {
 
-		Intent i = new Intent(what);
-		i.putExtra(BROADCAST_KEY_ID, getAudioId());
-		i.putExtra(BROADCAST_KEY_ARTIST, getArtistName());
-		i.putExtra(BROADCAST_KEY_ALBUM, getAlbumName());
-		i.putExtra(BROADCAST_KEY_TRACK, getTrackName());
-		i.putExtra(BROADCAST_KEY_PLAYING, isPlaying());
-		i.putExtra(BROADCAST_KEY_ISFAVORITE, isFavorite());
-		i.putExtra(BROADCAST_KEY_SONGID, getAudioId());
-		i.putExtra(BROADCAST_KEY_ALBUMID, getAlbumId());
-		i.putExtra(BROADCAST_KEY_DURATION, duration());
-		i.putExtra(BROADCAST_KEY_POSITION, position());
-		if (mPlayList != null)
-			i.putExtra(BROADCAST_KEY_LISTSIZE, Long.valueOf(mPlayList.length));
-		else
-			i.putExtra(BROADCAST_KEY_LISTSIZE, Long.valueOf(mPlayListLen));
-		sendBroadcast(i);
-
-		if (BROADCAST_META_CHANGED.equals(what)) {
-			mLyricsHandler.sendEmptyMessage(NEW_LYRICS_LOADED);
-			if (isPlaying()) {
-				sendScrobbleBroadcast(SCROBBLE_PLAYSTATE_START);
-			} else {
-				sendScrobbleBroadcast(SCROBBLE_PLAYSTATE_COMPLETE);
+		int change = 0;
+		for (int i = 0; i < CHANGE_ACTIONS.length; i++) {
+			if (CHANGE_ACTIONS[i].equals(what)) change = 1 << i;
+		}
+		synchronized (this) {
+			mChangeEvents++;
+			if (mPendingChanges == 0) {
+				mChangeHandler.sendEmptyMessage(0);
 			}
+			mPendingChanges |= change;
+		}
+	}
+
+	/**
+	 * Changes in the order they are broadcast, a track is usually queued
+	 * before it starts.
+	 */
+	private final static String[] CHANGE_ACTIONS = new String[] { BROADCAST_QUEUE_CHANGED,
+			BROADCAST_META_CHANGED, BROADCAST_PLAYSTATE_CHANGED,
+			BROADCAST_SHUFFLEMODE_CHANGED, BROADCAST_REPEATMODE_CHANGED,
+			BROADCAST_FAVORITESTATE_CHANGED, BROADCAST_PLAYSTATUS_RESPONSE };
+	private final static int CHANGE_QUEUE = 1 << 0;
+	private final static int CHANGE_META = 1 << 1;
+	private final static int CHANGE_PLAYSTATE = 1 << 2;
+	private final static int CHANGE_SHUFFLEMODE = 1 << 3;
+	private final static int CHANGE_REPEATMODE = 1 << 4;
+	private final static int CHANGE_FAVORITESTATE = 1 << 5;
+
+	/**
+	 * Collects the changes notified during one turn of the main looper, so
+	 * e.g. enqueue() followed by next() reads the state and updates
+	 * receivers, widgets and the saved queue once.
+	 */
+	private Handler mChangeHandler = new Handler() {
+
+		@Override
+		public void handleMessage(Message msg) {
+
+			dispatchChanges();
 		}
-		if (BROADCAST_PLAYSTATE_CHANGED.equals(what)) {
+	};
+
+	private void dispatchChanges() {
+
+		// the state is read under the lock, receivers, widgets and storage
+		// are updated after it is released
+		int changes;
+		Bundle extras;
+		long id;
+		boolean saveable;
+		long seekpos;
+		int repeatmode, shufflemode;
+		synchronized (this) {
+			changes = mPendingChanges;
+			mPendingChanges = 0;
+			if ((changes & CHANGE_META) != 0 && mPlayer.isPreparing()) {
+				// duration isn't known yet, sent on OPEN_COMPLETED
+				mMetaChangePending = true;
+				changes &= ~CHANGE_META;
+			}
+			if (changes == 0) return;
+			mChangeDispatches++;
+			mChangeBroadcasts += Integer.bitCount(changes);
+
+			// one snapshot of the state for all broadcasts
+			extras = new Bundle();
+			extras.putLong(BROADCAST_KEY_ID, getAudioId());
+			extras.putString(BROADCAST_KEY_ARTIST, getArtistName());
+			extras.putString(BROADCAST_KEY_ALBUM, getAlbumName());
+			extras.putString(BROADCAST_KEY_TRACK, getTrackName());
+			extras.putBoolean(BROADCAST_KEY_PLAYING, isPlaying());
+			extras.putBoolean(BROADCAST_KEY_ISFAVORITE, isFavorite());
+			extras.putLong(BROADCAST_KEY_SONGID, getAudioId());
+			extras.putLong(BROADCAST_KEY_ALBUMID, getAlbumId());
+			extras.putLong(BROADCAST_KEY_DURATION, duration());
+			extras.putLong(BROADCAST_KEY_POSITION, position());
+			extras.putLong(BROADCAST_KEY_LISTSIZE, mPlayQueue.size());
+			id = mCurrentId;
+
+			saveable = mQueueIsSaveable;
+			if (saveable) journalQueue();
+			seekpos = mPlayer.isInitialized() ? mPlayer.position() : -1;
+			repeatmode = mRepeatMode;
+			shufflemode = mShuffleMode;
+
+			int upcoming = CHANGE_QUEUE | CHANGE_META | CHANGE_SHUFFLEMODE | CHANGE_REPEATMODE;
+			if ((changes & upcoming) != 0) {
+				setNextTrack();
+			}
+		}
+
+		for (int i = 0; i < CHANGE_ACTIONS.length; i++) {
+			if ((changes & (1 << i)) == 0) continue;
+			Intent intent = new Intent(CHANGE_ACTIONS[i]);
+			intent.putExtras(extras);
+			sendBroadcast(intent);
+		}
+
+		boolean playing = extras.getBoolean(BROADCAST_KEY_PLAYING);
+		if ((changes & CHANGE_META) != 0) {
+			mLyricsHandler.sendEmptyMessage(NEW_LYRICS_LOADED);
+			if (playing && id >= 0) mWeightedShuffle.played(id);
+			// a new track also covers a play state change
+			sendScrobbleBroadcast(playing ? SCROBBLE_PLAYSTATE_START
+					: SCROBBLE_PLAYSTATE_COMPLETE, extras);
+		} else if ((changes & CHANGE_PLAYSTATE) != 0) {
+			sendScrobbleBroadcast(playing ? SCROBBLE_PLAYSTATE_RESUME
+					: SCROBBLE_PLAYSTATE_PAUSE, extras);
+		}
+		if ((changes & CHANGE_PLAYSTATE) != 0) {
+			notifyLyricsChange(BROADCAST_LYRICS_TIMELINE_CHANGED);
 			notifyLyricsChange(BROADCAST_LYRICS_REFRESHED);
-			if (isPlaying()) {
-				mLyricsHandler.sendEmptyMessage(LYRICS_RESUMED);
-				sendScrobbleBroadcast(SCROBBLE_PLAYSTATE_RESUME);
-			} else {
-				mLyricsHandler.sendEmptyMessage(LYRICS_PAUSED);
-				sendScrobbleBroadcast(SCROBBLE_PLAYSTATE_PAUSE);
-			}
+			mLyricsHandler.sendEmptyMessage(playing ? LYRICS_RESUMED : LYRICS_PAUSED);
 		}
 
-		if (BROADCAST_QUEUE_CHANGED.equals(what)) {
-			saveQueue(true);
-		} else {
-			saveQueue(false);
+		if ((changes & CHANGE_FAVORITESTATE) != 0) {
+			mWeightedShuffle.reloadFavorites();
 		}
 
-		// Share this notification directly with our widgets
-		mAppWidgetProvider4x1.notifyChange(this, what);
-		mAppWidgetProvider4x2.notifyChange(this, what);
+		if (saveable) saveState(seekpos, repeatmode, shufflemode);
+
+		// Share this notification directly with our widgets, both push
+		// the whole state, the 4x1 one only on meta and play state
+		// changes
+		String what = null;
+		if ((changes & CHANGE_META) != 0) {
+			what = BROADCAST_META_CHANGED;
+		} else if ((changes & CHANGE_PLAYSTATE) != 0) {
+			what = BROADCAST_PLAYSTATE_CHANGED;
+		} else if ((changes & CHANGE_REPEATMODE) != 0) {
+			what = BROADCAST_REPEATMODE_CHANGED;
+		} else if ((changes & CHANGE_SHUFFLEMODE) != 0) {
+			what = BROADCAST_SHUFFLEMODE_CHANGED;
+		}
+		if (what != null) {
+			mAppWidgetProvider4x1.notifyChange(this, what);
+			mAppWidgetProvider4x2.notifyChange(this, what);
+		}
 	}
 
 	public void notifyLyricsChange(String action) {
 
 		Intent i = new Intent(action);
 		if (BROADCAST_LYRICS_REFRESHED.equals(action)) {
+			if (!isLyricsBroadcastEnabled()) return;
 			i.putExtra(BROADCAST_KEY_LYRICS_ID, mLyricsId);
 		} else if (BROADCAST_NEW_LYRICS_LOADED.equals(action)) {
 			i.putExtra(BROADCAST_KEY_LYRICS_STATUS, mLyricsStatus);
+			i.putExtra(BROADCAST_KEY_LYRICS_OFFSET, mLyricsParser.getOffset());
+		} else if (BROADCAST_LYRICS_TIMELINE_CHANGED.equals(action)) {
+			i.putExtra(BROADCAST_KEY_LYRICS_OFFSET, mLyricsParser.getOffset());
 		} else {
 			return;
 		}
+		// lets receivers interpolate the position without asking for it
+		i.putExtra(BROADCAST_KEY_POSITION, position());
+		i.putExtra(BROADCAST_KEY_PLAYING, isPlaying());
+		i.putExtra(BROADCAST_KEY_CLOCK, SystemClock.elapsedRealtime());
 		sendBroadcast(i);
 	}
 
-	private void sendScrobbleBroadcast(int state) {
+	/**
+	 * Per line {@link #BROADCAST_LYRICS_REFRESHED} broadcasts are kept for
+	 * receivers that don't use the lyrics timeline.
+	 */
+	private boolean isLyricsBroadcastEnabled() {
+
+		return mPrefs.getBooleanPref(KEY_LYRICS_BROADCAST, DEFAULT_LYRICS_BROADCAST);
+	}
+
+	/**
+	 * @param extras
+	 *            state of the track, as broadcast with the change.
+	 */
+	private void sendScrobbleBroadcast(int state, Bundle extras) {
 
 		mScrobbleEnabled = mPrefs.getBooleanPref(KEY_ENABLE_SCROBBLING, false);
 
@@ -1052,58 +1390,41 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 			i.putExtra(BROADCAST_KEY_STATE, state);
 
-			i.putExtra(BROADCAST_KEY_ARTIST, getArtistName());
-			i.putExtra(BROADCAST_KEY_ALBUM, getAlbumName());
-			i.putExtra(BROADCAST_KEY_TRACK, getTrackName());
-			i.putExtra(BROADCAST_KEY_DURATION, (int) (duration() / 1000));
+			i.putExtra(BROADCAST_KEY_ARTIST, extras.getString(BROADCAST_KEY_ARTIST));
+			i.putExtra(BROADCAST_KEY_ALBUM, extras.getString(BROADCAST_KEY_ALBUM));
+			i.putExtra(BROADCAST_KEY_TRACK, extras.getString(BROADCAST_KEY_TRACK));
+			i.putExtra(BROADCAST_KEY_DURATION,
+					(int) (extras.getLong(BROADCAST_KEY_DURATION) / 1000));
 
 			sendBroadcast(i);
 		}
 
 	}
 
-	private void ensurePlayListCapacity(int size) {
-
-		if (mPlayList == null || size > mPlayList.length) {
-			// reallocate at 2x requested size so we don't
-			// need to grow and copy the array for every
-			// insert
-			long[] newlist = new long[size * 2];
-			int len = mPlayList != null ? mPlayList.length : mPlayListLen;
-			for (int i = 0; i < len; i++) {
-				newlist[i] = mPlayList[i];
-			}
-			mPlayList = newlist;
-		}
-	}
-
 	// insert the list of songs at the specified position in the playlist
 	private void addToPlayList(long[] list, int position) {
 
 		int addlen = list.length;
 		if (position < 0) { // overwrite
-			mPlayListLen = 0;
+			mPlayQueue.clear();
+			mShuffleOrder.reset(0, -1);
+			mQueueStore.invalidate();
 			position = 0;
 		}
-		ensurePlayListCapacity(mPlayListLen + addlen);
-		if (position > mPlayListLen) {
-			position = mPlayListLen;
-		}
-
-		// move part of list after insertion point
-		int tailsize = mPlayListLen - position;
-		for (int i = tailsize; i > 0; i--) {
-			mPlayList[position + i] = mPlayList[position + i - addlen];
+		if (position > mPlayQueue.size()) {
+			position = mPlayQueue.size();
 		}
-
-		// copy list into playlist
-		for (int i = 0; i < addlen; i++) {
-			mPlayList[position + i] = list[i];
+		mPlayQueue.insert(position, list, addlen);
+		mShuffleOrder.insert(position, addlen);
+		mQueueStore.insert(position, list, addlen);
+		if (mPlayQueue.size() == addlen) {
+			// nothing else queued, drops the tracks of the previous queue
+			mQueueMetadata.load(list);
+		} else {
+			mQueueMetadata.add(list);
 		}
-		mPlayListLen += addlen;
-		if (mPlayListLen == 0) {
-			mCursor.close();
-			mCursor = null;
+		if (mPlayQueue.size() == 0) {
+			mCurrentId = -1;
 			notifyChange(BROADCAST_META_CHANGED);
 		}
 	}
@@ -1167,6 +1488,8 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 					if (mGentleSleepTimer) {
 						if (isPlaying()) {
 							mSleepTimerTimedUp = true;
+							// stop at the end of this track
+							setNextTrack();
 						} else {
 							pause();
 							mNotification.cancel(SLEEPTIMER_STATUS);
@@ -1213,16 +1536,16 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public void enqueue(long[] list, int action) {
 
 		synchronized (this) {
-			if (action == NEXT && mPlayPos + 1 < mPlayListLen) {
+			if (action == NEXT && mPlayPos + 1 < mPlayQueue.size()) {
 				addToPlayList(list, mPlayPos + 1);
 				notifyChange(BROADCAST_QUEUE_CHANGED);
 			} else {
 				// action == LAST || action == NOW || mPlayPos + 1 ==
-				// mPlayListLen
+				// mPlayQueue.size()
 				addToPlayList(list, Integer.MAX_VALUE);
 				notifyChange(BROADCAST_QUEUE_CHANGED);
 				if (action == NOW) {
-					mPlayPos = mPlayListLen - list.length;
+					mPlayPos = mPlayQueue.size() - list.length;
 					openCurrent();
 					play();
 					notifyChange(BROADCAST_META_CHANGED);
@@ -1252,11 +1575,11 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			long oldId = getAudioId();
 			int listlength = list.length;
 			boolean newlist = true;
-			if (mPlayListLen == listlength) {
+			if (mPlayQueue.size() == listlength) {
 				// possible fast path: list might be the same
 				newlist = false;
 				for (int i = 0; i < listlength; i++) {
-					if (list[i] != mPlayList[i]) {
+					if (list[i] != mPlayQueue.get(i)) {
 						newlist = true;
 						break;
 					}
@@ -1266,12 +1589,10 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 				addToPlayList(list, -1);
 				notifyChange(BROADCAST_QUEUE_CHANGED);
 			}
-			if (position >= 0) {
-				mPlayPos = position;
-			} else {
-				mPlayPos = mShuffler.shuffle(mPlayListLen);
-			}
-			mHistory.clear();
+			// starts at a random track if no position is given
+			mShuffleOrder.reset(mPlayQueue.size(), position);
+			mQueueStore.invalidate();
+			mPlayPos = mShuffleOrder.current();
 
 			saveBookmarkIfNeeded();
 			openCurrent();
@@ -1290,35 +1611,28 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public void moveQueueItem(int from, int to) {
 
 		synchronized (this) {
-			if (from >= mPlayListLen) {
-				from = mPlayListLen - 1;
+			if (from >= mPlayQueue.size()) {
+				from = mPlayQueue.size() - 1;
 			}
-			if (to >= mPlayListLen) {
-				to = mPlayListLen - 1;
+			if (to >= mPlayQueue.size()) {
+				to = mPlayQueue.size() - 1;
 			}
+			mPlayQueue.move(from, to);
 			if (from < to) {
-				long tmp = mPlayList[from];
-				for (int i = from; i < to; i++) {
-					mPlayList[i] = mPlayList[i + 1];
-				}
-				mPlayList[to] = tmp;
 				if (mPlayPos == from) {
 					mPlayPos = to;
 				} else if (mPlayPos >= from && mPlayPos <= to) {
 					mPlayPos--;
 				}
 			} else if (to < from) {
-				long tmp = mPlayList[from];
-				for (int i = from; i > to; i--) {
-					mPlayList[i] = mPlayList[i - 1];
-				}
-				mPlayList[to] = tmp;
 				if (mPlayPos == from) {
 					mPlayPos = to;
 				} else if (mPlayPos >= to && mPlayPos <= from) {
 					mPlayPos++;
 				}
 			}
+			mShuffleOrder.move(from, to);
+			mQueueStore.move(from, to);
 			notifyChange(BROADCAST_QUEUE_CHANGED);
 		}
 	}
@@ -1373,34 +1687,26 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public long[] getQueue() {
 
 		synchronized (this) {
-			int len = mPlayListLen;
-			long[] list = new long[len];
-			for (int i = 0; i < len; i++) {
-				list[i] = mPlayList[i];
-			}
-			return list;
+			return mPlayQueue.toArray();
 		}
 	}
 
 	private void openCurrent() {
 
 		synchronized (this) {
-			if (mCursor != null) {
-				mCursor.close();
-				mCursor = null;
-			}
+			mCurrentId = -1;
 
-			if (mPlayListLen == 0) {
+			if (mPlayQueue.size() == 0) {
 				return;
 			}
 			stop(false);
+			mShuffleOrder.moveTo(mPlayPos);
 
-			String id = String.valueOf(mPlayList[mPlayPos]);
+			long id = mPlayQueue.get(mPlayPos);
 
-			mCursor = getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-					mCursorCols, "_id=" + id, null, null);
-			if (mCursor != null) {
-				mCursor.moveToFirst();
+			// usually loaded already with the rest of the queue
+			if (mQueueMetadata.require(id)) {
+				mCurrentId = id;
 				open(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + id);
 				// go to bookmark if needed
 				if (isPodcast()) {
@@ -1409,6 +1715,9 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 					// so it's easier to get back in to the narrative.
 					seek(bookmark - 5000);
 				}
+			} else {
+				// removed from the media provider
+				openFailed();
 			}
 		}
 	}
@@ -1425,9 +1734,12 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			if (path == null) {
 				return;
 			}
+			// any other open ends the restore of the saved queue
+			mQuietMode = mRestoring;
 
-			// if mCursor is null, try to associate path with a database cursor
-			if (mCursor == null) {
+			// if the track is unknown, try to associate path with a database
+			// row
+			if (mCurrentId < 0) {
 
 				ContentResolver resolver = getContentResolver();
 				Uri uri;
@@ -1444,41 +1756,58 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 				}
 
 				try {
-					mCursor = resolver.query(uri, mCursorCols, where, selectionArgs, null);
-					if (mCursor != null) {
-						if (mCursor.getCount() == 0) {
-							mCursor.close();
-							mCursor = null;
-						} else {
-							mCursor.moveToNext();
-							ensurePlayListCapacity(1);
-							mPlayListLen = 1;
-							mPlayList[0] = mCursor.getLong(IDCOLIDX);
-							mPlayPos = 0;
-						}
+					long id = mQueueMetadata.require(uri, where, selectionArgs);
+					if (id >= 0) {
+						mCurrentId = id;
+						mPlayQueue.set(new long[] { id }, 1);
+						mPlayPos = 0;
+						mShuffleOrder.reset(1, 0);
+						mQueueStore.invalidate();
+						mQueueMetadata.load(new long[] { id });
 					}
 				} catch (UnsupportedOperationException ex) {
 				}
 			}
 			mFileToPlay = path;
+			// only starts preparing, see OPEN_COMPLETED and OPEN_FAILED
 			mPlayer.setDataSource(mFileToPlay);
-			if (!mPlayer.isInitialized()) {
-				stop(true);
-				if (mOpenFailedCounter++ < 10 && mPlayListLen > 1) {
-					// beware: this ends up being recursive because next() calls
-					// open() again.
-					next(false);
-				}
-				if (!mPlayer.isInitialized() && mOpenFailedCounter != 0) {
-					// need to make sure we only shows this once
-					mOpenFailedCounter = 0;
-					if (!mQuietMode) {
-						Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
-					}
-					Log.d(LOGTAG_SERVICE, "Failed to open file for playback");
-				}
-			} else {
+			if (!mPlayer.isOpened()) {
+				openFailed();
+			}
+		}
+	}
+
+	/**
+	 * Moves on to the next track after the current one couldn't be opened,
+	 * either right away or while it was being prepared.
+	 */
+	private void openFailed() {
+
+		synchronized (this) {
+			mMetaChangePending = false;
+			stop(true);
+			if (mOpenFailedCounter++ < 10 && mPlayQueue.size() > 1) {
+				// beware: this ends up being recursive because next() calls
+				// open() again.
+				next(false);
+			}
+			if (!mPlayer.isOpened() && mOpenFailedCounter != 0) {
+				// need to make sure we only shows this once
 				mOpenFailedCounter = 0;
+				if (!mQuietMode) {
+					Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+				}
+				Log.d(LOGTAG_SERVICE, "Failed to open file for playback");
+			}
+			if (mQuietMode) {
+				// couldn't restore the saved state
+				mQuietMode = false;
+				mPlayQueue.clear();
+				mShuffleOrder.reset(0, -1);
+				mQueueStore.invalidate();
+				mCurrentId = -1;
+				notifyChange(BROADCAST_QUEUE_CHANGED);
+				notifyChange(BROADCAST_META_CHANGED);
 			}
 		}
 	}
@@ -1488,9 +1817,6 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	 */
 	public void play() {
 
-		CharSequence contentTitle, contentText = null;
-		PendingIntent contentIntent;
-
 		TelephonyManager telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
 		if (telephonyManager.getCallState() == TelephonyManager.CALL_STATE_OFFHOOK) {
 			return;
@@ -1503,53 +1829,32 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 		telephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
 
-		if (mPlayer.isInitialized()) {
+		if (mPlayer.isOpened()) {
 			// if we are at the end of the song, go to the next song first
-			long duration = mPlayer.duration();
-			if (mRepeatMode != REPEAT_CURRENT && duration > 2000
-					&& mPlayer.position() >= duration - 2000) {
-				next(true);
+			if (mPlayer.isInitialized()) {
+				long duration = mPlayer.duration();
+				if (mRepeatMode != REPEAT_CURRENT && duration > 2000
+						&& mPlayer.position() >= duration - 2000) {
+					next(true);
+				}
 			}
 
+			// starts once prepared if the track is still being prepared
 			mPlayer.start();
 
 			// make sure we fade in, in case a previous fadein was stopped
 			// because
 			// of another focus loss
-			mMediaplayerHandler.removeMessages(FADEDOWN);
-			mMediaplayerHandler.sendEmptyMessage(FADEUP);
-
-			contentTitle = getTrackName();
-
-			String artist = getArtistName();
-			boolean isUnknownArtist = (artist == null || MediaStore.UNKNOWN_STRING.equals(artist));
-
-			String album = getAlbumName();
-			boolean isUnknownAlbum = (album == null || MediaStore.UNKNOWN_STRING.equals(album));
-
-			if (!isUnknownArtist && !isUnknownAlbum) {
-				contentText = getString(R.string.notification_artist_album, artist, album);
-			} else if (isUnknownArtist && !isUnknownAlbum) {
-				contentText = album;
-			} else if (!isUnknownArtist && isUnknownAlbum) {
-				contentText = artist;
-			}
-
-			contentIntent = PendingIntent.getActivity(this, 0, new Intent(INTENT_PLAYBACK_VIEWER),
-					0);
+			mPlayer.fadeVolume(1f, FADE_UP_DURATION);
 
-			Notification status = new Notification(R.drawable.ic_stat_playback, null, 0);
-			status.flags = Notification.FLAG_ONGOING_EVENT;
-			status.icon = R.drawable.ic_stat_playback;
-			status.setLatestEventInfo(this, contentTitle, contentText, contentIntent);
-			mNotification.notify(PLAYBACKSERVICE_STATUS, status);
+			updatePlaybackNotification();
 
 			if (!mIsSupposedToBePlaying) {
 				mIsSupposedToBePlaying = true;
 				notifyChange(BROADCAST_PLAYSTATE_CHANGED);
 			}
 
-		} else if (mPlayListLen <= 0) {
+		} else if (mPlayQueue.size() <= 0) {
 			// This is mostly so that if you press 'play' on a bluetooth headset
 			// without every having played anything before, it will still play
 			// something.
@@ -1557,16 +1862,44 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		}
 	}
 
+	private void updatePlaybackNotification() {
+
+		CharSequence contentTitle, contentText = null;
+		PendingIntent contentIntent;
+
+		contentTitle = getTrackName();
+
+		String artist = getArtistName();
+		boolean isUnknownArtist = (artist == null || MediaStore.UNKNOWN_STRING.equals(artist));
+
+		String album = getAlbumName();
+		boolean isUnknownAlbum = (album == null || MediaStore.UNKNOWN_STRING.equals(album));
+
+		if (!isUnknownArtist && !isUnknownAlbum) {
+			contentText = getString(R.string.notification_artist_album, artist, album);
+		} else if (isUnknownArtist && !isUnknownAlbum) {
+			contentText = album;
+		} else if (!isUnknownArtist && isUnknownAlbum) {
+			contentText = artist;
+		}
+
+		contentIntent = PendingIntent.getActivity(this, 0, new Intent(INTENT_PLAYBACK_VIEWER), 0);
+
+		Notification status = new Notification(R.drawable.ic_stat_playback, null, 0);
+		status.flags = Notification.FLAG_ONGOING_EVENT;
+		status.icon = R.drawable.ic_stat_playback;
+		status.setLatestEventInfo(this, contentTitle, contentText, contentIntent);
+		mNotification.notify(PLAYBACKSERVICE_STATUS, status);
+	}
+
 	private void stop(boolean remove_status_icon) {
 
-		if (mPlayer.isInitialized()) {
+		if (mPlayer.isOpened()) {
 			mPlayer.stop();
 		}
+		mMetaChangePending = false;
 		mFileToPlay = null;
-		if (mCursor != null) {
-			mCursor.close();
-			mCursor = null;
-		}
+		mCurrentId = -1;
 		if (remove_status_icon) {
 			gotoIdleState();
 		} else {
@@ -1591,7 +1924,6 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public void pause() {
 
 		synchronized (this) {
-			mMediaplayerHandler.removeMessages(FADEUP);
 			if (isPlaying()) {
 
 				mPlayer.pause();
@@ -1626,34 +1958,35 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	 * reached, PREV is a no-op. When not shuffling, PREV will go to the
 	 * sequentially previous track (the difference with the shuffle-case is
 	 * mainly that when not shuffling, the user can back up to tracks that are
-	 * not in the history).
+	 * not in the history). The shuffled order is picked once per round, see
+	 * ShuffleOrder.
 	 * 
 	 * Example: When playing an album with 10 tracks from the start, and
 	 * enabling shuffle while playing track 5, the remaining tracks (6-10) will
 	 * be shuffled, e.g. the final play order might be 1-2-3-4-5-8-10-6-9-7.
 	 * When hitting 'prev' 8 times while playing track 7 in this example, the
-	 * user will go to tracks 9-6-10-8-5-4-3-2. If the user then hits 'next', a
-	 * random track will be picked again. If at any time user disables shuffling
+	 * user will go to tracks 9-6-10-8-5-4-3-2. If the user then hits 'next', the
+	 * same tracks will be played again in the same order. If at any time user disables shuffling
 	 * the next/previous track will be picked in sequential order again.
 	 */
 
 	public void prev() {
 
 		synchronized (this) {
-			if (mShuffleMode == SHUFFLE_NORMAL) {
-				// go to previously-played track and remove it from the history
-				int histsize = mHistory.size();
-				if (histsize == 0) {
+			if (mShuffleMode != SHUFFLE_NONE) {
+				// go to previously-played track, openCurrent() moves back in
+				// the play order
+				int pos = mShuffleOrder.peekPrevious();
+				if (pos < 0) {
 					// prev is a no-op
 					return;
 				}
-				Integer pos = mHistory.remove(histsize - 1);
-				mPlayPos = pos.intValue();
+				mPlayPos = pos;
 			} else {
 				if (mPlayPos > 0) {
 					mPlayPos--;
 				} else {
-					mPlayPos = mPlayListLen - 1;
+					mPlayPos = mPlayQueue.size() - 1;
 				}
 			}
 			saveBookmarkIfNeeded();
@@ -1674,86 +2007,128 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 				return;
 			}
 
-			if (mPlayListLen <= 0) {
+			if (mPlayQueue.size() <= 0) {
 				Log.d(LOGTAG_SERVICE, "No play queue");
 				return;
 			}
 
-			if (mShuffleMode == SHUFFLE_NORMAL) {
-				if (mPlayPos >= 0) {
-					if (!mHistory.contains(mPlayPos)) {
-						mHistory.add(mPlayPos);
-					}
+			int pos = getNextPosition(force);
+			if (pos < 0) {
+				// all done
+				gotoIdleState();
+				if (mIsSupposedToBePlaying) {
+					mIsSupposedToBePlaying = false;
+					notifyChange(BROADCAST_PLAYSTATE_CHANGED);
 				}
+				return;
+			}
+			mPlayPos = pos;
+			saveBookmarkIfNeeded();
+			stop(false);
+			openCurrent();
+			play();
+			notifyChange(BROADCAST_META_CHANGED);
+		}
+	}
 
-				int numTracks = mPlayListLen;
-				int[] tracks = new int[numTracks];
-				for (int i = 0; i < numTracks; i++) {
-					tracks[i] = i;
-				}
+	/**
+	 * Returns the queue position next() is going to move to, or -1 if playback
+	 * should stop there. In shuffle mode it is the next one in the play order,
+	 * another round is shuffled once all tracks have been played.
+	 */
+	private int getNextPosition(boolean force) {
 
-				int numHistory = mHistory.size();
-				int numUnplayed = numTracks;
-				for (int i = 0; i < numHistory; i++) {
-					int idx = mHistory.get(i).intValue();
-					if (idx < numTracks && tracks[idx] >= 0) {
-						numUnplayed--;
-						tracks[idx] = -1;
-					}
+		synchronized (this) {
+			if (mPlayQueue.size() <= 0) {
+				return -1;
+			}
+			if (mShuffleMode == SHUFFLE_NORMAL) {
+				int next = mShuffleOrder.peekNext();
+				if (next >= 0) {
+					return next;
 				}
-
-				// 'numUnplayed' now indicates how many tracks have not yet
-				// been played, and 'tracks' contains the indices of those
-				// tracks.
-				if (numUnplayed <= 0) {
-					// everything's already been played
-					if (mRepeatMode == REPEAT_ALL || force) {
-						// pick from full set
-						numUnplayed = numTracks;
-						for (int i = 0; i < numTracks; i++) {
-							tracks[i] = i;
-						}
-					} else {
-						// all done
-						gotoIdleState();
-						if (mIsSupposedToBePlaying) {
-							mIsSupposedToBePlaying = false;
-							notifyChange(BROADCAST_PLAYSTATE_CHANGED);
-						}
-						return;
-					}
+				// everything's already been played
+				if (mRepeatMode == REPEAT_ALL || force) {
+					// the current track won't come first
+					mShuffleOrder.reshuffle();
+					mQueueStore.invalidate();
+					next = mShuffleOrder.peekNext();
+					return next >= 0 ? next : mShuffleOrder.current();
 				}
-				int skip = mShuffler.shuffle(numUnplayed);
-				int cnt = -1;
-				while (true) {
-					while (tracks[++cnt] < 0)
-						;
-					skip--;
-					if (skip < 0) {
-						break;
-					}
+				return -1;
+			} else if (mShuffleMode == SHUFFLE_WEIGHTED) {
+				// picks with replacement, so there is always a next track
+				if (mWeightedNextPos < 0 || mWeightedNextPos >= mPlayQueue.size()
+						|| mPlayQueue.get(mWeightedNextPos) != mWeightedNextId
+						|| mWeightedNextPos == mPlayPos) {
+					mWeightedNextPos = mWeightedShuffle.sample(mPlayQueue, mPlayPos);
+					mWeightedNextId = mWeightedNextPos >= 0 ? mPlayQueue.get(mWeightedNextPos) : -1;
 				}
-				mPlayPos = cnt;
+				return mWeightedNextPos;
 			} else {
-				if (mPlayPos >= mPlayListLen - 1) {
+				if (mPlayPos >= mPlayQueue.size() - 1) {
 					// we're at the end of the list
 					if (mRepeatMode == REPEAT_NONE && !force) {
-						// all done
-						gotoIdleState();
-						mIsSupposedToBePlaying = false;
-						notifyChange(BROADCAST_PLAYSTATE_CHANGED);
-						return;
+						return -1;
 					} else if (mRepeatMode == REPEAT_ALL || force) {
-						mPlayPos = 0;
+						return 0;
 					}
-				} else {
-					mPlayPos++;
+					return mPlayPos;
 				}
+				return mPlayPos + 1;
 			}
-			saveBookmarkIfNeeded();
-			stop(false);
-			openCurrent();
-			play();
+		}
+	}
+
+	/**
+	 * Prepares the track that follows the current one on the player, so it
+	 * starts without a gap when the current one ends. Called whenever the
+	 * upcoming track may have changed.
+	 */
+	private void setNextTrack() {
+
+		synchronized (this) {
+			int next = -1;
+			// repeating one track seeks back instead, see TRACK_ENDED
+			if (mPlayer.isInitialized() && mRepeatMode != REPEAT_CURRENT && !mSleepTimerTimedUp) {
+				next = getNextPosition(false);
+			}
+			mNextPlayPos = next;
+			int duration = Integer.valueOf(mPrefs.getStringPref(KEY_CROSSFADE_DURATION,
+					DEFAULT_CROSSFADE_DURATION));
+			String curve = mPrefs.getStringPref(KEY_CROSSFADE_CURVE, DEFAULT_CROSSFADE_CURVE);
+			mPlayer.setCrossfade(duration * 1000L,
+					CROSSFADE_CURVE_LINEAR.equals(curve) ? FadeScheduler.CURVE_LINEAR
+							: FadeScheduler.CURVE_EQUAL_POWER);
+			mPlayer.setFadeOutAtEnd(mSleepTimerTimedUp ? SLEEP_FADE_DURATION : 0);
+			mPlayer.setNextDataSource(next >= 0 ? MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
+					+ "/" + mPlayQueue.get(next) : null);
+		}
+	}
+
+	/**
+	 * The player went on to the prepared track by itself, catch up with it
+	 * like next() does, without stopping or opening anything.
+	 */
+	private void wentToNext() {
+
+		synchronized (this) {
+			if (mNextPlayPos < 0 || mNextPlayPos >= mPlayQueue.size()) {
+				return;
+			}
+			mPlayPos = mNextPlayPos;
+			mNextPlayPos = -1;
+			mShuffleOrder.moveTo(mPlayPos);
+
+			long id = mPlayQueue.get(mPlayPos);
+			mFileToPlay = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + id;
+			mCurrentId = mQueueMetadata.require(id) ? id : -1;
+			if (mCurrentId >= 0) {
+				if (isPodcast()) {
+					seek(getBookmark() - 5000);
+				}
+			}
+			updatePlaybackNotification();
 			notifyChange(BROADCAST_META_CHANGED);
 		}
 	}
@@ -1780,6 +2155,8 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 				setRepeatMode(REPEAT_ALL);
 			}
 		} else if (mShuffleMode == SHUFFLE_NORMAL) {
+			setShuffleMode(SHUFFLE_WEIGHTED);
+		} else if (mShuffleMode == SHUFFLE_WEIGHTED) {
 			setShuffleMode(SHUFFLE_NONE);
 		} else {
 			setShuffleMode(SHUFFLE_NONE);
@@ -1814,39 +2191,12 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 				}
 
 				// write 'pos' to the bookmark field
-				ContentValues values = new ContentValues();
-				values.put(MediaStore.Audio.Media.BOOKMARK, pos);
-				Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-						mCursor.getLong(IDCOLIDX));
-				getContentResolver().update(uri, values, null, null);
+				mQueueMetadata.writeBookmark(mCurrentId, pos);
 			}
 		} catch (SQLiteException ex) {
 		}
 	}
 
-	// A simple variation of Random that makes sure that the
-	// value it returns is not equal to the value it returned
-	// previously, unless the interval is 1.
-	private class Shuffler {
-
-		private int mPrevious;
-		private Random mRandom = new Random();
-
-		public int shuffle(int interval) {
-
-			int ret;
-			long ret_id;
-			do {
-				ret = mRandom.nextInt(interval);
-				ret_id = mPlayList[ret];
-			} while ((ret == mPrevious && interval > 1)
-					|| (!isFavorite(ret_id) && mHistory.contains(ret_id)));
-
-			mPrevious = ret;
-			return ret;
-		}
-	};
-
 	/**
 	 * Removes the range of tracks specified from the play list. If a file
 	 * within the range is the file currently being played, playback will move
@@ -1872,7 +2222,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		synchronized (this) {
 			if (last < first) return 0;
 			if (first < 0) first = 0;
-			if (last >= mPlayListLen) last = mPlayListLen - 1;
+			if (last >= mPlayQueue.size()) last = mPlayQueue.size() - 1;
 
 			boolean gotonext = false;
 			if (first <= mPlayPos && mPlayPos <= last) {
@@ -1881,22 +2231,17 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			} else if (mPlayPos > last) {
 				mPlayPos -= (last - first + 1);
 			}
-			int num = mPlayListLen - last - 1;
-			for (int i = 0; i < num; i++) {
-				mPlayList[first + i] = mPlayList[last + 1 + i];
-			}
-			mPlayListLen -= last - first + 1;
+			mPlayQueue.remove(first, last);
+			mShuffleOrder.remove(first, last);
+			mQueueStore.remove(first, last);
 
 			if (gotonext) {
-				if (mPlayListLen == 0) {
+				if (mPlayQueue.size() == 0) {
 					stop(true);
 					mPlayPos = -1;
-					if (mCursor != null) {
-						mCursor.close();
-						mCursor = null;
-					}
+					mCurrentId = -1;
 				} else {
-					if (mPlayPos >= mPlayListLen) {
+					if (mPlayPos >= mPlayQueue.size()) {
 						mPlayPos = 0;
 					}
 					boolean wasPlaying = isPlaying();
@@ -1923,8 +2268,8 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 
 		int numremoved = 0;
 		synchronized (this) {
-			for (int i = 0; i < mPlayListLen; i++) {
-				if (mPlayList[i] == id) {
+			for (int i = 0; i < mPlayQueue.size(); i++) {
+				if (mPlayQueue.get(i) == id) {
 					numremoved += removeTracksInternal(i, i);
 					i--;
 				}
@@ -1939,13 +2284,22 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public void setShuffleMode(int shufflemode) {
 
 		synchronized (this) {
-			if (mShuffleMode == shufflemode && mPlayListLen > 0) {
+			if (mShuffleMode == shufflemode && mPlayQueue.size() > 0) {
 				return;
 			}
 			if (mRepeatMode == REPEAT_CURRENT) mRepeatMode = REPEAT_NONE;
 			mShuffleMode = shufflemode;
+			if (mShuffleMode != SHUFFLE_NONE) {
+				// a new round starting at the current track, weighted mode
+				// only uses it as history for prev()
+				mShuffleOrder.reset(mPlayQueue.size(), mPlayPos);
+				mQueueStore.invalidate();
+			}
+			if (mShuffleMode == SHUFFLE_WEIGHTED) {
+				mWeightedShuffle.update(mPlayQueue.toArray());
+			}
 			notifyChange(BROADCAST_SHUFFLEMODE_CHANGED);
-			saveQueue(false);
+			saveQueue();
 		}
 	}
 
@@ -1959,7 +2313,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		synchronized (this) {
 			mRepeatMode = repeatmode;
 			notifyChange(BROADCAST_REPEATMODE_CHANGED);
-			saveQueue(false);
+			saveQueue();
 		}
 	}
 
@@ -1989,10 +2343,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public String getMediaPath() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return null;
-			}
-			return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA));
+			return mQueueMetadata.getPath(mCurrentId);
 		}
 	}
 
@@ -2003,8 +2354,8 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public long getAudioId() {
 
 		synchronized (this) {
-			if (mPlayPos >= 0 && mPlayer.isInitialized()) {
-				return mPlayList[mPlayPos];
+			if (mPlayPos >= 0 && mPlayer.isOpened()) {
+				return mPlayQueue.get(mPlayPos);
 			}
 		}
 		return -1;
@@ -2034,21 +2385,103 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		return mLyricsStatus;
 	}
 
+	public int[] getLyricsGroupSizes() {
+
+		return mLyricsParser.getGroupSizes();
+	}
+
+	public long[] getLyricsWords() {
+
+		return mLyricsParser.getAllWords();
+	}
+
+	public int[] getLyricsLineWords() {
+
+		return mLyricsParser.getLineWords();
+	}
+
+	/**
+	 * @return id of the lyrics at current position, or -1 before the first
+	 *         line.
+	 */
 	public int getCurrentLyricsId() {
 
-		return mLyricsId;
+		LyricsParser parser = mLyricsParser;
+		if (mLyricsStatus != LYRICS_STATUS_OK || parser.getCount() == 0) return -1;
+		long position = position();
+		if (position < parser.getTimestamp(0)) return -1;
+		return parser.getId(position);
+	}
+
+	/**
+	 * @return timestamp of every lyrics id, so clients can follow the lyrics
+	 *         with {@link #getPlaybackClock()} instead of broadcasts.
+	 */
+	public long[] getLyricsTimestamps() {
+
+		return mLyricsParser.getAllTimestamp();
+	}
+
+	/**
+	 * @return { position, {@link SystemClock#elapsedRealtime()} when position
+	 *         was taken, 1 if playing otherwise 0 }
+	 */
+	public long[] getPlaybackClock() {
+
+		synchronized (this) {
+			return new long[] { position(), SystemClock.elapsedRealtime(), isPlaying() ? 1 : 0 };
+		}
 	}
 
 	public long getPositionByLyricsId(int id) {
 
 		synchronized (this) {
-			if (mLyricsParser != null && id < mLyricsParser.getAllTimestamp().size()) {
+			if (mLyricsParser != null && id < mLyricsParser.getCount()) {
 				return mLyricsParser.getTimestamp(id);
 			}
 		}
 		return position();
 	}
 
+	/**
+	 * Moves the lyrics of the current track, a positive delta shows them
+	 * later. The offset is kept for the track and applied without parsing the
+	 * lyrics again.
+	 * 
+	 * @return the new offset in milliseconds
+	 */
+	public long nudgeLyricsOffset(long delta) {
+
+		long id = getAudioId();
+		if (id < 0) return 0;
+		long offset;
+		synchronized (mLyricsOffsets) {
+			// the parser may be a placeholder while the lyrics are loading
+			offset = Math.max(Integer.MIN_VALUE,
+					Math.min(Integer.MAX_VALUE, (long) mLyricsOffsets.get(id) + delta));
+			mLyricsOffsets.put(id, (int) offset);
+			mLyricsParser.setOffset(offset);
+		}
+		mLyricsLoader.removeMessages(SAVE_LYRICS_OFFSETS);
+		mLyricsLoader.sendEmptyMessageDelayed(SAVE_LYRICS_OFFSETS, LYRICS_OFFSETS_SAVE_DELAY);
+
+		notifyLyricsChange(BROADCAST_LYRICS_TIMELINE_CHANGED);
+		// reschedule per line broadcasts against the new timestamps
+		mLyricsHandler.removeMessages(LYRICS_REFRESHED);
+		mLyricsHandler.sendEmptyMessage(LYRICS_REFRESHED);
+		return offset;
+	}
+
+	/**
+	 * @return offset of the current lyrics in milliseconds, to be subtracted
+	 *         from the playback position before comparing it with
+	 *         {@link #getLyricsTimestamps()}.
+	 */
+	public long getLyricsOffset() {
+
+		return mLyricsParser.getOffset();
+	}
+
 	public void reloadEqualizer() {
 
 		if (mEqualizerSupported && mEqualizer != null) {
@@ -2101,11 +2534,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	 *            The id in the queue of the track that will be played.
 	 */
 	public void setQueueId(long id) {
-		int pos = -1;
-
-		for (int i = 0; i < mPlayList.length; i++) {
-			if (id == mPlayList[i]) pos = i;
-		}
+		int pos = mPlayQueue.lastIndexOf(id);
 		if (pos < 0) return;
 
 		setQueuePosition(pos);
@@ -2114,70 +2543,49 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	public String getArtistName() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return null;
-			}
-			return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
+			return mQueueMetadata.getArtist(mCurrentId);
 		}
 	}
 
 	public long getArtistId() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return -1;
-			}
-			return mCursor.getLong(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID));
+			return mQueueMetadata.getArtistId(mCurrentId);
 		}
 	}
 
 	public String getAlbumName() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return null;
-			}
-			return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM));
+			return mQueueMetadata.getAlbum(mCurrentId);
 		}
 	}
 
 	public long getAlbumId() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return -1;
-			}
-			return mCursor.getLong(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID));
+			return mQueueMetadata.getAlbumId(mCurrentId);
 		}
 	}
 
 	public String getTrackName() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return null;
-			}
-			return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE));
+			return mQueueMetadata.getTitle(mCurrentId);
 		}
 	}
 
 	private boolean isPodcast() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return false;
-			}
-			return (mCursor.getInt(PODCASTCOLIDX) > 0);
+			return mQueueMetadata.isPodcast(mCurrentId);
 		}
 	}
 
 	private long getBookmark() {
 
 		synchronized (this) {
-			if (mCursor == null) {
-				return 0;
-			}
-			return mCursor.getLong(BOOKMARKCOLIDX);
+			return mQueueMetadata.getBookmark(mCurrentId);
 		}
 	}
 
@@ -2218,6 +2626,9 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			long result = mPlayer.seek(pos);
 			mLyricsHandler.obtainMessage(POSITION_CHANGED, (int) result, 0).sendToTarget();
 			return result;
+		} else if (mPlayer.isPreparing()) {
+			// applied when prepared
+			return mPlayer.seek(pos < 0 ? 0 : pos);
 		}
 		return 0;
 	}
@@ -2235,71 +2646,447 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	/**
 	 * Provides a unified interface for dealing with midi files and other media
 	 * files.
+	 *
+	 * Files are prepared asynchronously: {@link #setDataSource(String)} returns
+	 * once the player is preparing, and OPEN_COMPLETED or OPEN_FAILED is sent
+	 * to the handler later. Starting, seeking and
+	 * volume changes made while preparing are applied when the file is ready.
+	 * Every open gets a new generation, so callbacks of an open superseded by
+	 * another one or by stop() are ignored.
 	 */
 	private class MultiPlayer {
 
+		private static final int IDLE = 0;
+		private static final int PREPARING = 1;
+		private static final int PREPARED = 2;
+		private static final int ERROR = 3;
+
 		private MediaPlayer mMediaPlayer = new MediaPlayer();
 		private Handler mHandler;
-		private boolean mIsInitialized = false;
+		private int mState = IDLE;
+		private int mGeneration = 0;
+
+		// applied when preparing has finished
+		private boolean mStartWhenPrepared = false;
+		private long mSeekWhenPrepared = -1;
+
+		// prepared while the current track plays, see setNextDataSource()
+		private MediaPlayer mNextMediaPlayer;
+		private String mNextPath;
+		private boolean mNextPrepared = false;
+		private boolean mNextChained = false;
+
+		// fading out while the current track fades in, see crossfade()
+		private MediaPlayer mOutgoingMediaPlayer;
+		// the master gain applies to all players, the others to the current
+		// and the outgoing one
+		private final FadeScheduler.Channel mMasterGain, mCurrentGain, mOutgoingGain;
+		private boolean mPlaying = false;
+		private long mCrossfade = 0, mFadeOutAtEnd = 0;
+		private int mCurve = FadeScheduler.CURVE_EQUAL_POWER;
+
+		// added in API 16 and 9, looked up by reflection
+		private Method mSetNextMediaPlayer, mSetAudioSessionId;
+
+		private long mCompletedAt;
+		private final int[] mTransitions = new int[4];
+		private final long[] mGapTotal = new long[4];
+		private final long[] mGapMax = new long[4];
+		private int mOpens, mCancelled;
+		private long mPrepareTotal, mPrepareMax, mOpenedAt;
 
 		public MultiPlayer() {
 
 			mMediaPlayer.setWakeMode(MusicPlaybackService.this, PowerManager.PARTIAL_WAKE_LOCK);
+			try {
+				mSetNextMediaPlayer = MediaPlayer.class.getMethod("setNextMediaPlayer",
+						MediaPlayer.class);
+			} catch (NoSuchMethodException e) {
+				// the next track is started when this one completes
+			}
+			try {
+				mSetAudioSessionId = MediaPlayer.class.getMethod("setAudioSessionId", int.class);
+			} catch (NoSuchMethodException e) {
+				// no audio effects to keep
+			}
+			FadeScheduler.Target target = new FadeScheduler.Target() {
+
+				@Override
+				public void setGain(float gain) {
+
+					applyVolume();
+				}
+			};
+			mMasterGain = mFadeScheduler.newChannel(target, 1f);
+			mCurrentGain = mFadeScheduler.newChannel(target, 1f);
+			mOutgoingGain = mFadeScheduler.newChannel(target, 1f);
 		}
 
-		public void setDataSource(String path) {
+		/**
+		 * Starts preparing a file. If the file can't even be opened the player
+		 * is left uninitialized and nothing is sent to the handler.
+		 */
+		public synchronized void setDataSource(String path) {
+
+			cancel();
+			final int generation = mGeneration;
+			mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
 
+				@Override
+				public void onPrepared(MediaPlayer mp) {
+
+					synchronized (MultiPlayer.this) {
+						if (generation != mGeneration || mp != mMediaPlayer) return;
+						prepared();
+					}
+				}
+			});
+			mMediaPlayer.setOnCompletionListener(listener);
+			mMediaPlayer.setOnErrorListener(errorListener);
+			if (!setDataSource(mMediaPlayer, path)) {
+				mMediaPlayer.reset();
+				return;
+			}
 			try {
+				mMediaPlayer.prepareAsync();
+			} catch (IllegalStateException ex) {
 				mMediaPlayer.reset();
-				mMediaPlayer.setOnPreparedListener(null);
+				return;
+			}
+			mState = PREPARING;
+			mOpenedAt = SystemClock.elapsedRealtime();
+		}
+
+		private void prepared() {
+
+			long time = SystemClock.elapsedRealtime() - mOpenedAt;
+			mOpens++;
+			mPrepareTotal += time;
+			mPrepareMax = Math.max(mPrepareMax, time);
+
+			mState = PREPARED;
+			applyVolume();
+			long position = 0;
+			if (mSeekWhenPrepared > 0 && mSeekWhenPrepared < mMediaPlayer.getDuration()) {
+				mMediaPlayer.seekTo((int) mSeekWhenPrepared);
+				position = mSeekWhenPrepared;
+			}
+			mSeekWhenPrepared = -1;
+			if (mStartWhenPrepared) {
+				mStartWhenPrepared = false;
+				mMediaPlayer.start();
+				mPlaying = true;
+				scheduleEndFade(position);
+			}
+			mHandler.sendEmptyMessage(OPEN_COMPLETED);
+		}
+
+		/**
+		 * Drops the current file and anything pending for it.
+		 */
+		private void cancel() {
+
+			if (mState == PREPARING) mCancelled++;
+			mGeneration++;
+			releaseNext();
+			mMediaPlayer.reset();
+			mState = IDLE;
+			mPlaying = false;
+			mStartWhenPrepared = false;
+			mSeekWhenPrepared = -1;
+			finishFades();
+		}
+
+		private boolean setDataSource(MediaPlayer player, String path) {
+
+			try {
 				if (path.startsWith("content://")) {
-					mMediaPlayer.setDataSource(MusicPlaybackService.this, Uri.parse(path));
+					player.setDataSource(MusicPlaybackService.this, Uri.parse(path));
 				} else {
-					mMediaPlayer.setDataSource(path);
+					player.setDataSource(path);
 				}
-				mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-				mMediaPlayer.prepare();
+				player.setAudioStreamType(AudioManager.STREAM_MUSIC);
 			} catch (IOException ex) {
-				mIsInitialized = false;
-				return;
+				return false;
 			} catch (IllegalArgumentException ex) {
-				mIsInitialized = false;
+				return false;
+			} catch (IllegalStateException ex) {
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Prepares the track to play when the current one completes, or drops
+		 * the prepared one if path is null. Where the platform supports it
+		 * the two players are chained, so the next one starts without any
+		 * gap, otherwise it is started from the completion callback. With
+		 * crossfading enabled it is started before the current one ends.
+		 */
+		public synchronized void setNextDataSource(String path) {
+
+			if (path == null ? mNextPath == null : path.equals(mNextPath)) return;
+			releaseNext();
+			if (path == null || mState != PREPARED) {
+				// may fade out the end of the current track instead
+				scheduleEndFade(mMediaPlayer.getCurrentPosition());
 				return;
 			}
-			mMediaPlayer.setOnCompletionListener(listener);
-			mMediaPlayer.setOnErrorListener(errorListener);
-			mIsInitialized = true;
+
+			final MediaPlayer player = new MediaPlayer();
+			player.setWakeMode(MusicPlaybackService.this, PowerManager.PARTIAL_WAKE_LOCK);
+			if (mSetAudioSessionId != null) {
+				// keep the equalizer attached to the session
+				try {
+					mSetAudioSessionId.invoke(player, getAudioSessionId());
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+
+				@Override
+				public void onPrepared(MediaPlayer mp) {
+
+					synchronized (MultiPlayer.this) {
+						if (mp != mNextMediaPlayer) return;
+						nextPrepared();
+					}
+				}
+			});
+			player.setOnCompletionListener(listener);
+			player.setOnErrorListener(errorListener);
+			if (!setDataSource(player, path)) {
+				player.release();
+				return;
+			}
+			try {
+				player.prepareAsync();
+			} catch (IllegalStateException ex) {
+				player.release();
+				return;
+			}
+			mNextMediaPlayer = player;
+			mNextPath = path;
+		}
+
+		private void nextPrepared() {
+
+			mNextPrepared = true;
+			applyVolume();
+			if (mCrossfade > 0) {
+				scheduleEndFade(mMediaPlayer.getCurrentPosition());
+			} else if (mSetNextMediaPlayer != null) {
+				try {
+					mSetNextMediaPlayer.invoke(mMediaPlayer, mNextMediaPlayer);
+					mNextChained = true;
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Sets how long the current track fades into the next one, 0 chains
+		 * them without fading.
+		 */
+		public synchronized void setCrossfade(long duration, int curve) {
+
+			mCurve = curve;
+			if (duration == mCrossfade) return;
+			mCrossfade = duration;
+			// prepared again with or without chaining by setNextDataSource()
+			releaseNext();
+		}
+
+		/**
+		 * Sets how long the current track fades out before it ends when there
+		 * is no next track, 0 lets it end at full volume.
+		 */
+		public synchronized void setFadeOutAtEnd(long duration) {
+
+			if (duration == mFadeOutAtEnd) return;
+			mFadeOutAtEnd = duration;
+			if (mState == PREPARED) {
+				scheduleEndFade(mMediaPlayer.getCurrentPosition());
+			}
+		}
+
+		/**
+		 * @return how long before its end the current track starts fading.
+		 */
+		private long getEndFadeDuration() {
+
+			if (mNextPrepared && mCrossfade > 0) return mCrossfade;
+			if (mNextMediaPlayer == null) return mFadeOutAtEnd;
+			return 0;
+		}
+
+		private void scheduleEndFade(long position) {
+
+			mFadeScheduler.cancel(mEndFade);
+			long duration = getEndFadeDuration();
+			if (mState != PREPARED || !mPlaying || duration <= 0) return;
+			mFadeScheduler.post(mEndFade, mMediaPlayer.getDuration() - position - duration);
+		}
+
+		private final Runnable mEndFade = new Runnable() {
+
+			@Override
+			public void run() {
+
+				synchronized (MultiPlayer.this) {
+					if (mState != PREPARED || !mPlaying) return;
+					long remaining = mMediaPlayer.getDuration()
+							- mMediaPlayer.getCurrentPosition();
+					long duration = Math.min(getEndFadeDuration(), remaining);
+					if (duration <= 0) return;
+					if (mNextPrepared && mCrossfade > 0) {
+						crossfade(duration);
+					} else {
+						mCurrentGain.fade(0f, duration, mCurve);
+					}
+				}
+			}
+		};
+
+		/**
+		 * Starts the prepared next track silently and fades it in while the
+		 * current one fades out, then goes on as if the player went to the
+		 * next track by itself.
+		 */
+		private void crossfade(long duration) {
+
+			MediaPlayer next = mNextMediaPlayer;
+			mNextMediaPlayer = null;
+			mNextPath = null;
+			mNextPrepared = false;
+			mNextChained = false;
+			releaseOutgoing();
+			mOutgoingMediaPlayer = mMediaPlayer;
+			mMediaPlayer = next;
+			mOutgoingGain.set(mCurrentGain.getGain());
+			mCurrentGain.set(0f);
+			mMediaPlayer.start();
+			mOutgoingGain.fade(0f, duration, mCurve);
+			mCurrentGain.fade(0f, 1f, duration, mCurve);
+			recordTransition(TRANSITION_CROSSFADED);
+			mHandler.sendEmptyMessage(TRACK_WENT_TO_NEXT);
+		}
+
+		private void releaseOutgoing() {
+
+			if (mOutgoingMediaPlayer == null) return;
+			mOutgoingGain.stop();
+			mOutgoingMediaPlayer.release();
+			mOutgoingMediaPlayer = null;
+		}
+
+		/**
+		 * Drops a crossfade or fade out in progress or scheduled, the current
+		 * track plays at full volume again.
+		 */
+		private void finishFades() {
+
+			mFadeScheduler.cancel(mEndFade);
+			releaseOutgoing();
+			mCurrentGain.set(1f);
+		}
+
+		/**
+		 * Sets the volume of the players from the gains. Called whenever a
+		 * gain changes, possibly on the scheduler thread.
+		 */
+		private synchronized void applyVolume() {
+
+			float master = mMasterGain.getGain();
+			// not allowed while preparing, applied once prepared
+			if (mState == PREPARED) {
+				float vol = master * mCurrentGain.getGain();
+				mMediaPlayer.setVolume(vol, vol);
+			}
+			if (mOutgoingMediaPlayer != null) {
+				float vol = master * mOutgoingGain.getGain();
+				mOutgoingMediaPlayer.setVolume(vol, vol);
+			}
+			if (mNextMediaPlayer != null && mNextPrepared) {
+				mNextMediaPlayer.setVolume(master, master);
+			}
+		}
+
+		private void releaseNext() {
+
+			if (mNextMediaPlayer == null) return;
+			if (mNextChained) {
+				try {
+					mSetNextMediaPlayer.invoke(mMediaPlayer, (Object) null);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			mNextMediaPlayer.release();
+			mNextMediaPlayer = null;
+			mNextPath = null;
+			mNextPrepared = false;
+			mNextChained = false;
 		}
 
+		/**
+		 * @return true if a file is prepared and ready to play.
+		 */
 		public boolean isInitialized() {
 
-			return mIsInitialized;
+			return mState == PREPARED;
 		}
 
-		public void start() {
+		public boolean isPreparing() {
+
+			return mState == PREPARING;
+		}
+
+		/**
+		 * @return true if a file is prepared or being prepared.
+		 */
+		public boolean isOpened() {
+
+			return mState == PREPARING || mState == PREPARED;
+		}
+
+		public synchronized void start() {
 
 			MusicUtils.debugLog(new Exception("MultiPlayer.start called"));
-			mMediaPlayer.start();
+			if (mState == PREPARING) {
+				mStartWhenPrepared = true;
+			} else {
+				mMediaPlayer.start();
+				mPlaying = true;
+				scheduleEndFade(mMediaPlayer.getCurrentPosition());
+			}
 		}
 
-		public void stop() {
+		public synchronized void stop() {
 
-			mMediaPlayer.reset();
-			mIsInitialized = false;
+			cancel();
 		}
 
 		/**
 		 * You CANNOT use this player anymore after calling release()
 		 */
-		public void release() {
+		public synchronized void release() {
 
 			stop();
 			mMediaPlayer.release();
 		}
 
-		public void pause() {
+		public synchronized void pause() {
 
-			mMediaPlayer.pause();
+			if (mState == PREPARING) {
+				mStartWhenPrepared = false;
+			} else {
+				finishFades();
+				mMediaPlayer.pause();
+				mPlaying = false;
+			}
 		}
 
 		public boolean isPlaying() {
@@ -2317,6 +3104,35 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			@Override
 			public void onCompletion(MediaPlayer mp) {
 
+				synchronized (MultiPlayer.this) {
+					if (mp == mOutgoingMediaPlayer) {
+						// faded out already
+						releaseOutgoing();
+						return;
+					}
+					if (mp != mMediaPlayer || mState != PREPARED) return;
+					mCompletedAt = SystemClock.elapsedRealtime();
+					if (mNextMediaPlayer != null && mNextPrepared) {
+						MediaPlayer next = mNextMediaPlayer;
+						boolean chained = mNextChained;
+						mNextMediaPlayer = null;
+						mNextPath = null;
+						mNextPrepared = false;
+						mNextChained = false;
+						if (!chained) {
+							next.start();
+						}
+						mMediaPlayer.release();
+						mMediaPlayer = next;
+						// a chained player is already playing when we are told
+						recordTransition(chained ? TRANSITION_CHAINED : TRANSITION_SWAPPED);
+						mHandler.sendEmptyMessage(TRACK_WENT_TO_NEXT);
+						return;
+					}
+					// still preparing, open it the usual way
+					releaseNext();
+				}
+
 				// Acquire a temporary wakelock, since when we return from
 				// this callback the MediaPlayer will release its wakelock
 				// and allow the device to go to sleep.
@@ -2333,49 +3149,101 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			@Override
 			public boolean onError(MediaPlayer mp, int what, int extra) {
 
-				switch (what) {
-					case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
-						mIsInitialized = false;
-						mMediaPlayer.release();
-						// Creating a new MediaPlayer and settings its wakemode
-						// does
-						// not
-						// require the media service, so it's OK to do this now,
-						// while the
-						// service is still being restarted
-						mMediaPlayer = new MediaPlayer();
-						mMediaPlayer.setWakeMode(MusicPlaybackService.this,
-								PowerManager.PARTIAL_WAKE_LOCK);
-						mHandler.sendMessageDelayed(mHandler.obtainMessage(SERVER_DIED), 2000);
+				synchronized (MultiPlayer.this) {
+					if (mp == mOutgoingMediaPlayer) {
+						releaseOutgoing();
 						return true;
-					default:
-						Log.d("MultiPlayer", "Error: " + what + "," + extra);
-						break;
+					}
+					if (mp == mNextMediaPlayer && what != MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
+						// open the next track the usual way when we get there
+						releaseNext();
+						return true;
+					}
+					if (mp != mMediaPlayer) {
+						// a player we already dropped
+						return true;
+					}
+					switch (what) {
+						case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
+							mState = IDLE;
+							mPlaying = false;
+							mGeneration++;
+							mFadeScheduler.cancel(mEndFade);
+							if (mNextMediaPlayer != null) {
+								mNextMediaPlayer.release();
+								mNextMediaPlayer = null;
+								mNextPath = null;
+								mNextPrepared = false;
+								mNextChained = false;
+							}
+							mMediaPlayer.release();
+							// Creating a new MediaPlayer and settings its wakemode
+							// does
+							// not
+							// require the media service, so it's OK to do this
+							// now, while the
+							// service is still being restarted
+							mMediaPlayer = new MediaPlayer();
+							mMediaPlayer.setWakeMode(MusicPlaybackService.this,
+									PowerManager.PARTIAL_WAKE_LOCK);
+							mHandler.sendMessageDelayed(mHandler.obtainMessage(SERVER_DIED), 2000);
+							return true;
+						default:
+							Log.d("MultiPlayer", "Error: " + what + "," + extra);
+							if (mState == PREPARING) {
+								// the file can't be played, the service
+								// moves on
+								mState = ERROR;
+								mGeneration++;
+								mStartWhenPrepared = false;
+								mHandler.sendEmptyMessage(OPEN_FAILED);
+								return true;
+							}
+							break;
+					}
+					return false;
 				}
-				return false;
 			}
 		};
 
-		public long duration() {
+		public synchronized long duration() {
 
 			return mMediaPlayer.getDuration();
 		}
 
-		public long position() {
+		public synchronized long position() {
 
 			return mMediaPlayer.getCurrentPosition();
 		}
 
-		public long seek(long whereto) {
+		public synchronized long seek(long whereto) {
 
-			mMediaPlayer.seekTo((int) whereto);
+			if (mState == PREPARING) {
+				mSeekWhenPrepared = whereto;
+			} else {
+				finishFades();
+				mMediaPlayer.seekTo((int) whereto);
+				scheduleEndFade(whereto);
+			}
 			return whereto;
 		}
 
 		public void setVolume(float vol) {
 
-			mMediaPlayer.setVolume(vol, vol);
-			mCurrentVolume = vol;
+			mMasterGain.set(vol);
+		}
+
+		/**
+		 * Fades the volume from where it is now.
+		 * 
+		 * @param duration
+		 *            of a fade across the full range, shorter fades take
+		 *            proportionally less time.
+		 */
+		public void fadeVolume(float vol, long duration) {
+
+			float distance = Math.abs(vol - mMasterGain.getGain());
+			mMasterGain.fade(vol, (long) (distance * duration), FadeScheduler.CURVE_LINEAR);
 		}
 
 		public int getAudioSessionId() {
@@ -2389,6 +3257,41 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			}
 		}
 
+		/**
+		 * Records the gap between the completion of the last track and the
+		 * start of the current one.
+		 */
+		public void recordTransition(int type) {
+
+			// chained and crossfaded tracks start before the last one ends
+			long gap = type == TRANSITION_CHAINED || type == TRANSITION_CROSSFADED ? 0
+					: SystemClock.elapsedRealtime() - mCompletedAt;
+			mTransitions[type]++;
+			mGapTotal[type] += gap;
+			mGapMax[type] = Math.max(mGapMax[type], gap);
+		}
+
+		public synchronized void dump(PrintWriter out) {
+
+			out.println("track transitions: " + mTransitions[TRANSITION_CHAINED]
+					+ " chained, " + mTransitions[TRANSITION_CROSSFADED] + " crossfaded, "
+					+ formatTransitions(TRANSITION_SWAPPED, "swapped") + ", "
+					+ formatTransitions(TRANSITION_REOPENED, "reopened") + ", next prepared: "
+					+ (mNextPath != null ? mNextPath : "none"));
+			out.println("opens: " + mOpens + " prepared (avg "
+					+ (mOpens > 0 ? mPrepareTotal / mOpens : 0) + " ms, max " + mPrepareMax
+					+ " ms), " + mCancelled + " cancelled while preparing, state " + mState);
+			out.println("crossfade: " + mCrossfade + " ms, fade out at end: " + mFadeOutAtEnd
+					+ " ms, volume " + mMasterGain.getGain());
+		}
+
+		private String formatTransitions(int type, String name) {
+
+			int count = mTransitions[type];
+			return count + " " + name + " (gap avg "
+					+ (count > 0 ? mGapTotal[type] / count : 0) + " ms, max " + mGapMax[type]
+					+ " ms)";
+		}
 	}
 
 	/*
@@ -2414,6 +3317,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		@Override
 		public void refreshLyrics() {
 
+			mService.get().notifyLyricsChange(BROADCAST_LYRICS_TIMELINE_CHANGED);
 			mService.get().notifyLyricsChange(BROADCAST_LYRICS_REFRESHED);
 		}
 
@@ -2578,18 +3482,60 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 			return mService.get().getLyricsStatus();
 		}
 
+		@Override
+		public int[] getLyricsGroupSizes() {
+
+			return mService.get().getLyricsGroupSizes();
+		}
+
+		@Override
+		public long[] getLyricsWords() {
+
+			return mService.get().getLyricsWords();
+		}
+
+		@Override
+		public int[] getLyricsLineWords() {
+
+			return mService.get().getLyricsLineWords();
+		}
+
 		@Override
 		public int getCurrentLyricsId() {
 
 			return mService.get().getCurrentLyricsId();
 		}
 
+		@Override
+		public long[] getLyricsTimestamps() {
+
+			return mService.get().getLyricsTimestamps();
+		}
+
+		@Override
+		public long[] getPlaybackClock() {
+
+			return mService.get().getPlaybackClock();
+		}
+
 		@Override
 		public long getPositionByLyricsId(int id) {
 
 			return mService.get().getPositionByLyricsId(id);
 		}
 
+		@Override
+		public long nudgeLyricsOffset(long delta) {
+
+			return mService.get().nudgeLyricsOffset(delta);
+		}
+
+		@Override
+		public long getLyricsOffset() {
+
+			return mService.get().getLyricsOffset();
+		}
+
 		@Override
 		public void reloadEqualizer() {
 
@@ -2716,7 +3662,7 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 	@Override
 	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
 
-		writer.println("" + mPlayListLen + " items in queue, currently at index " + mPlayPos);
+		writer.println("" + mPlayQueue.size() + " items in queue, currently at index " + mPlayPos);
 		writer.println("Currently loaded:");
 		writer.println(getArtistName());
 		writer.println(getAlbumName());
@@ -2724,7 +3670,19 @@ public class MusicPlaybackService extends Service implements Constants, OnShakeL
 		writer.println(getPath());
 		writer.println("playing: " + mIsSupposedToBePlaying);
 		writer.println("actual: " + mPlayer.isPlaying());
+		mPlayer.dump(writer);
+		mFadeScheduler.dump(writer);
+		synchronized (this) {
+			writer.println("state changes: " + mChangeEvents + " notified, " + mChangeDispatches
+					+ " dispatched, " + mChangeBroadcasts + " broadcasts ("
+					+ (mChangeEvents - mChangeBroadcasts) + " folded)");
+		}
 		writer.println("shuffle mode: " + mShuffleMode);
+		mQueueMetadata.dump(writer);
+		mQueueStore.dump(writer);
+		mWeightedShuffle.dump(writer);
+		mLyricsLocator.dump(writer);
+		mLyricsOffsets.dump(writer);
 		MusicUtils.debugDump(writer);
 	}
 
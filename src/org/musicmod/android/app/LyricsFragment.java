@@ -45,6 +45,7 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 		View fragmentView = getView();
 		mLyricsScrollView = (TextScrollView) fragmentView.findViewById(R.id.lyrics_scroll);
 		mLyricsScrollView.setContentGravity(Gravity.CENTER_HORIZONTAL);
+		mLyricsScrollView.setEmptyView(fragmentView.findViewById(R.id.content_empty_view));
 
 		mLyricsInfoMessage = (TextView) fragmentView.findViewById(R.id.message);
 		mLyricsInfoMessage.setOnLongClickListener(this);
@@ -73,7 +74,7 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 
 		IntentFilter lyricsstatusfilter = new IntentFilter();
 		lyricsstatusfilter.addAction(BROADCAST_NEW_LYRICS_LOADED);
-		lyricsstatusfilter.addAction(BROADCAST_LYRICS_REFRESHED);
+		lyricsstatusfilter.addAction(BROADCAST_LYRICS_TIMELINE_CHANGED);
 		getActivity().registerReceiver(mStatusListener, lyricsstatusfilter);
 
 		IntentFilter screenstatusfilter = new IntentFilter();
@@ -101,7 +102,6 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 		try {
 			if (mService.getAudioId() >= 0 || mService.isPlaying() || mService.getPath() != null) {
 				loadLyricsToView();
-				scrollLyrics(true);
 			} else {
 				getActivity().finish();
 			}
@@ -142,8 +142,14 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 			String action = intent.getAction();
 			if (BROADCAST_NEW_LYRICS_LOADED.equals(action)) {
 				loadLyricsToView();
-			} else if (BROADCAST_LYRICS_REFRESHED.equals(action)) {
-				scrollLyrics(false);
+			} else if (BROADCAST_LYRICS_TIMELINE_CHANGED.equals(action)) {
+				// seeked, paused, resumed or nudged, the view schedules line
+				// changes
+				mLyricsScrollView.setLyricsOffset(intent.getLongExtra(BROADCAST_KEY_LYRICS_OFFSET,
+						0));
+				mLyricsScrollView.setPlaybackClock(intent.getLongExtra(BROADCAST_KEY_POSITION, 0),
+						intent.getLongExtra(BROADCAST_KEY_CLOCK, 0),
+						intent.getBooleanExtra(BROADCAST_KEY_PLAYING, false));
 			}
 		}
 
@@ -158,12 +164,11 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 				if (mIntentDeRegistered) {
 					IntentFilter f = new IntentFilter();
 					f.addAction(BROADCAST_NEW_LYRICS_LOADED);
-					f.addAction(BROADCAST_LYRICS_REFRESHED);
+					f.addAction(BROADCAST_LYRICS_TIMELINE_CHANGED);
 					getActivity().registerReceiver(mStatusListener, new IntentFilter(f));
 					mIntentDeRegistered = false;
 				}
 				loadLyricsToView();
-				scrollLyrics(true);
 			} else if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
 				if (!mIntentDeRegistered) {
 					getActivity().unregisterReceiver(mStatusListener);
@@ -179,7 +184,12 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 		if (mLyricsScrollView == null || mService == null) return;
 
 		try {
-			mLyricsScrollView.setTextContent(mService.getLyrics());
+			mLyricsScrollView.setTextContent(mService.getLyrics(), mService.getLyricsGroupSizes(),
+					mService.getLyricsWords(), mService.getLyricsLineWords());
+			long[] clock = mService.getPlaybackClock();
+			mLyricsScrollView.setLyricsOffset(mService.getLyricsOffset());
+			mLyricsScrollView.setPlaybackClock(clock[0], clock[1], clock[2] != 0);
+			mLyricsScrollView.setTimestamps(mService.getLyricsTimestamps());
 
 			if (mService.getLyricsStatus() == LYRICS_STATUS_OK) {
 			} else {
@@ -190,15 +200,6 @@ public class LyricsFragment extends Fragment implements Constants, OnLineSelecte
 		}
 	}
 
-	private void scrollLyrics(boolean force) {
-
-		try {
-			mLyricsScrollView.setCurrentLine(mService.getCurrentLyricsId(), force);
-		} catch (RemoteException e) {
-			e.printStackTrace();
-		}
-	}
-
 	private void searchLyrics() {
 
 		String artistName = "";
@@ -1550,6 +1550,10 @@ public class MusicPlaybackActivity extends ActionBarActivity implements Constant
 					}
 					Toast.makeText(getActivity(), R.string.shuffle_on_notif, Toast.LENGTH_SHORT);
 				} else if (shuffle == SHUFFLE_NORMAL) {
+					mService.setShuffleMode(SHUFFLE_WEIGHTED);
+					Toast.makeText(getActivity(), R.string.shuffle_weighted_notif,
+							Toast.LENGTH_SHORT);
+				} else if (shuffle == SHUFFLE_WEIGHTED) {
 					mService.setShuffleMode(SHUFFLE_NONE);
 					Toast.makeText(getActivity(), R.string.shuffle_off_notif, Toast.LENGTH_SHORT);
 				} else {
@@ -21,6 +21,8 @@ import org.musicmod.android.R;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceScreen;
 import android.view.MenuItem;
 
 import org.mariotaku.actionbarcompat.ActionBarPreferenceActivity;
@@ -35,6 +37,16 @@ public class MusicSettingsActivity extends ActionBarPreferenceActivity implement
 		addPreferencesFromResource(R.xml.music_settings);
 	}
 
+	@Override
+	public boolean onPreferenceTreeClick(PreferenceScreen screen, Preference preference) {
+
+		if (KEY_FETCH_LYRICS.equals(preference.getKey())) {
+			startService(new Intent(INTENT_FETCH_LYRICS));
+			return true;
+		}
+		return super.onPreferenceTreeClick(screen, preference);
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 
@@ -144,7 +144,7 @@ public class QueryBrowserActivity extends ActionBarActivity implements Constants
 		if (args == null) args = new Bundle();
 		args.putString(INTENT_KEY_FILTER, s.toString());
 
-		fragment.getLoaderManager().restartLoader(0, args, fragment);
+		fragment.setFilter(args);
 	};
 
 	@Override
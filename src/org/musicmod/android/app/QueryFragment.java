@@ -21,6 +21,8 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -29,6 +31,7 @@ import android.provider.MediaStore;
 import android.provider.MediaStore.Audio;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
+import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.SimpleCursorAdapter;
@@ -42,13 +45,31 @@ import android.widget.TextView;
 
 import org.musicmod.android.Constants;
 import org.musicmod.android.R;
+import org.musicmod.android.util.LyricsIndex;
+import org.musicmod.android.util.LyricsIndexer;
+import org.musicmod.android.util.LyricsLocator;
 import org.musicmod.android.util.MusicUtils;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 public class QueryFragment extends ListFragment implements Constants, LoaderCallbacks<Cursor> {
 
+	private final static int MEDIA_LOADER = 0;
+	private final static int LYRICS_LOADER = 1;
+
+	private final static String MIMETYPE_LYRICS = "lyrics";
+	private final static String MIMETYPE_LYRICS_HEADER = "lyrics_header";
+	private final static int MAX_LYRICS_RESULTS = 20;
+
+	private final static String[] COLUMNS = new String[] { BaseColumns._ID,
+			Audio.Media.MIME_TYPE, Audio.Artists.ARTIST, Audio.Albums.ALBUM, Audio.Media.TITLE,
+			"data1", "data2" };
+
 	private QueryListAdapter mAdapter;
 	private String mFilterString = "";
-	private Cursor mQueryCursor;
+	private Cursor mQueryCursor, mMediaCursor, mLyricsCursor;
 	private ListView mTrackList;
 
 	public QueryFragment() {
@@ -75,10 +96,17 @@ public class QueryFragment extends ListFragment implements Constants, LoaderCall
 
 		// Prepare the loader. Either re-connect with an existing one,
 		// or start a new one.
-		getLoaderManager().initLoader(0, getArguments(), this);
+		getLoaderManager().initLoader(MEDIA_LOADER, getArguments(), this);
+		getLoaderManager().initLoader(LYRICS_LOADER, getArguments(), this);
 
 	}
 
+	public void setFilter(Bundle args) {
+
+		getLoaderManager().restartLoader(MEDIA_LOADER, args, this);
+		getLoaderManager().restartLoader(LYRICS_LOADER, args, this);
+	}
+
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
 		View view = inflater.inflate(R.layout.query_browser, container, false);
@@ -161,37 +189,61 @@ public class QueryFragment extends ListFragment implements Constants, LoaderCall
 					: "";
 		}
 
+		if (id == LYRICS_LOADER) {
+			return new LyricsQueryLoader(getActivity(), filter);
+		}
+
 		StringBuilder where = new StringBuilder();
 
 		where.append(Audio.Media.IS_MUSIC + "=1");
 		where.append(" AND " + Audio.Media.TITLE + " != ''");
 
-		String[] cols = new String[] { BaseColumns._ID, Audio.Media.MIME_TYPE,
-				Audio.Artists.ARTIST, Audio.Albums.ALBUM, Audio.Media.TITLE, "data1", "data2" };
-
 		Uri uri = Uri.parse("content://media/external/audio/search/fancy/" + Uri.encode(filter));
 
 		// Now create and return a CursorLoader that will take care of
 		// creating a Cursor for the data being displayed.
-		return new CursorLoader(getActivity(), uri, cols, where.toString(), null, null);
+		return new CursorLoader(getActivity(), uri, COLUMNS, where.toString(), null, null);
 	}
 
 	@Override
 	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 
-		if (data == null) {
-			getActivity().finish();
-			return;
+		if (loader.getId() == LYRICS_LOADER) {
+			mLyricsCursor = data;
+		} else {
+			if (data == null) {
+				getActivity().finish();
+				return;
+			}
+			mMediaCursor = data;
 		}
-
-		mQueryCursor = data;
-		mAdapter.swapCursor(data);
-
+		swapCursor();
 	}
 
 	@Override
 	public void onLoaderReset(Loader<Cursor> loader) {
-		mAdapter.swapCursor(null);
+
+		if (loader.getId() == LYRICS_LOADER) {
+			mLyricsCursor = null;
+		} else {
+			mMediaCursor = null;
+		}
+		swapCursor();
+	}
+
+	/**
+	 * Shows library results followed by the lyrics section, if it has hits.
+	 */
+	private void swapCursor() {
+
+		if (mMediaCursor == null) {
+			mQueryCursor = null;
+		} else if (mLyricsCursor == null || mLyricsCursor.getCount() == 0) {
+			mQueryCursor = mMediaCursor;
+		} else {
+			mQueryCursor = new MergeCursor(new Cursor[] { mMediaCursor, mLyricsCursor });
+		}
+		mAdapter.swapCursor(mQueryCursor);
 	}
 
 	@Override
@@ -206,7 +258,9 @@ public class QueryFragment extends ListFragment implements Constants, LoaderCall
 		String selectedType = mQueryCursor.getString(mQueryCursor
 				.getColumnIndexOrThrow(Audio.Media.MIME_TYPE));
 
-		if ("artist".equals(selectedType)) {
+		if (MIMETYPE_LYRICS_HEADER.equals(selectedType)) {
+			return;
+		} else if ("artist".equals(selectedType)) {
 			Intent intent = new Intent(Intent.ACTION_PICK);
 			intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
 			intent.setDataAndType(Uri.EMPTY, "vnd.android.cursor.dir/album");
@@ -266,7 +320,22 @@ public class QueryFragment extends ListFragment implements Constants, LoaderCall
 			if (mimetype == null) {
 				mimetype = "audio/";
 			}
-			if (mimetype.equals("artist")) {
+			if (mimetype.equals(MIMETYPE_LYRICS_HEADER)) {
+				viewholder.result_icon.setImageDrawable(null);
+				viewholder.query_result.setText(R.string.lyrics_section);
+				int count = cursor.getInt(cursor.getColumnIndexOrThrow("data2"));
+				viewholder.result_summary.setText(context.getResources().getQuantityString(
+						R.plurals.Nsongs, count, count));
+
+			} else if (mimetype.equals(MIMETYPE_LYRICS)) {
+				viewholder.result_icon.setImageResource(R.drawable.ic_mp_list_song);
+				viewholder.query_result.setText(cursor.getString(cursor
+						.getColumnIndexOrThrow(Audio.Media.TITLE)));
+				// the matching line
+				viewholder.result_summary.setText(cursor.getString(cursor
+						.getColumnIndexOrThrow("data1")));
+
+			} else if (mimetype.equals("artist")) {
 				viewholder.result_icon.setImageResource(R.drawable.ic_mp_list_artist);
 				String name = cursor.getString(cursor.getColumnIndexOrThrow(Audio.Artists.ARTIST));
 				String displayname = name;
@@ -322,4 +391,135 @@ public class QueryFragment extends ListFragment implements Constants, LoaderCall
 
 	}
 
+	/**
+	 * Loads tracks whose lyrics contain the filter, in the columns of the
+	 * library search, after a header row.
+	 */
+	private static class LyricsQueryLoader extends AsyncTaskLoader<Cursor> {
+
+		private final String mFilter;
+		private Cursor mCursor;
+
+		LyricsQueryLoader(Context context, String filter) {
+
+			super(context);
+			mFilter = filter;
+		}
+
+		@Override
+		public Cursor loadInBackground() {
+
+			MatrixCursor cursor = new MatrixCursor(COLUMNS);
+			List<LyricsIndex.Hit> hits = LyricsIndexer.getInstance(getContext()).query(mFilter,
+					MAX_LYRICS_RESULTS);
+			if (hits.isEmpty()) return cursor;
+
+			// find the tracks which may have the lyrics files, next to them
+			// or named after them in the lyrics folder
+			String folder = LyricsLocator.getFolder().getPath();
+			StringBuilder where = new StringBuilder();
+			List<String> args = new ArrayList<String>();
+			for (LyricsIndex.Hit hit : hits) {
+				File lyrics = new File(hit.path);
+				String name = lyrics.getName();
+				name = name.substring(0, name.length() - ".lrc".length());
+				if (where.length() > 0) where.append(" OR ");
+				where.append(Audio.Media.DATA + " LIKE ?");
+				if (folder.equals(lyrics.getParent())) {
+					args.add("%/" + name + ".%");
+					where.append(" OR (" + Audio.Media.ARTIST + " || ' - ' || "
+							+ Audio.Media.TITLE + ") LIKE ?");
+					args.add(name);
+				} else {
+					args.add(new File(lyrics.getParent(), name).getPath() + ".%");
+				}
+			}
+			Cursor c = MusicUtils.query(getContext(), Audio.Media.EXTERNAL_CONTENT_URI,
+					new String[] { Audio.Media._ID, Audio.Media.DATA, Audio.Media.ARTIST,
+							Audio.Media.ALBUM, Audio.Media.TITLE },
+					where.toString(), args.toArray(new String[args.size()]), null);
+			if (c == null) return cursor;
+
+			Object[][] rows = new Object[hits.size()][];
+			int count = 0;
+			try {
+				while (c.moveToNext()) {
+					File file = LyricsLocator.resolve(c.getString(1), c.getString(2),
+							c.getString(4));
+					if (file == null) continue;
+					String lyrics = file.getPath();
+					for (int i = 0; i < rows.length; i++) {
+						if (rows[i] == null && hits.get(i).path.equals(lyrics)) {
+							rows[i] = new Object[] { c.getLong(0), MIMETYPE_LYRICS,
+									c.getString(2), c.getString(3), c.getString(4),
+									hits.get(i).line, 0 };
+							count++;
+							break;
+						}
+					}
+				}
+			} finally {
+				c.close();
+			}
+			if (count == 0) return cursor;
+			cursor.addRow(new Object[] { -1, MIMETYPE_LYRICS_HEADER, null, null, null, null,
+					count });
+			for (Object[] row : rows) {
+				if (row != null) cursor.addRow(row);
+			}
+			return cursor;
+		}
+
+		@Override
+		public void deliverResult(Cursor cursor) {
+
+			if (isReset()) {
+				if (cursor != null) cursor.close();
+				return;
+			}
+			Cursor old = mCursor;
+			mCursor = cursor;
+			if (isStarted()) {
+				super.deliverResult(cursor);
+			}
+			if (old != null && old != cursor) {
+				old.close();
+			}
+		}
+
+		@Override
+		protected void onStartLoading() {
+
+			if (mCursor != null) {
+				deliverResult(mCursor);
+			}
+			if (takeContentChanged() || mCursor == null) {
+				forceLoad();
+			}
+		}
+
+		@Override
+		protected void onStopLoading() {
+
+			cancelLoad();
+		}
+
+		@Override
+		public void onCanceled(Cursor cursor) {
+
+			if (cursor != null) cursor.close();
+		}
+
+		@Override
+		protected void onReset() {
+
+			super.onReset();
+			onStopLoading();
+			if (mCursor != null) {
+				mCursor.close();
+			}
+			mCursor = null;
+		}
+	}
+
 }
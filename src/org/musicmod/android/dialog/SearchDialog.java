@@ -19,15 +19,13 @@ package org.musicmod.android.dialog;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 
 import org.musicmod.android.Constants;
 import org.musicmod.android.R;
 import org.musicmod.android.util.ImageDownloader;
 import org.musicmod.android.util.LyricsDownloader;
+import org.musicmod.android.util.LyricsResult;
 import org.musicmod.android.util.MusicUtils;
-import org.xmlpull.v1.XmlPullParserException;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -63,6 +61,7 @@ public class SearchDialog extends Activity implements Constants, TextWatcher, On
 			restore_albumart_confirm = false;
 
 	LyricsDownloader mDownloader;
+	LyricsResult[] mLyricsResults;
 
 	LyricsSearchTask mLyricsSearchTask;
 	LyricsDownloadTask mLyricsDownloadTask;
@@ -340,42 +339,39 @@ public class SearchDialog extends Activity implements Constants, TextWatcher, On
 		return;
 	}
 
-	private class LyricsSearchTask extends AsyncTask<String, Void, String[]> implements
+	private class LyricsSearchTask extends AsyncTask<String, Void, LyricsResult[]> implements
 			OnCancelListener, OnClickListener {
 
 		private int mItem = 0;
 
 		@Override
-		protected String[] doInBackground(String... params) {
+		protected LyricsResult[] doInBackground(String... params) {
 
 			mPath = params[2];
 			try {
 				return mDownloader.search(params[0], params[1]);
-			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
-			} catch (XmlPullParserException e) {
-				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
+				return new LyricsResult[0];
 			}
-			return null;
 		}
 
 		@Override
 		protected void onPreExecute() {
 
-			mDownloader = new LyricsDownloader();
+			mDownloader = new LyricsDownloader(new File(getCacheDir(), "search"));
 			mProgress.setProgressStyle(ProgressDialog.STYLE_SPINNER);
 			mProgress.setMessage(getString(R.string.searching_please_wait));
 			mProgress.show();
 		}
 
 		@Override
-		protected void onPostExecute(String[] result) {
+		protected void onPostExecute(LyricsResult[] result) {
 
 			if (mProgress != null) {
 				mProgress.dismiss();
 			}
+			mLyricsResults = result;
 			if (result.length > 0) {
 				chooseLyrics(result);
 			} else {
@@ -414,8 +410,12 @@ public class SearchDialog extends Activity implements Constants, TextWatcher, On
 			}
 		}
 
-		private void chooseLyrics(final String[] result) {
+		private void chooseLyrics(final LyricsResult[] results) {
 
+			String[] result = new String[results.length];
+			for (int i = 0; i < results.length; i++) {
+				result[i] = results[i].toString();
+			}
 			mLyricsChooser = new AlertDialog.Builder(SearchDialog.this)
 					.setTitle(R.string.search_lyrics).setItems(result, this)
 					.setOnCancelListener(this).show();
@@ -447,11 +447,9 @@ public class SearchDialog extends Activity implements Constants, TextWatcher, On
 		protected Void doInBackground(String... params) {
 
 			try {
-				mDownloader.download(Integer.valueOf(params[0]), params[1]);
+				mDownloader.download(mLyricsResults[Integer.valueOf(params[0])], params[1]);
 			} catch (NumberFormatException e) {
 				e.printStackTrace();
-			} catch (MalformedURLException e) {
-				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,109 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.util.Random;
+
+/**
+ * Walker's alias table for sampling indices by weight in constant time.
+ *
+ * Built in linear time with Vose's method: every column holds the
+ * probability of its own index and the alias that fills the rest, so a
+ * sample is one random column and one random comparison.
+ */
+public class AliasTable {
+
+	private final int mSize;
+	private final float[] mProbabilities;
+	private final int[] mAliases;
+
+	/**
+	 * @param weights
+	 *            non-negative weights, the first size ones are used.
+	 */
+	public AliasTable(double[] weights, int size) {
+
+		mSize = size;
+		mProbabilities = new float[size];
+		mAliases = new int[size];
+
+		double total = 0;
+		for (int i = 0; i < size; i++) {
+			total += weights[i];
+		}
+		if (total <= 0) {
+			// uniform
+			for (int i = 0; i < size; i++) {
+				mProbabilities[i] = 1;
+				mAliases[i] = i;
+			}
+			return;
+		}
+
+		// scaled so the average column is 1, split into the columns below and
+		// above average, both kept as stacks in one array
+		double[] scaled = new double[size];
+		int[] stack = new int[size];
+		int small = 0, large = size;
+		for (int i = 0; i < size; i++) {
+			scaled[i] = weights[i] * size / total;
+			if (scaled[i] < 1) {
+				stack[small++] = i;
+			} else {
+				stack[--large] = i;
+			}
+		}
+		while (small > 0 && large < size) {
+			int less = stack[--small];
+			int more = stack[large++];
+			mProbabilities[less] = (float) scaled[less];
+			mAliases[less] = more;
+			scaled[more] -= 1 - scaled[less];
+			if (scaled[more] < 1) {
+				stack[small++] = more;
+			} else {
+				stack[--large] = more;
+			}
+		}
+		// what is left is 1 up to rounding errors
+		while (small > 0) {
+			int index = stack[--small];
+			mProbabilities[index] = 1;
+			mAliases[index] = index;
+		}
+		while (large < size) {
+			int index = stack[large++];
+			mProbabilities[index] = 1;
+			mAliases[index] = index;
+		}
+	}
+
+	public int size() {
+
+		return mSize;
+	}
+
+	/**
+	 * @return a random index, -1 if the table is empty.
+	 */
+	public int sample(Random random) {
+
+		if (mSize == 0) return -1;
+		int column = random.nextInt(mSize);
+		return random.nextFloat() < mProbabilities[column] ? column : mAliases[column];
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Drives volume ramps from a dedicated audio priority thread.
+ *
+ * Each {@link Channel} holds a gain that is either constant or ramping
+ * towards a target. Gains are computed from the time elapsed since the ramp
+ * started rather than moved by fixed steps, so a late tick catches up instead
+ * of stretching the ramp. While any channel ramps, all of them are updated
+ * every {@link #TICK} ms and the new gains are passed to their {@link Target}
+ * outside of any lock.
+ */
+public class FadeScheduler {
+
+	public final static int CURVE_LINEAR = 0;
+	public final static int CURVE_EQUAL_POWER = 1;
+
+	private final static long TICK = 5;
+
+	/**
+	 * Receives the gain of a channel, called on the scheduler thread.
+	 */
+	public interface Target {
+
+		void setGain(float gain);
+	}
+
+	public class Channel {
+
+		private final Target mTarget;
+		private float mGain, mFrom, mTo;
+		private long mStart, mDuration;
+		private int mCurve;
+		private boolean mRamping = false;
+
+		private Channel(Target target, float gain) {
+
+			mTarget = target;
+			mGain = gain;
+		}
+
+		/**
+		 * @return the gain last passed to the target, or being passed.
+		 */
+		public float getGain() {
+
+			synchronized (FadeScheduler.this) {
+				return mGain;
+			}
+		}
+
+		/**
+		 * Stops ramping and sets the gain right away. The target is called on
+		 * the calling thread.
+		 */
+		public void set(float gain) {
+
+			synchronized (FadeScheduler.this) {
+				mRamping = false;
+				mGain = gain;
+			}
+			mTarget.setGain(gain);
+		}
+
+		/**
+		 * Ramps from the current gain to the given one.
+		 */
+		public void fade(float to, long duration, int curve) {
+
+			fade(getGain(), to, duration, curve);
+		}
+
+		public void fade(float from, float to, long duration, int curve) {
+
+			if (duration <= 0) {
+				set(to);
+				return;
+			}
+			synchronized (FadeScheduler.this) {
+				mFrom = from;
+				mTo = to;
+				mGain = from;
+				mStart = SystemClock.uptimeMillis();
+				mDuration = duration;
+				mCurve = curve;
+				mRamping = true;
+				mFades++;
+				schedule();
+			}
+		}
+
+		/**
+		 * Stops ramping, keeping the gain reached so far.
+		 */
+		public void stop() {
+
+			synchronized (FadeScheduler.this) {
+				mRamping = false;
+			}
+		}
+
+		public boolean isRamping() {
+
+			synchronized (FadeScheduler.this) {
+				return mRamping;
+			}
+		}
+
+		/**
+		 * @return true if the channel is still ramping.
+		 */
+		private boolean update(long now) {
+
+			float t = (float) (now - mStart) / mDuration;
+			if (t >= 1) {
+				mGain = mTo;
+				mRamping = false;
+			} else {
+				mGain = interpolate(mFrom, mTo, t, mCurve);
+			}
+			return mRamping;
+		}
+	}
+
+	private final Handler mHandler;
+	private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+	// channels updated by a tick and their gains, only used by the
+	// scheduler thread and sized for all channels
+	private Channel[] mUpdated = new Channel[0];
+	private float[] mGains = new float[0];
+	private boolean mScheduled = false;
+	private long mNextTick;
+
+	private int mFades, mTicks;
+	private long mLateTotal, mLateMax;
+
+	public FadeScheduler(String name) {
+
+		HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_URGENT_AUDIO);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	public synchronized Channel newChannel(Target target, float gain) {
+
+		Channel channel = new Channel(target, gain);
+		mChannels.add(channel);
+		mUpdated = new Channel[mChannels.size()];
+		mGains = new float[mChannels.size()];
+		return channel;
+	}
+
+	/**
+	 * Runs a task on the scheduler thread after the delay, e.g. to start a
+	 * fade at a given playback position.
+	 */
+	public void post(Runnable task, long delay) {
+
+		mHandler.postDelayed(task, Math.max(delay, 0));
+	}
+
+	public void cancel(Runnable task) {
+
+		mHandler.removeCallbacks(task);
+	}
+
+	public void quit() {
+
+		mHandler.removeCallbacksAndMessages(null);
+		mHandler.getLooper().quit();
+	}
+
+	/**
+	 * @param t
+	 *            progress of the ramp from 0 to 1.
+	 */
+	public static float interpolate(float from, float to, float t, int curve) {
+
+		switch (curve) {
+			case CURVE_EQUAL_POWER:
+				// sin and cos add up to constant power when fading one track
+				// in and another one out
+				if (to > from) {
+					return from + (to - from) * (float) Math.sin(t * Math.PI / 2);
+				}
+				return to + (from - to) * (float) Math.cos(t * Math.PI / 2);
+			default:
+				return from + (to - from) * t;
+		}
+	}
+
+	private void schedule() {
+
+		if (mScheduled) return;
+		mScheduled = true;
+		mNextTick = SystemClock.uptimeMillis();
+		mHandler.post(mTick);
+	}
+
+	private final Runnable mTick = new Runnable() {
+
+		@Override
+		public void run() {
+
+			long now = SystemClock.uptimeMillis();
+			Channel[] updated;
+			float[] gains;
+			int count = 0;
+			synchronized (FadeScheduler.this) {
+				long late = now - mNextTick;
+				mTicks++;
+				mLateTotal += late;
+				mLateMax = Math.max(mLateMax, late);
+
+				updated = mUpdated;
+				gains = mGains;
+				boolean ramping = false;
+				for (int i = 0; i < mChannels.size(); i++) {
+					Channel channel = mChannels.get(i);
+					if (!channel.mRamping) continue;
+					ramping |= channel.update(now);
+					updated[count] = channel;
+					gains[count] = channel.mGain;
+					count++;
+				}
+				if (ramping) {
+					mNextTick = now + TICK;
+					mHandler.postAtTime(this, mNextTick);
+				} else {
+					mScheduled = false;
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				updated[i].mTarget.setGain(gains[i]);
+			}
+		}
+	};
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("fades: " + mFades + " started, " + mTicks + " ticks (late avg "
+				+ (mTicks > 0 ? mLateTotal / mTicks : 0) + " ms, max " + mLateMax + " ms)");
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.musicmod.android.Constants;
+
+/**
+ * Disk cache of compiled lyrics.
+ *
+ * Each parsed lyrics file is stored as one small binary file, so a track that
+ * was played before is loaded with a single memory-mapped read instead of
+ * charset detection and a full parse. Entries are keyed by the source path and
+ * validated against its size and modification time.
+ *
+ * File layout (big endian):
+ *
+ * <pre>
+ * int     magic
+ * int     version
+ * long    source length
+ * long    source last modified
+ * int     path length, then path in UTF-8
+ * int     group count
+ * int     line count
+ * int     text length in bytes
+ * long[]  group timestamps
+ * int[]   first line of each group, group count + 1 entries
+ * int[]   line start offsets (chars)
+ * int[]   line end offsets (chars)
+ * int     word count
+ * int[]   first word of each line, line count + 1 entries
+ * long[]  packed word timing
+ * byte[]  text in UTF-8
+ * </pre>
+ */
+public class LyricsCache implements Constants {
+
+	private final static int MAGIC = 0x4d4d4c43; // "MMLC"
+	private final static int VERSION = 3;
+	private final static String SUFFIX = ".lrcc";
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final static long DEFAULT_BUDGET = 2 * 1024 * 1024;
+
+	private static int sHits, sMisses, sStores, sEvictions;
+
+	private final File mDirectory;
+	private final long mBudget;
+	// bytes stored in the directory, -1 until it is listed
+	private long mSize = -1;
+
+	public LyricsCache(File directory) {
+
+		this(directory, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param directory
+	 *            Directory to keep compiled lyrics in.
+	 * @param budget
+	 *            Maximum size of the cache in bytes. Least recently used
+	 *            entries are evicted down to 3/4 of it when it is exceeded.
+	 */
+	public LyricsCache(File directory, long budget) {
+
+		mDirectory = directory;
+		mBudget = budget;
+	}
+
+	/**
+	 * Loads lyrics into the parser, from the cache if it holds an up-to-date
+	 * entry, otherwise by parsing the source file and caching the result.
+	 *
+	 * @return one of the LYRICS_STATUS_* values
+	 */
+	public int parseLyrics(File source, LyricsParser parser) {
+
+		if (load(source, parser)) {
+			return LYRICS_STATUS_OK;
+		}
+		int status = parser.parseLyrics(source);
+		if (status == LYRICS_STATUS_OK) {
+			store(source, parser);
+		}
+		return status;
+	}
+
+	/**
+	 * @return true if up-to-date compiled lyrics were found and loaded.
+	 */
+	public boolean load(File source, LyricsParser parser) {
+
+		File file = getCacheFile(source);
+		long length = source.length();
+		long modified = source.lastModified();
+		if (modified == 0 || !file.exists()) {
+			countMiss();
+			return false;
+		}
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+					|| buffer.getLong() != length || buffer.getLong() != modified) {
+				countMiss();
+				return false;
+			}
+			byte[] path = new byte[buffer.getInt()];
+			buffer.get(path);
+			if (!source.getPath().equals(new String(path, "UTF-8"))) {
+				countMiss();
+				return false;
+			}
+			int groups = buffer.getInt();
+			int count = buffer.getInt();
+			int text_length = buffer.getInt();
+			long[] timestamps = new long[groups];
+			int[] group_first = new int[groups + 1];
+			int[] line_start = new int[count];
+			int[] line_end = new int[count];
+			buffer.asLongBuffer().get(timestamps);
+			buffer.position(buffer.position() + groups * 8);
+			buffer.asIntBuffer().get(group_first);
+			buffer.position(buffer.position() + (groups + 1) * 4);
+			buffer.asIntBuffer().get(line_start);
+			buffer.position(buffer.position() + count * 4);
+			buffer.asIntBuffer().get(line_end);
+			buffer.position(buffer.position() + count * 4);
+			long[] words = new long[buffer.getInt()];
+			int[] line_words = new int[count + 1];
+			buffer.asIntBuffer().get(line_words);
+			buffer.position(buffer.position() + (count + 1) * 4);
+			buffer.asLongBuffer().get(words);
+			buffer.position(buffer.position() + words.length * 8);
+			ByteBuffer text = buffer.slice();
+			text.limit(text_length);
+			parser.setCompiled(UTF_8.decode(text).toString(), timestamps, group_first, line_start,
+					line_end, words, line_words);
+		} catch (IOException e) {
+			countMiss();
+			return false;
+		} catch (RuntimeException e) {
+			// truncated or corrupted entry
+			file.delete();
+			countMiss();
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		file.setLastModified(System.currentTimeMillis());
+		countHit();
+		return true;
+	}
+
+	public void store(File source, LyricsParser parser) {
+
+		if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+			return;
+		}
+		File file = getCacheFile(source);
+		File temp = new File(mDirectory, file.getName() + ".tmp");
+		long replaced = file.length();
+		try {
+			byte[] path = source.getPath().getBytes("UTF-8");
+			byte[] text = parser.getText().getBytes("UTF-8");
+			long[] timestamps = parser.getAllTimestamp();
+			int[] group_first = parser.getGroupFirst();
+			int[] line_start = parser.getLineStarts();
+			int[] line_end = parser.getLineEnds();
+			long[] words = parser.getAllWords();
+			int[] line_words = parser.getLineWords();
+			int groups = parser.getCount();
+			int count = parser.getLineCount();
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(source.length());
+				out.writeLong(source.lastModified());
+				out.writeInt(path.length);
+				out.write(path);
+				out.writeInt(groups);
+				out.writeInt(count);
+				out.writeInt(text.length);
+				for (int i = 0; i < groups; i++) {
+					out.writeLong(timestamps[i]);
+				}
+				for (int i = 0; i <= groups; i++) {
+					out.writeInt(group_first[i]);
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeInt(line_start[i]);
+				}
+				for (int i = 0; i < count; i++) {
+					out.writeInt(line_end[i]);
+				}
+				out.writeInt(words.length);
+				for (int i = 0; i <= count; i++) {
+					out.writeInt(line_words[i]);
+				}
+				for (long word : words) {
+					out.writeLong(word);
+				}
+				out.write(text);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				return;
+			}
+		} catch (IOException e) {
+			temp.delete();
+			return;
+		}
+		synchronized (LyricsCache.class) {
+			sStores++;
+		}
+		trim(file.length() - replaced);
+	}
+
+	/**
+	 * Keeps the size of the cache up to date and removes least recently used
+	 * entries once it exceeds the budget. The directory is only listed then,
+	 * or to learn the size the first time.
+	 *
+	 * @param added
+	 *            bytes added by the last store.
+	 */
+	private synchronized void trim(long added) {
+
+		if (mSize >= 0) {
+			mSize += added;
+			if (mSize <= mBudget) return;
+		}
+		File[] files = mDirectory.listFiles();
+		if (files == null) return;
+
+		final long[] modified = new long[files.length];
+		long total = 0;
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			modified[i] = files[i].lastModified();
+			total += files[i].length();
+			order[i] = i;
+		}
+		if (total > mBudget) {
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+
+					return modified[lhs] < modified[rhs] ? -1 : modified[lhs] > modified[rhs] ? 1
+							: 0;
+				}
+			});
+			// leaves room for a few more stores before listing again
+			long target = mBudget / 4 * 3;
+			int evicted = 0;
+			for (int i = 0; i < order.length && total > target; i++) {
+				File oldest = files[order[i]];
+				long length = oldest.length();
+				if (oldest.delete()) {
+					total -= length;
+					evicted++;
+				}
+			}
+			synchronized (LyricsCache.class) {
+				sEvictions += evicted;
+			}
+		}
+		// entries deleted elsewhere are only noticed by the next listing
+		mSize = total;
+	}
+
+	private File getCacheFile(File source) {
+
+		String path = source.getPath();
+		return new File(mDirectory, Integer.toHexString(path.hashCode())
+				+ Integer.toHexString(path.length()) + SUFFIX);
+	}
+
+	private static synchronized void countHit() {
+
+		sHits++;
+	}
+
+	private static synchronized void countMiss() {
+
+		sMisses++;
+	}
+
+	public static synchronized void dump(PrintWriter out) {
+
+		out.println("lyrics cache: " + sHits + " hits, " + sMisses + " misses, " + sStores
+				+ " stores, " + sEvictions + " evictions");
+	}
+}
@@ -16,49 +16,103 @@
 
 package org.musicmod.android.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
-
+/**
+ * Searches and downloads lyrics.
+ *
+ * A search is sent to all providers at once and waits for them up to a common
+ * deadline, providers that are late are cancelled and left out. If none of
+ * them answers, the search fails rather than reporting no lyrics. Results are
+ * merged, ranked by {@link LyricsMatcher} and remembered on disk for a while,
+ * keyed by the normalized artist and title.
+ */
 public class LyricsDownloader {
 
-	private final static char[] digit = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A',
-			'B', 'C', 'D', 'E', 'F' };
 	private final static String UTF_8 = "utf-8";
 
-	private static String urlSearch(String artist, String track) {
+	private final static int SEARCH_TIMEOUT = 8000;
+	private final static int DOWNLOAD_TIMEOUT = 15000;
 
-		return "http://ttlrcct.qianqian.com/dll/lyricsvr.dll?sh?Artist=" + artist + "&Title="
-				+ track + "&Flags=0";
-	}
+	private final static int CACHE_VERSION = 2;
+	private final static long CACHE_TTL = 7 * 24 * 60 * 60 * 1000L;
+	private final static int CACHE_MAX_ENTRIES = 256;
+	private final static String CACHE_SUFFIX = ".srch";
 
-	private static String urlDownload(int id, String code) {
+	private final static Pattern CHARSET = Pattern.compile("(?i)\\bcharset=([^\\s;]+)");
 
-		return "http://ttlrcct.qianqian.com/dll/lyricsvr.dll?dl?Id=" + id + "&Code=" + code;
-	}
+	private final static ExecutorService sExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+
+				private int mCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+
+					Thread thread = new Thread(r, "LyricsSearch #" + ++mCount);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final static Map<String, LatencyStats> sStats = new LinkedHashMap<String, LatencyStats>();
 
-	private List<Integer> mIdList = new ArrayList<Integer>();
-	private List<String> mVerifyCodeList = new ArrayList<String>();
+	private final LyricsProvider[] mProviders;
+	private final File mCacheDirectory;
 
-	public LyricsDownloader() {
+	/**
+	 * @param cache_dir
+	 *            Directory to remember search results in, or null.
+	 */
+	public LyricsDownloader(File cache_dir) {
 
+		this(cache_dir, new QianqianLyricsProvider());
+	}
+
+	/**
+	 * @param cache_dir
+	 *            Directory to remember search results in, or null.
+	 * @param providers
+	 *            Providers to search, earlier ones win ties in ranking.
+	 */
+	public LyricsDownloader(File cache_dir, LyricsProvider... providers) {
+
+		mCacheDirectory = cache_dir;
+		mProviders = providers;
 	}
 
 	public interface OnProgressChangeListener {
@@ -79,265 +133,409 @@ public class LyricsDownloader {
 	public OnProgressChangeListener mListener;
 
 	/**
-	 * Search lyrics from server
+	 * Search lyrics from servers
 	 * 
-	 * @return result list in string array.
+	 * @return results, best matches first.
 	 * 
 	 * @param artist
 	 *            The artist of sound track.
 	 * @param track
 	 *            The name of sound track.
+	 * @throws IOException
+	 *             if no provider answered.
 	 */
-	public String[] search(String artist, String track) throws UnsupportedEncodingException,
-			XmlPullParserException, IOException {
+	public LyricsResult[] search(String artist, String track) throws IOException {
 
-		String url = urlSearch(encode(artist), encode(track));
-		return parseResult(get(url, UTF_8));
+		return search(artist, track, 0);
+	}
+
+	/**
+	 * Search lyrics from servers
+	 * 
+	 * @return results, best matches first.
+	 * 
+	 * @param duration
+	 *            Duration of the track in milliseconds, or 0 if unknown.
+	 * @throws IOException
+	 *             if no provider answered, or an InterruptedIOException if
+	 *             the thread was interrupted.
+	 */
+	public LyricsResult[] search(String artist, String track, long duration)
+			throws IOException {
+
+		LyricsMatcher matcher = new LyricsMatcher(artist, track, duration);
+		String key = normalize(artist) + '\0' + normalize(track);
+		List<LyricsResult> cached = loadCached(key);
+		if (cached != null) {
+			// scores aren't stored, they depend on the duration
+			return rank(cached, matcher);
+		}
+
+		List<Future<List<LyricsResult>>> futures = new ArrayList<Future<List<LyricsResult>>>(
+				mProviders.length);
+		long start = System.nanoTime();
+		long deadline = start + SEARCH_TIMEOUT * 1000000L;
+		for (LyricsProvider provider : mProviders) {
+			futures.add(sExecutor.submit(new SearchCall(provider, artist, track)));
+		}
+
+		List<LyricsResult> results = new ArrayList<LyricsResult>();
+		boolean complete = true;
+		int answered = 0;
+		for (int i = 0; i < mProviders.length; i++) {
+			Future<List<LyricsResult>> future = futures.get(i);
+			LatencyStats stats = getStats(mProviders[i].getName());
+			try {
+				long remaining = Math.max(0, deadline - System.nanoTime());
+				results.addAll(future.get(remaining, TimeUnit.NANOSECONDS));
+				stats.add((System.nanoTime() - start) / 1000000L);
+				answered++;
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				stats.timeout();
+				complete = false;
+			} catch (ExecutionException e) {
+				stats.fail();
+				complete = false;
+			} catch (InterruptedException e) {
+				for (int j = i; j < futures.size(); j++) {
+					futures.get(j).cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Lyrics search interrupted");
+			}
+		}
+
+		if (answered == 0 && mProviders.length > 0) {
+			throw new IOException("No lyrics provider answered");
+		}
+
+		LyricsResult[] ranked = rank(results, matcher);
+		// don't remember a result some provider had no chance to add to
+		if (complete && ranked.length > 0) {
+			storeCached(key, ranked);
+		}
+		return ranked;
 	}
 
 	/**
 	 * Download lyrics from server
 	 * 
-	 * @param id
-	 *            Id of selected item.
-	 * @param file
+	 * @param result
+	 *            Selected search result.
+	 * @param path
 	 *            Destination file path.
 	 */
-	public void download(int id, String path) throws MalformedURLException, IOException {
+	public void download(LyricsResult result, String path) throws IOException {
 
-		download(id, new File(path));
+		download(result, new File(path));
 	}
 
 	/**
 	 * Download lyrics from server
 	 * 
-	 * @param id
-	 *            Id of selected item.
+	 * @param result
+	 *            Selected search result.
 	 * @param file
-	 *            Destination file.
+	 *            Destination file, replaced only when the download is
+	 *            complete.
 	 */
-	public void download(int id, File file) throws MalformedURLException, IOException {
-
-		String url_string = urlDownload(mIdList.get(id), mVerifyCodeList.get(id));
-
-		URL url = new URL(url_string);
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		connection.setRequestMethod("GET");
-		connection.setDoOutput(true);
-		connection.connect();
-		FileOutputStream output = new FileOutputStream(file);
-		InputStream input = connection.getInputStream();
-		int total_size = connection.getContentLength();
-		int downloaded_size = 0;
-		byte[] buffer = new byte[1024];
-		int buffer_length = 0;
-		while ((buffer_length = input.read(buffer)) > 0) {
-			output.write(buffer, 0, buffer_length);
-			downloaded_size += buffer_length;
-			if (mListener != null) {
-				mListener.onProgressChange(downloaded_size, total_size);
+	public void download(LyricsResult result, File file) throws IOException {
+
+		HttpURLConnection connection = open(result.url, DOWNLOAD_TIMEOUT);
+		File temp = new File(file.getPath() + ".tmp");
+		InputStream input = null;
+		OutputStream output = null;
+		try {
+			input = connection.getInputStream();
+			output = new FileOutputStream(temp);
+			int total_size = connection.getContentLength();
+			int downloaded_size = 0;
+			byte[] buffer = new byte[4096];
+			int buffer_length = 0;
+			while ((buffer_length = input.read(buffer)) > 0) {
+				output.write(buffer, 0, buffer_length);
+				downloaded_size += buffer_length;
+				if (mListener != null) {
+					mListener.onProgressChange(downloaded_size, total_size);
+				}
+			}
+			output.close();
+			output = null;
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to write " + file);
 			}
+			LyricsIndexer.notifyChanged(file);
+		} finally {
+			close(input);
+			close(output);
+			temp.delete();
 		}
-		output.close();
 	}
 
-	private String encode(String source) {
+	// get text from url
+	static String get(String url, String encoding, int timeout) throws IOException {
+
+		if (url == null) {
+			return null;
+		}
+		HttpURLConnection conn = open(url, timeout);
+		String contentType = conn.getContentType();
+		if (contentType == null) contentType = encoding;
+
+		Matcher matcher = CHARSET.matcher(contentType);
+		String encoder = encoding;
+		if (matcher.find()) {
+			encoder = matcher.group(1);
+		}
 
-		final String UTF_16LE = "utf-16le";
+		// reading the body to the end and closing it lets the connection be
+		// reused by the next request to the same server
+		BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(),
+				encoder));
+		try {
+			char[] str = new char[4096];
+			StringBuilder builder = new StringBuilder();
+			for (int len; (len = reader.read(str)) > -1;) {
+				builder.append(str, 0, len);
+			}
+			return builder.toString();
+		} finally {
+			close(reader);
+		}
+	}
+
+	private static HttpURLConnection open(String url, int timeout) throws IOException {
 
-		if (source == null) {
-			source = "";
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setConnectTimeout(timeout);
+		conn.setReadTimeout(timeout);
+		int code = conn.getResponseCode();
+		if (code != HttpURLConnection.HTTP_OK) {
+			close(conn.getErrorStream());
+			throw new IOException("HTTP " + code + " from " + url);
 		}
+		return conn;
+	}
 
-		source = source.replaceAll("[\\p{P} ]", "").toLowerCase();
-		byte[] bytes = null;
+	private static void close(Closeable closeable) {
 
+		if (closeable == null) return;
 		try {
-			bytes = source.getBytes(UTF_16LE);
-		} catch (Exception e) {
-			e.printStackTrace();
-			bytes = source.getBytes();
+			closeable.close();
+		} catch (IOException e) {
+			// ignore
 		}
+	}
+
+	private static String normalize(String source) {
 
-		char[] charactor = new char[2];
-		StringBuilder builder = new StringBuilder();
-		for (byte byteValue : bytes) {
-			charactor[0] = digit[(byteValue >>> 4) & 0X0F];
-			charactor[1] = digit[byteValue & 0X0F];
-			builder.append(charactor);
+		return LyricsMatcher.normalize(source);
+	}
+
+	/**
+	 * Drops duplicates and sorts by match quality, keeping provider order for
+	 * equal matches.
+	 *
+	 * @return copies of the results carrying their score.
+	 */
+	private static LyricsResult[] rank(List<LyricsResult> results, LyricsMatcher matcher) {
+
+		HashSet<String> urls = new HashSet<String>();
+		List<LyricsResult> unique = new ArrayList<LyricsResult>(results.size());
+		for (LyricsResult result : results) {
+			if (!urls.add(result.url)) continue;
+			unique.add(new LyricsResult(result, matcher.score(result)));
 		}
-		return builder.toString();
+		Collections.sort(unique, new Comparator<LyricsResult>() {
+
+			@Override
+			public int compare(LyricsResult lhs, LyricsResult rhs) {
+
+				return Float.compare(rhs.getScore(), lhs.getScore());
+			}
+		});
+		return unique.toArray(new LyricsResult[unique.size()]);
 	}
 
-	private String verify(String artist, String track, int id) {
+	private List<LyricsResult> loadCached(String key) {
 
+		if (mCacheDirectory == null) return null;
+		File file = getCacheFile(key);
+		if (!file.exists() || System.currentTimeMillis() - file.lastModified() > CACHE_TTL) {
+			return null;
+		}
+		DataInputStream in = null;
 		try {
-			byte[] bytes = (artist + track).getBytes(UTF_8);
-			int[] song = new int[bytes.length];
-			for (int i = 0; i < bytes.length; i++) {
-				song[i] = bytes[i] & 0xff;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != CACHE_VERSION || !key.equals(in.readUTF())) {
+				return null;
 			}
-			int intVal1 = 0, intVal2 = 0, intVal3 = 0;
-			intVal1 = (id & 0xFF00) >> 8;
-			if ((id & 0xFF0000) == 0) {
-				intVal3 = 0xFF & ~intVal1;
-			} else {
-				intVal3 = 0xFF & ((id & 0x00FF0000) >> 16);
+			int count = in.readInt();
+			List<LyricsResult> results = new ArrayList<LyricsResult>(count);
+			for (int i = 0; i < count; i++) {
+				results.add(new LyricsResult(in.readUTF(), in.readUTF(), in.readUTF(), in
+						.readUTF(), in.readLong()));
 			}
+			return results;
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		} finally {
+			close(in);
+		}
+	}
 
-			intVal3 = intVal3 | ((0xFF & id) << 8);
-			intVal3 = intVal3 << 8;
-			intVal3 = intVal3 | (0xFF & intVal1);
-			intVal3 = intVal3 << 8;
+	private void storeCached(String key, LyricsResult[] results) {
 
-			if ((id & 0xFF000000) == 0) {
-				intVal3 = intVal3 | (0xFF & (~id));
-			} else {
-				intVal3 = intVal3 | (0xFF & (id >> 24));
+		if (mCacheDirectory == null) return;
+		if (!mCacheDirectory.exists() && !mCacheDirectory.mkdirs()) return;
+		File file = getCacheFile(key);
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(CACHE_VERSION);
+			out.writeUTF(key);
+			out.writeInt(results.length);
+			for (LyricsResult result : results) {
+				out.writeUTF(result.provider);
+				out.writeUTF(result.artist);
+				out.writeUTF(result.title);
+				out.writeUTF(result.url);
+				out.writeLong(result.duration);
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
 			}
+		} catch (IOException e) {
+			close(out);
+			temp.delete();
+			return;
+		}
+		trimCache();
+	}
 
-			int uBound = bytes.length - 1;
-			while (uBound >= 0) {
-				int c = song[uBound];
-				if (c >= 0x80) c = c - 0x100;
-				intVal1 = c + intVal2;
-				intVal2 = intVal2 << (uBound % 2 + 4);
-				intVal2 = intVal1 + intVal2;
-				uBound -= 1;
+	/**
+	 * Removes expired entries, then the oldest ones while there are too many.
+	 */
+	private void trimCache() {
+
+		File[] files = mCacheDirectory.listFiles();
+		if (files == null) return;
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			if (now - files[i].lastModified() > CACHE_TTL) {
+				files[i].delete();
+				files[i] = null;
+			} else {
+				count++;
 			}
+		}
+		if (count <= CACHE_MAX_ENTRIES) return;
 
-			uBound = 0;
-			intVal1 = 0;
+		long[] modified = new long[count];
+		count = 0;
+		for (File file : files) {
+			if (file != null) modified[count++] = file.lastModified();
+		}
+		Arrays.sort(modified);
+		long limit = modified[count - CACHE_MAX_ENTRIES];
+		for (File file : files) {
+			if (file != null && file.lastModified() < limit) file.delete();
+		}
+	}
 
-			while (uBound <= bytes.length - 1) {
-				int c = song[uBound];
-				if (c >= 128) {
-					c -= 256;
-				}
-				int intVal4 = c + intVal1;
-				intVal1 = intVal1 << (uBound % 2 + 3);
-				intVal1 = intVal1 + intVal4;
-				uBound += 1;
+	private File getCacheFile(String key) {
+
+		return new File(mCacheDirectory, Integer.toHexString(key.hashCode())
+				+ Integer.toHexString(key.length()) + CACHE_SUFFIX);
+	}
+
+	private static LatencyStats getStats(String provider) {
+
+		synchronized (sStats) {
+			LatencyStats stats = sStats.get(provider);
+			if (stats == null) {
+				stats = new LatencyStats();
+				sStats.put(provider, stats);
 			}
+			return stats;
+		}
+	}
 
-			int intVal5 = intVal2 ^ intVal3;
-			intVal5 = intVal5 + (intVal1 | id);
-			intVal5 = intVal5 * (intVal1 | intVal3);
-			intVal5 = intVal5 * (intVal2 ^ id);
+	public static void dump(PrintWriter out) {
 
-			return String.valueOf(intVal5);
-		} catch (Exception e) {
-			e.printStackTrace();
-			return "";
+		synchronized (sStats) {
+			for (Map.Entry<String, LatencyStats> entry : sStats.entrySet()) {
+				out.println("lyrics provider " + entry.getKey() + ": " + entry.getValue());
+			}
 		}
 	}
 
-	private String[] parseResult(String xml) throws XmlPullParserException, IOException {
+	private static class SearchCall implements Callable<List<LyricsResult>> {
 
-		if (xml == null || "".equals(xml)) {
-			return new String[] {};
+		private final LyricsProvider mProvider;
+		private final String mArtist, mTrack;
+
+		SearchCall(LyricsProvider provider, String artist, String track) {
+
+			mProvider = provider;
+			mArtist = artist;
+			mTrack = track;
 		}
 
-		mIdList = new ArrayList<Integer>();
-		mVerifyCodeList = new ArrayList<String>();
-		List<String> mNameList = new ArrayList<String>();
-		String TAG_RESULT = "result", TAG_LRC = "lrc";
-		String ATTR_ID = "id", ATTR_ARTIST = "artist", ATTR_TITLE = "title";
-		String verify_code = "", name = "";
-		int id = 0;
-
-		XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-		factory.setNamespaceAware(true);
-
-		XmlPullParser parser = factory.newPullParser();
-		parser.setInput(new StringReader(xml));
-
-		int eventType = parser.getEventType();
-		String tagName;
-		boolean lookingForEndOfUnknownTag = false;
-		String unknownTagName = null;
-
-		// This loop will skip to the result start tag
-		do {
-			if (eventType == XmlPullParser.START_TAG) {
-				tagName = parser.getName();
-				if (TAG_RESULT.equals(tagName)) {
-					// Go to next tag
-					eventType = parser.next();
-					break;
-				}
-				throw new RuntimeException("Expecting result, got " + tagName);
-			}
-			eventType = parser.next();
-		} while (eventType != XmlPullParser.END_DOCUMENT);
-
-		boolean reachedEndOfResult = false;
-		while (!reachedEndOfResult) {
-			switch (eventType) {
-				case XmlPullParser.START_TAG:
-					if (lookingForEndOfUnknownTag) {
-						break;
-					}
-					tagName = parser.getName();
-					if (TAG_LRC.equals(tagName)) {
-						String artist = parser
-								.getAttributeValue(parser.getNamespace(), ATTR_ARTIST);
-						String title = parser.getAttributeValue(parser.getNamespace(), ATTR_TITLE);
-						id = Integer.valueOf(parser.getAttributeValue(parser.getNamespace(),
-								ATTR_ID));
-
-						name = artist + "\n" + title;
-						verify_code = verify(artist, title, id);
-					} else {
-						lookingForEndOfUnknownTag = true;
-						unknownTagName = tagName;
-					}
-					break;
-				case XmlPullParser.END_TAG:
-					tagName = parser.getName();
-					if (lookingForEndOfUnknownTag && tagName.equals(unknownTagName)) {
-						lookingForEndOfUnknownTag = false;
-						unknownTagName = null;
-					} else if (TAG_LRC.equals(tagName)) {
-						mNameList.add(name);
-						mIdList.add(id);
-						mVerifyCodeList.add(verify_code);
-					} else if (TAG_RESULT.equals(tagName)) {
-						reachedEndOfResult = true;
-					}
-					break;
-			}
-			eventType = parser.next();
+		@Override
+		public List<LyricsResult> call() throws IOException {
+
+			return mProvider.search(mArtist, mTrack, SEARCH_TIMEOUT);
 		}
-		return mNameList.toArray(new String[mNameList.size()]);
 	}
 
-	// get text from url
-	private String get(String url, String encoding) throws UnsupportedEncodingException,
-			IOException {
+	/**
+	 * Latencies of the last searches of a provider.
+	 */
+	private static class LatencyStats {
 
-		if (url == null) {
-			return null;
+		private final static int SAMPLES = 64;
+
+		private final long[] mSamples = new long[SAMPLES];
+		private int mCount, mTimeouts, mFailures;
+
+		synchronized void add(long millis) {
+
+			mSamples[mCount++ % SAMPLES] = millis;
 		}
-		URLConnection conn = new URL(url).openConnection();
-		conn.connect();
-		String contentType = conn.getContentType();
-		if (contentType == null) contentType = encoding;
 
-		Pattern pattern = Pattern.compile("(?i)\\bcharset=([^\\s;]+)");
-		Matcher matcher = pattern.matcher(contentType);
-		String encoder = encoding;
-		if (matcher.find()) {
-			encoder = matcher.group(1);
+		synchronized void timeout() {
+
+			mTimeouts++;
 		}
 
-		BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(),
-				encoder));
-		char[] str = new char[4096];
-		StringBuilder builder = new StringBuilder();
-		for (int len; (len = reader.read(str)) > -1;) {
-			builder.append(str, 0, len);
+		synchronized void fail() {
+
+			mFailures++;
+		}
+
+		@Override
+		public synchronized String toString() {
+
+			int n = Math.min(mCount, SAMPLES);
+			long[] sorted = new long[n];
+			System.arraycopy(mSamples, 0, sorted, 0, n);
+			Arrays.sort(sorted);
+			StringBuilder builder = new StringBuilder();
+			builder.append(mCount).append(" ok, ").append(mTimeouts).append(" timeouts, ")
+					.append(mFailures).append(" failures");
+			if (n > 0) {
+				builder.append(", p50 ").append(sorted[(n - 1) / 2]).append(" ms, p90 ")
+						.append(sorted[(n - 1) * 9 / 10]).append(" ms, p99 ")
+						.append(sorted[(n - 1) * 99 / 100]).append(" ms");
+			}
+			return builder.toString();
 		}
-		return builder.toString();
 	}
 }
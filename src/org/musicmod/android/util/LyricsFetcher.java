@@ -0,0 +1,304 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads lyrics for many tracks.
+ *
+ * Tracks are read from a {@link TrackSource} page by page in ascending id
+ * order. Tracks which already have lyrics, as found by
+ * {@link LyricsLocator#resolve(String, String, String)}, are skipped, the
+ * others are searched and downloaded next to them by a fixed number of
+ * workers, and no more than a given number of searches are started per
+ * minute. A track whose search or download fails, e.g. while offline, stays
+ * before the checkpoint and is tried again when the job is resumed.
+ *
+ * The progress is a single id, see {@link #getCheckpoint()}, so a job stopped
+ * at any point can be resumed by passing it back to {@link #run(TrackSource,
+ * long)}.
+ */
+public class LyricsFetcher {
+
+	private final static int PAGE_SIZE = 100;
+
+	/**
+	 * Lowest {@link LyricsMatcher} score downloaded without asking.
+	 */
+	private final static float MIN_SCORE = 0.8f;
+
+	public static class Track {
+
+		public final long id;
+		public final String path, artist, title;
+		public final long duration;
+
+		public Track(long id, String path, String artist, String title, long duration) {
+
+			this.id = id;
+			this.path = path;
+			this.artist = artist;
+			this.title = title;
+			this.duration = duration;
+		}
+	}
+
+	public interface TrackSource {
+
+		/**
+		 * @return up to max tracks with ids greater than after, in ascending id
+		 *         order. Empty when there are no more tracks.
+		 */
+		List<Track> query(long after, int max);
+	}
+
+	public interface OnProgressListener {
+
+		/**
+		 * Called from worker threads after each track.
+		 */
+		void onProgress(LyricsFetcher fetcher);
+	}
+
+	private final LyricsDownloader mDownloader;
+	private final int mConcurrency;
+	private final long mInterval;
+	private OnProgressListener mListener;
+
+	private volatile boolean mCancelled = false;
+	private long mNextSlot;
+
+	private final TreeSet<Long> mInFlight = new TreeSet<Long>();
+	private long mLastQueued;
+	private long mStartTime;
+	private int mScanned, mSkipped, mFetched, mNotFound, mFailed;
+
+	/**
+	 * @param concurrency
+	 *            Number of tracks fetched at the same time.
+	 * @param per_minute
+	 *            Maximum number of searches started per minute.
+	 */
+	public LyricsFetcher(LyricsDownloader downloader, int concurrency, int per_minute) {
+
+		mDownloader = downloader;
+		mConcurrency = Math.max(1, concurrency);
+		mInterval = 60000L / Math.max(1, per_minute);
+	}
+
+	public void setOnProgressListener(OnProgressListener listener) {
+
+		mListener = listener;
+	}
+
+	/**
+	 * Fetches lyrics of all tracks after the given id. Blocks until all tracks
+	 * are done or the job is cancelled.
+	 *
+	 * @return true if all tracks were processed.
+	 */
+	public boolean run(TrackSource source, long after) {
+
+		synchronized (this) {
+			mLastQueued = after;
+			mStartTime = System.currentTimeMillis();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(mConcurrency);
+		// keeps a few tracks queued without reading the whole library ahead
+		Semaphore slots = new Semaphore(mConcurrency * 2);
+		try {
+			long last = after;
+			while (!mCancelled) {
+				List<Track> tracks = source.query(last, PAGE_SIZE);
+				if (tracks.isEmpty()) break;
+				for (final Track track : tracks) {
+					last = track.id;
+					if (mCancelled) break;
+					if (track.path == null || hasLyrics(track)) {
+						synchronized (this) {
+							mScanned++;
+							mSkipped++;
+							mLastQueued = track.id;
+						}
+						continue;
+					}
+					slots.acquire();
+					synchronized (this) {
+						mScanned++;
+						mInFlight.add(track.id);
+						mLastQueued = track.id;
+					}
+					executor.execute(new FetchTask(track, slots));
+				}
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				if (mCancelled) executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			mCancelled = true;
+			executor.shutdownNow();
+		}
+		return !mCancelled;
+	}
+
+	public void cancel() {
+
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+
+		return mCancelled;
+	}
+
+	/**
+	 * @return the id up to which all tracks were processed, failed ones
+	 *         excluded.
+	 */
+	public synchronized long getCheckpoint() {
+
+		return mInFlight.isEmpty() ? mLastQueued : mInFlight.first() - 1;
+	}
+
+	public synchronized int getScanned() {
+
+		return mScanned;
+	}
+
+	public synchronized int getFetched() {
+
+		return mFetched;
+	}
+
+	public synchronized int getFailed() {
+
+		return mFailed;
+	}
+
+	/**
+	 * @return tracks searched per minute since the job started.
+	 */
+	public synchronized float getThroughput() {
+
+		long elapsed = System.currentTimeMillis() - mStartTime;
+		if (elapsed <= 0) return 0;
+		return (mFetched + mNotFound + mFailed) * 60000f / elapsed;
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("lyrics fetcher: " + mScanned + " scanned, " + mSkipped + " skipped, "
+				+ mFetched + " fetched, " + mNotFound + " not found, " + mFailed + " failed, "
+				+ String.format("%.1f", getThroughput()) + " tracks/min, checkpoint "
+				+ getCheckpoint() + (mCancelled ? ", cancelled" : ""));
+	}
+
+	private static boolean hasLyrics(Track track) {
+
+		return LyricsLocator.resolve(track.path, track.artist, track.title) != null;
+	}
+
+	/**
+	 * @return path of the lyrics file next to the media file.
+	 */
+	public static String getLyricsPath(String media_path) {
+
+		int dot = media_path.lastIndexOf('.');
+		if (dot <= media_path.lastIndexOf('/')) {
+			return media_path + ".lrc";
+		}
+		return media_path.substring(0, dot) + ".lrc";
+	}
+
+	/**
+	 * Waits for the next search slot allowed by the rate limit.
+	 */
+	private void acquireRate() throws InterruptedException {
+
+		long wait;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			long slot = Math.max(now, mNextSlot);
+			mNextSlot = slot + mInterval;
+			wait = slot - now;
+		}
+		if (wait > 0) Thread.sleep(wait);
+	}
+
+	private class FetchTask implements Runnable {
+
+		private final Track mTrack;
+		private final Semaphore mSlots;
+
+		FetchTask(Track track, Semaphore slots) {
+
+			mTrack = track;
+			mSlots = slots;
+		}
+
+		@Override
+		public void run() {
+
+			boolean done = false, failed = false;
+			try {
+				if (mCancelled) return;
+				acquireRate();
+				LyricsResult[] results = mDownloader.search(mTrack.artist, mTrack.title,
+						mTrack.duration);
+				if (results.length == 0 || results[0].getScore() < MIN_SCORE) {
+					synchronized (LyricsFetcher.this) {
+						mNotFound++;
+					}
+				} else {
+					mDownloader.download(results[0], getLyricsPath(mTrack.path));
+					synchronized (LyricsFetcher.this) {
+						mFetched++;
+					}
+				}
+				done = true;
+			} catch (InterruptedIOException e) {
+				// cancelled, the track is fetched again when resumed
+			} catch (IOException e) {
+				// kept in flight, so the checkpoint doesn't pass it
+				synchronized (LyricsFetcher.this) {
+					mFailed++;
+				}
+				failed = true;
+			} catch (InterruptedException e) {
+				// cancelled, the track is fetched again when resumed
+			} finally {
+				synchronized (LyricsFetcher.this) {
+					if (done) mInFlight.remove(mTrack.id);
+				}
+				mSlots.release();
+			}
+			if ((done || failed) && mListener != null) {
+				mListener.onProgress(LyricsFetcher.this);
+			}
+		}
+	}
+}
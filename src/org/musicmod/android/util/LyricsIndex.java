@@ -0,0 +1,664 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Inverted index of lyrics text.
+ *
+ * Latin text is indexed by words, CJK text by character bigrams and single
+ * characters, so a phrase is found by intersecting the postings of its terms
+ * and then checking the candidates for the phrase itself. Queries only use
+ * the single characters when they are one CJK character long. The lines are
+ * kept in the index too, so checking a candidate doesn't read its file.
+ *
+ * The saved index is memory-mapped and never changed in place. Lyrics added
+ * later get new document numbers with postings kept in memory, replaced or
+ * removed documents are only marked deleted, and {@link #save()} merges
+ * everything into a new file.
+ *
+ * File layout (big endian):
+ *
+ * <pre>
+ * int     magic
+ * int     version
+ * int     document count
+ *         per document: long last modified, int text offset, int path
+ *         length, path in UTF-8
+ * int     term count
+ * long[]  terms, ascending
+ * int[]   postings offsets, term count + 1 entries
+ * byte[]  postings: ascending document numbers, delta coded as varints
+ * byte[]  texts: per document int length, lines in UTF-8 separated by '\n'
+ * </pre>
+ */
+public class LyricsIndex {
+
+	private final static int MAGIC = 0x4d4d4c49; // "MMLI"
+	private final static int VERSION = 3;
+
+	/**
+	 * Words are hashed into the upper half of the term space, CJK bigrams
+	 * and single characters use the lower half as they are.
+	 */
+	private final static long WORD = 1L << 32;
+
+	/**
+	 * Candidates checked for the phrase, per query.
+	 */
+	private final static int MAX_CANDIDATES = 100;
+
+	public static class Hit {
+
+		public final String path;
+		public final String line;
+
+		Hit(String path, String line) {
+
+			this.path = path;
+			this.line = line;
+		}
+	}
+
+	private final File mFile;
+
+	// saved index
+	private LongBuffer mTerms = LongBuffer.allocate(0);
+	private IntBuffer mOffsets = IntBuffer.allocate(1);
+	private ByteBuffer mPostings = ByteBuffer.allocate(0);
+	private ByteBuffer mTexts = ByteBuffer.allocate(0);
+	private int[] mTextOffsets = new int[0];
+
+	// documents, both saved and added since
+	private final ArrayList<String> mPaths = new ArrayList<String>();
+	private long[] mModified = new long[16];
+	private final BitSet mDeleted = new BitSet();
+	private final HashMap<String, Integer> mDocuments = new HashMap<String, Integer>();
+
+	// postings and texts of documents added since the index was saved
+	private final HashMap<Long, IntList> mAdded = new HashMap<Long, IntList>();
+	private final HashMap<Integer, byte[]> mAddedTexts = new HashMap<Integer, byte[]>();
+	private boolean mDirty = false;
+
+	public LyricsIndex(File file) {
+
+		mFile = file;
+	}
+
+	/**
+	 * @return last modified time of the lyrics when they were indexed, or 0
+	 *         if they aren't.
+	 */
+	public synchronized long getModified(String path) {
+
+		Integer doc = mDocuments.get(path);
+		return doc != null ? mModified[doc] : 0;
+	}
+
+	/**
+	 * @return paths of all indexed lyrics.
+	 */
+	public synchronized String[] getPaths() {
+
+		return mDocuments.keySet().toArray(new String[mDocuments.size()]);
+	}
+
+	public synchronized boolean isDirty() {
+
+		return mDirty;
+	}
+
+	/**
+	 * @return number of documents added since the index was saved.
+	 */
+	public synchronized int getAddedCount() {
+
+		return mAddedTexts.size();
+	}
+
+	/**
+	 * Adds or replaces lyrics.
+	 *
+	 * @param lines
+	 *            lines of the lyrics, without timestamps.
+	 */
+	public void put(String path, long modified, String[] lines) {
+
+		long[] terms = tokenize(lines, true);
+		byte[] text = join(lines);
+		synchronized (this) {
+			removeLocked(path);
+			int doc = mPaths.size();
+			mPaths.add(path);
+			if (doc >= mModified.length) {
+				long[] modified_new = new long[mModified.length * 2];
+				System.arraycopy(mModified, 0, modified_new, 0, mModified.length);
+				mModified = modified_new;
+			}
+			mModified[doc] = modified;
+			mDocuments.put(path, doc);
+			mAddedTexts.put(doc, text);
+			for (long term : terms) {
+				IntList postings = mAdded.get(term);
+				if (postings == null) {
+					postings = new IntList();
+					mAdded.put(term, postings);
+				}
+				postings.add(doc);
+			}
+			mDirty = true;
+		}
+	}
+
+	public synchronized void remove(String path) {
+
+		removeLocked(path);
+	}
+
+	private void removeLocked(String path) {
+
+		Integer doc = mDocuments.remove(path);
+		if (doc != null) {
+			mDeleted.set(doc);
+			mAddedTexts.remove(doc);
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * Finds lyrics containing the text. Case, full width forms, punctuation
+	 * and spaces are ignored.
+	 *
+	 * @return up to max hits, each with the first matching line.
+	 */
+	public List<Hit> query(String text, int max) {
+
+		List<Hit> hits = new ArrayList<Hit>();
+		String needle = LyricsMatcher.normalize(text);
+		long[] terms = tokenize(new String[] { text }, false);
+		if (needle.length() == 0 || terms.length == 0) return hits;
+
+		List<String> candidates = new ArrayList<String>();
+		List<byte[]> texts = new ArrayList<byte[]>();
+		synchronized (this) {
+			int[][] lists = new int[terms.length][];
+			for (int i = 0; i < terms.length; i++) {
+				lists[i] = getPostings(terms[i]);
+				if (lists[i].length == 0) return hits;
+			}
+			// start with the rarest term, the result only gets shorter
+			Arrays.sort(lists, new Comparator<int[]>() {
+
+				@Override
+				public int compare(int[] lhs, int[] rhs) {
+
+					return lhs.length - rhs.length;
+				}
+			});
+			int[] docs = lists[0];
+			int count = docs.length;
+			for (int i = 1; i < lists.length && count > 0; i++) {
+				count = intersect(docs, count, lists[i]);
+			}
+			for (int i = 0; i < count && candidates.size() < MAX_CANDIDATES; i++) {
+				if (mDeleted.get(docs[i])) continue;
+				candidates.add(mPaths.get(docs[i]));
+				texts.add(getText(docs[i]));
+			}
+		}
+
+		// terms may be apart, look for the phrase itself
+		for (int i = 0; i < candidates.size() && hits.size() < max; i++) {
+			String lyrics;
+			try {
+				lyrics = new String(texts.get(i), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			for (String line : lyrics.split("\n")) {
+				if (LyricsMatcher.normalize(line).contains(needle)) {
+					hits.add(new Hit(candidates.get(i), line));
+					break;
+				}
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @return lines of the document in UTF-8, as saved.
+	 */
+	private byte[] getText(int doc) {
+
+		byte[] text = mAddedTexts.get(doc);
+		if (text != null) return text;
+		ByteBuffer texts = mTexts.duplicate();
+		texts.position(mTextOffsets[doc]);
+		text = new byte[texts.getInt()];
+		texts.get(text);
+		return text;
+	}
+
+	private static byte[] join(String[] lines) {
+
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			if (line == null) continue;
+			if (text.length() > 0) text.append('\n');
+			text.append(line);
+		}
+		try {
+			return text.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Keeps the elements of docs that are also in other.
+	 *
+	 * @return new length of docs
+	 */
+	private static int intersect(int[] docs, int count, int[] other) {
+
+		int n = 0;
+		for (int i = 0, j = 0; i < count && j < other.length;) {
+			if (docs[i] == other[j]) {
+				docs[n++] = docs[i];
+				i++;
+				j++;
+			} else if (docs[i] < other[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return ascending document numbers of the term, including deleted ones.
+	 */
+	private int[] getPostings(long term) {
+
+		IntList added = mAdded.get(term);
+		int added_count = added != null ? added.size : 0;
+		int index = findTerm(term);
+		if (index < 0) {
+			return added_count > 0 ? added.toArray() : new int[0];
+		}
+
+		int start = mOffsets.get(index), end = mOffsets.get(index + 1);
+		// every document takes at least one byte
+		int[] docs = new int[end - start + added_count];
+		int count = 0, doc = 0;
+		for (int pos = start; pos < end;) {
+			int delta = 0, shift = 0;
+			byte b;
+			do {
+				b = mPostings.get(pos++);
+				delta |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			doc += delta;
+			docs[count++] = doc;
+		}
+		// added documents are numbered after the saved ones
+		for (int i = 0; i < added_count; i++) {
+			docs[count++] = added.data[i];
+		}
+		if (count < docs.length) {
+			int[] trimmed = new int[count];
+			System.arraycopy(docs, 0, trimmed, 0, count);
+			return trimmed;
+		}
+		return docs;
+	}
+
+	/**
+	 * @return index of the term in the saved index, or a negative value.
+	 */
+	private int findTerm(long term) {
+
+		int low = 0, high = mTerms.limit() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long value = mTerms.get(mid);
+			if (value < term) {
+				low = mid + 1;
+			} else if (value > term) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param unigrams
+	 *            whether every CJK character is a term, otherwise only lone
+	 *            ones are.
+	 * @return distinct terms of the text, ascending.
+	 */
+	static long[] tokenize(String[] lines, boolean unigrams) {
+
+		LongList terms = new LongList();
+		StringBuilder word = new StringBuilder();
+		for (String line : lines) {
+			if (line == null) continue;
+			char previous = 0;
+			int run = 0;
+			final int length = line.length();
+			for (int i = 0; i <= length; i++) {
+				char c = i < length ? LyricsMatcher.fold(line.charAt(i)) : ' ';
+				if (LyricsSplitter.isCJK(c)) {
+					addWord(terms, word);
+					if (run > 0) terms.add((long) previous << 16 | c);
+					if (unigrams) terms.add(c);
+					previous = c;
+					run++;
+					continue;
+				}
+				// a lone CJK character has no bigram to look for
+				if (run == 1 && !unigrams) terms.add(previous);
+				run = 0;
+				if (Character.isLetterOrDigit(c)) {
+					word.append(c);
+				} else if (c == '\'' || c == '\u2019') {
+					// "don't" is one word, as normalized queries see it
+				} else {
+					addWord(terms, word);
+				}
+			}
+		}
+		return terms.toSortedSet();
+	}
+
+	private static void addWord(LongList terms, StringBuilder word) {
+
+		if (word.length() == 0) return;
+		terms.add(WORD | (word.toString().hashCode() & 0xffffffffL));
+		word.setLength(0);
+	}
+
+	/**
+	 * Loads the saved index, if there is a valid one.
+	 */
+	public synchronized boolean load() {
+
+		if (!mFile.exists()) return false;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(mFile);
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return false;
+			}
+			int docs = buffer.getInt();
+			ArrayList<String> paths = new ArrayList<String>(docs);
+			long[] modified = new long[Math.max(16, docs)];
+			int[] text_offsets = new int[docs];
+			byte[] bytes = new byte[256];
+			for (int i = 0; i < docs; i++) {
+				modified[i] = buffer.getLong();
+				text_offsets[i] = buffer.getInt();
+				int length = buffer.getInt();
+				if (length > bytes.length) bytes = new byte[length];
+				buffer.get(bytes, 0, length);
+				paths.add(new String(bytes, 0, length, "UTF-8"));
+			}
+			// terms and offsets stay in the mapped file
+			int count = buffer.getInt();
+			LongBuffer terms = buffer.asLongBuffer();
+			terms.limit(count);
+			buffer.position(buffer.position() + count * 8);
+			IntBuffer offsets = buffer.asIntBuffer();
+			offsets.limit(count + 1);
+			buffer.position(buffer.position() + (count + 1) * 4);
+			ByteBuffer postings = buffer.slice();
+			postings.limit(offsets.get(count));
+			buffer.position(buffer.position() + postings.limit());
+			ByteBuffer texts = buffer.slice();
+
+			mTerms = terms;
+			mOffsets = offsets;
+			mPostings = postings;
+			mTexts = texts;
+			mTextOffsets = text_offsets;
+			mPaths.clear();
+			mPaths.addAll(paths);
+			mModified = modified;
+			mDeleted.clear();
+			mDocuments.clear();
+			for (int i = 0; i < docs; i++) {
+				mDocuments.put(paths.get(i), i);
+			}
+			mAdded.clear();
+			mAddedTexts.clear();
+			mDirty = false;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			// truncated or corrupted index
+			mFile.delete();
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes all documents into a new index file, dropping deleted ones, and
+	 * maps it.
+	 */
+	public synchronized void save() throws IOException {
+
+		if (!mDirty) return;
+
+		// new numbers of documents still alive
+		final int total = mPaths.size();
+		int[] remap = new int[total];
+		int alive = 0;
+		for (int i = 0; i < total; i++) {
+			remap[i] = mDeleted.get(i) ? -1 : alive++;
+		}
+
+		long[] added = new long[mAdded.size()];
+		int n = 0;
+		for (Long term : mAdded.keySet()) {
+			added[n++] = term;
+		}
+		Arrays.sort(added);
+
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(alive);
+			int text_offset = 0;
+			for (int i = 0; i < total; i++) {
+				if (remap[i] < 0) continue;
+				byte[] path = mPaths.get(i).getBytes("UTF-8");
+				out.writeLong(mModified[i]);
+				out.writeInt(text_offset);
+				text_offset += 4 + getText(i).length;
+				out.writeInt(path.length);
+				out.write(path);
+			}
+
+			// merge saved and added terms, postings are encoded first since
+			// terms without live documents are left out
+			LongList terms = new LongList();
+			IntList offsets = new IntList();
+			ByteArray postings = new ByteArray();
+			offsets.add(0);
+			int i = 0, j = 0;
+			final int saved = mTerms.limit();
+			while (i < saved || j < added.length) {
+				long term;
+				if (j >= added.length || (i < saved && mTerms.get(i) < added[j])) {
+					term = mTerms.get(i++);
+				} else {
+					if (i < saved && mTerms.get(i) == added[j]) i++;
+					term = added[j++];
+				}
+				int[] docs = getPostings(term);
+				int last = 0;
+				int start = postings.size;
+				for (int doc : docs) {
+					int mapped = remap[doc];
+					if (mapped < 0) continue;
+					postings.writeVarint(mapped - last);
+					last = mapped;
+				}
+				if (postings.size > start) {
+					terms.add(term);
+					offsets.add(postings.size);
+				}
+			}
+			out.writeInt(terms.size);
+			for (int k = 0; k < terms.size; k++) {
+				out.writeLong(terms.data[k]);
+			}
+			for (int k = 0; k < offsets.size; k++) {
+				out.writeInt(offsets.data[k]);
+			}
+			out.write(postings.data, 0, postings.size);
+			for (int k = 0; k < total; k++) {
+				if (remap[k] < 0) continue;
+				byte[] text = getText(k);
+				out.writeInt(text.length);
+				out.write(text);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			temp.delete();
+			throw new IOException("Unable to write " + mFile);
+		}
+		load();
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("lyrics index: " + mDocuments.size() + " documents, " + mTerms.limit()
+				+ " saved terms, " + mAdded.size() + " added terms, "
+				+ (mPaths.size() - mDocuments.size()) + " deleted, " + mPostings.limit()
+				+ " bytes of postings, " + mTexts.limit() + " bytes of text");
+	}
+
+	private static class IntList {
+
+		int[] data = new int[4];
+		int size;
+
+		void add(int value) {
+
+			if (size == data.length) {
+				int[] data_new = new int[size * 2];
+				System.arraycopy(data, 0, data_new, 0, size);
+				data = data_new;
+			}
+			data[size++] = value;
+		}
+
+		int[] toArray() {
+
+			int[] array = new int[size];
+			System.arraycopy(data, 0, array, 0, size);
+			return array;
+		}
+	}
+
+	private static class LongList {
+
+		long[] data = new long[64];
+		int size;
+
+		void add(long value) {
+
+			if (size == data.length) {
+				long[] data_new = new long[size * 2];
+				System.arraycopy(data, 0, data_new, 0, size);
+				data = data_new;
+			}
+			data[size++] = value;
+		}
+
+		long[] toSortedSet() {
+
+			Arrays.sort(data, 0, size);
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (n == 0 || data[i] != data[n - 1]) data[n++] = data[i];
+			}
+			long[] set = new long[n];
+			System.arraycopy(data, 0, set, 0, n);
+			return set;
+		}
+	}
+
+	private static class ByteArray {
+
+		byte[] data = new byte[65536];
+		int size;
+
+		void writeVarint(int value) {
+
+			if (size + 5 > data.length) {
+				byte[] data_new = new byte[data.length * 2];
+				System.arraycopy(data, 0, data_new, 0, size);
+				data = data_new;
+			}
+			while ((value & ~0x7f) != 0) {
+				data[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[size++] = (byte) value;
+		}
+	}
+}
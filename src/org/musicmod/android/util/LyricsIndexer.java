@@ -0,0 +1,181 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.List;
+
+import org.musicmod.android.Constants;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.provider.MediaStore;
+
+/**
+ * Keeps the {@link LyricsIndex} of the process up to date.
+ *
+ * The index is loaded on first use and then brought up to date in background
+ * by comparing modification times of the lyrics of all tracks. Lyrics written
+ * or deleted later are updated one by one, see
+ * {@link #notifyChanged(File)}. Changes are saved after a short delay.
+ */
+public class LyricsIndexer implements Constants {
+
+	private final static int REFRESH = 1;
+	private final static int UPDATE = 2;
+	private final static int SAVE = 3;
+
+	private final static long SAVE_DELAY = 10000;
+	// lyrics added to the index are kept in memory until it is saved
+	private final static int SAVE_BATCH = 1000;
+
+	private static LyricsIndexer sInstance;
+
+	private final Context mContext;
+	private final LyricsIndex mIndex;
+	private final Handler mHandler;
+	private final LyricsParser mParser = new LyricsParser();
+
+	public static synchronized LyricsIndexer getInstance(Context context) {
+
+		if (sInstance == null) {
+			sInstance = new LyricsIndexer(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Updates the index after lyrics were written or deleted. Does nothing if
+	 * the index isn't used in this process, it is refreshed when loaded.
+	 */
+	public static void notifyChanged(File lyrics) {
+
+		LyricsIndexer indexer;
+		synchronized (LyricsIndexer.class) {
+			indexer = sInstance;
+		}
+		if (indexer != null) {
+			indexer.mHandler.obtainMessage(UPDATE, lyrics).sendToTarget();
+		}
+	}
+
+	private LyricsIndexer(Context context) {
+
+		mContext = context;
+		mIndex = new LyricsIndex(new File(context.getCacheDir(), "lyrics.idx"));
+		HandlerThread thread = new HandlerThread("LyricsIndexer",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper()) {
+
+			@Override
+			public void handleMessage(Message msg) {
+
+				switch (msg.what) {
+					case REFRESH:
+						mIndex.load();
+						refresh();
+						save();
+						break;
+					case UPDATE:
+						update((File) msg.obj);
+						removeMessages(SAVE);
+						sendEmptyMessageDelayed(SAVE, SAVE_DELAY);
+						break;
+					case SAVE:
+						save();
+						break;
+				}
+			}
+		};
+		mHandler.sendEmptyMessage(REFRESH);
+	}
+
+	/**
+	 * @see LyricsIndex#query(String, int)
+	 */
+	public List<LyricsIndex.Hit> query(String text, int max) {
+
+		return mIndex.query(text, max);
+	}
+
+	private void refresh() {
+
+		HashSet<String> seen = new HashSet<String>();
+		Cursor c = MusicUtils.query(mContext, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+				new String[] { MediaStore.Audio.Media.DATA, MediaStore.Audio.Media.ARTIST,
+						MediaStore.Audio.Media.TITLE }, MediaStore.Audio.Media.IS_MUSIC + "=1",
+				null, null);
+		if (c == null) return;
+		try {
+			while (c.moveToNext()) {
+				String data = c.getString(0);
+				if (data == null) continue;
+				File file = LyricsLocator.resolve(data, c.getString(1), c.getString(2));
+				if (file == null) continue;
+				long modified = file.lastModified();
+				if (modified == 0) continue;
+				seen.add(file.getPath());
+				if (mIndex.getModified(file.getPath()) != modified) {
+					update(file);
+					if (mIndex.getAddedCount() >= SAVE_BATCH) save();
+				}
+			}
+		} finally {
+			c.close();
+		}
+		for (String path : mIndex.getPaths()) {
+			if (!seen.contains(path)) mIndex.remove(path);
+		}
+	}
+
+	private void update(File file) {
+
+		if (mParser.parseLyrics(file) == LYRICS_STATUS_OK) {
+			mIndex.put(file.getPath(), file.lastModified(), mParser.getAllLyrics());
+		} else {
+			mIndex.remove(file.getPath());
+		}
+	}
+
+	private void save() {
+
+		try {
+			mIndex.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void dump(PrintWriter out) {
+
+		LyricsIndexer indexer;
+		synchronized (LyricsIndexer.class) {
+			indexer = sInstance;
+		}
+		if (indexer != null) {
+			indexer.mIndex.dump(out);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+import org.musicmod.android.Constants;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+
+/**
+ * Finds lyrics files of tracks without touching the file system.
+ *
+ * Directories of all tracks and the central {@link #LYRICS_FOLDER} are listed
+ * once and their lyrics files are kept by lower case name, so a lookup is a
+ * couple of hash lookups. Lyrics are found next to the track with the same
+ * name, or in the central folder either with the same name or named
+ * "artist - title.lrc", ignoring case.
+ *
+ * The listing is refreshed in background by {@link #refresh()} when storage
+ * is mounted or the media scanner finished, never by a lookup, and only
+ * directories whose modification time changed are listed again.
+ * {@link #rescan(String)} lists the directory of a single track right away.
+ * Tracks not listed yet fall back to probing the files, see
+ * {@link #resolve(String, String, String)}, which is also used by code looking
+ * up lyrics of many tracks once.
+ */
+public class LyricsLocator implements Constants {
+
+	private final static int REFRESH = 1;
+	private final static String SUFFIX = ".lrc";
+	private final static String UNKNOWN_STRING = "<unknown>";
+
+	private static class Track {
+
+		final String path, directory;
+		// lower case lyrics file names
+		final String name, tag;
+
+		Track(String path, String artist, String title) {
+
+			File file = new File(path);
+			this.path = path;
+			this.directory = file.getParent();
+			this.name = getName(file).toLowerCase();
+			String tag = getTag(artist, title);
+			this.tag = tag != null ? tag.toLowerCase() : null;
+		}
+	}
+
+	private static class Directory {
+
+		final long modified;
+		final int sequence;
+		// lower case name to actual name
+		final HashMap<String, String> lyrics = new HashMap<String, String>();
+
+		Directory(File directory, int sequence) {
+
+			this.modified = directory.lastModified();
+			this.sequence = sequence;
+			String[] names = directory.list();
+			if (names == null) return;
+			for (String name : names) {
+				String lower = name.toLowerCase();
+				if (lower.endsWith(SUFFIX)) {
+					lyrics.put(lower, name);
+				}
+			}
+		}
+	}
+
+	private final Context mContext;
+	private final File mFolder;
+	private final Handler mHandler;
+
+	private HashMap<Long, Track> mTracks = new HashMap<Long, Track>();
+	private HashMap<String, Directory> mDirectories = new HashMap<String, Directory>();
+	private boolean mReady = false;
+	private int mSequence = 0;
+
+	private int mHits, mProbes, mListed;
+	private long mRefreshTime;
+
+	public LyricsLocator(Context context) {
+
+		mContext = context;
+		mFolder = getFolder();
+		HandlerThread thread = new HandlerThread("LyricsLocator",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper()) {
+
+			@Override
+			public void handleMessage(Message msg) {
+
+				switch (msg.what) {
+					case REFRESH:
+						refreshNow();
+						break;
+				}
+			}
+		};
+		refresh();
+	}
+
+	/**
+	 * @return the lyrics file of the track, or null if it has none.
+	 */
+	public File locate(long id, String media_path) {
+
+		synchronized (this) {
+			Track track = mReady ? mTracks.get(id) : null;
+			if (track != null && track.path.equals(media_path)) {
+				mHits++;
+				String path = resolve(track);
+				return path != null ? new File(path) : null;
+			}
+			mProbes++;
+		}
+		// not listed yet
+		return resolve(media_path, null, null);
+	}
+
+	/**
+	 * Finds the lyrics file of a track by probing the files the listing would
+	 * be looked up for, in the same order. Case is only ignored where the file
+	 * system ignores it, as external storage does.
+	 *
+	 * @param artist
+	 *            artist of the track, or null if only files named after the
+	 *            track file are looked for.
+	 * @return the lyrics file, or null if the track has none.
+	 */
+	public static File resolve(String media_path, String artist, String title) {
+
+		File file = new File(media_path);
+		String name = getName(file);
+		File lyrics = new File(file.getParent(), name);
+		if (lyrics.exists()) return lyrics;
+
+		File folder = getFolder();
+		lyrics = new File(folder, name);
+		if (lyrics.exists()) return lyrics;
+		String tag = getTag(artist, title);
+		if (tag == null) return null;
+		lyrics = new File(folder, tag);
+		return lyrics.exists() ? lyrics : null;
+	}
+
+	/**
+	 * @return the central lyrics folder.
+	 */
+	public static File getFolder() {
+
+		return new File(Environment.getExternalStorageDirectory(), LYRICS_FOLDER);
+	}
+
+	/**
+	 * @return name of the lyrics file named after the track file.
+	 */
+	private static String getName(File file) {
+
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0 ? name.substring(0, dot) : name) + SUFFIX;
+	}
+
+	/**
+	 * @return "artist - title.lrc", or null if the artist isn't known.
+	 */
+	private static String getTag(String artist, String title) {
+
+		if (artist == null || title == null || UNKNOWN_STRING.equals(artist)) {
+			return null;
+		}
+		return artist + " - " + title + SUFFIX;
+	}
+
+	/**
+	 * Lists the directory of a track and the central folder again right away,
+	 * after lyrics were written or deleted.
+	 */
+	public void rescan(String media_path) {
+
+		String parent = new File(media_path).getParent();
+		int sequence;
+		synchronized (this) {
+			sequence = mSequence += 2;
+		}
+		Directory directory = parent != null ? new Directory(new File(parent), sequence - 1)
+				: null;
+		Directory folder = new Directory(mFolder, sequence);
+		synchronized (this) {
+			// the map may be read by a refresh in progress, don't modify it
+			HashMap<String, Directory> directories = new HashMap<String, Directory>(
+					mDirectories);
+			if (directory != null) directories.put(parent, directory);
+			directories.put(mFolder.getPath(), folder);
+			mDirectories = directories;
+		}
+	}
+
+	/**
+	 * Refreshes the listing in background, e.g. after the media scanner ran.
+	 */
+	public void refresh() {
+
+		mHandler.removeMessages(REFRESH);
+		mHandler.sendEmptyMessage(REFRESH);
+	}
+
+	private String resolve(Track track) {
+
+		Directory directory = mDirectories.get(track.directory);
+		String name = directory != null ? directory.lyrics.get(track.name) : null;
+		if (name != null) return new File(track.directory, name).getPath();
+
+		Directory folder = mDirectories.get(mFolder.getPath());
+		if (folder == null) return null;
+		name = folder.lyrics.get(track.name);
+		if (name == null && track.tag != null) name = folder.lyrics.get(track.tag);
+		return name != null ? new File(mFolder, name).getPath() : null;
+	}
+
+	private void refreshNow() {
+
+		long start = SystemClock.elapsedRealtime();
+
+		HashMap<Long, Track> tracks = new HashMap<Long, Track>();
+		Cursor c = MusicUtils.query(mContext, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+				new String[] { MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATA,
+						MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.TITLE },
+				MediaStore.Audio.Media.IS_MUSIC + "=1", null, null);
+		if (c == null) return;
+		try {
+			while (c.moveToNext()) {
+				String path = c.getString(1);
+				if (path == null) continue;
+				tracks.put(c.getLong(0), new Track(path, c.getString(2), c.getString(3)));
+			}
+		} finally {
+			c.close();
+		}
+
+		HashMap<String, Directory> previous;
+		synchronized (this) {
+			previous = mDirectories;
+		}
+		HashMap<String, Directory> directories = new HashMap<String, Directory>();
+		int listed = 0;
+		for (Track track : tracks.values()) {
+			if (track.directory == null || directories.containsKey(track.directory)) continue;
+			if (list(track.directory, previous, directories)) listed++;
+		}
+		if (list(mFolder.getPath(), previous, directories)) listed++;
+
+		synchronized (this) {
+			// keep directories rescanned while we were listing
+			for (String path : directories.keySet().toArray(new String[directories.size()])) {
+				Directory current = mDirectories.get(path);
+				if (current != null && current.sequence > directories.get(path).sequence) {
+					directories.put(path, current);
+				}
+			}
+			mTracks = tracks;
+			mDirectories = directories;
+			mReady = true;
+			mListed = listed;
+			mRefreshTime = SystemClock.elapsedRealtime() - start;
+		}
+	}
+
+	/**
+	 * @return true if the directory was listed, false if the previous listing
+	 *         is still up to date.
+	 */
+	private boolean list(String path, HashMap<String, Directory> previous,
+			HashMap<String, Directory> directories) {
+
+		File file = new File(path);
+		Directory directory = previous.get(path);
+		long modified = file.lastModified();
+		if (directory != null && modified != 0 && directory.modified == modified) {
+			directories.put(path, directory);
+			return false;
+		}
+		int sequence;
+		synchronized (this) {
+			sequence = ++mSequence;
+		}
+		directories.put(path, new Directory(file, sequence));
+		return true;
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("lyrics locator: " + mTracks.size() + " tracks, " + mDirectories.size()
+				+ " directories, " + mListed + " listed in " + mRefreshTime
+				+ " ms by last refresh, " + mHits + " hits, " + mProbes + " probes");
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.util.Arrays;
+
+/**
+ * Scores lyrics search results against a local track.
+ *
+ * Names are compared by the Dice coefficient of their character bigrams after
+ * folding full width forms, lower casing and dropping punctuation and spaces,
+ * which works the same for CJK titles and for latin ones. Titles are also
+ * compared without bracketed parts and " - " suffixes, so "Song (Live)" and
+ * "Song - Remastered" still match "Song".
+ * Bigram signatures of the track are computed once, so scoring a result is a
+ * merge of two short sorted arrays.
+ */
+public class LyricsMatcher {
+
+	private final static float TITLE_WEIGHT = 0.7f;
+	private final static float ARTIST_WEIGHT = 0.3f;
+	private final static float MAX_DURATION_PENALTY = 0.3f;
+	private final static String UNKNOWN_STRING = "<unknown>";
+
+	private final int[] mTitle, mBareTitle, mArtist;
+	private final long mDuration;
+
+	/**
+	 * @param duration
+	 *            Duration of the track in milliseconds, or 0 if unknown.
+	 */
+	public LyricsMatcher(String artist, String title, long duration) {
+
+		mTitle = signature(normalize(title));
+		mBareTitle = signature(normalize(stripExtras(title)));
+		// MediaStore's placeholder for a missing tag
+		mArtist = signature(UNKNOWN_STRING.equals(artist) ? "" : normalize(artist));
+		mDuration = duration;
+	}
+
+	/**
+	 * @return similarity between 0 and 1.
+	 */
+	public float score(LyricsResult result) {
+
+		float title = Math.max(dice(mTitle, signature(normalize(result.title))),
+				dice(mBareTitle, signature(normalize(stripExtras(result.title)))));
+		float score;
+		if (mArtist.length == 0 || result.artist.length() == 0) {
+			score = title;
+		} else {
+			score = TITLE_WEIGHT * title + ARTIST_WEIGHT
+					* dice(mArtist, signature(normalize(result.artist)));
+		}
+		if (mDuration > 0 && result.duration > 0) {
+			float diff = Math.abs(mDuration - result.duration)
+					/ (float) Math.max(mDuration, result.duration);
+			score -= Math.min(MAX_DURATION_PENALTY, diff);
+		}
+		return Math.max(0, score);
+	}
+
+	/**
+	 * Folds full width forms to ASCII, lower cases and drops punctuation and
+	 * white space.
+	 */
+	public static String normalize(String source) {
+
+		if (source == null) return "";
+		final int length = source.length();
+		StringBuilder builder = null;
+		for (int i = 0; i < length; i++) {
+			char c = source.charAt(i);
+			char folded = fold(c);
+			boolean keep = !Character.isWhitespace(folded) && !isPunctuation(folded);
+			if (builder == null) {
+				if (keep && folded == c) continue;
+				builder = new StringBuilder(length);
+				builder.append(source, 0, i);
+			}
+			if (keep) builder.append(folded);
+		}
+		return builder == null ? source : builder.toString();
+	}
+
+	static char fold(char c) {
+
+		if (c >= '\uFF01' && c <= '\uFF5E') {
+			c = (char) (c - 0xFEE0);
+		} else if (c == '\u3000') {
+			return ' ';
+		}
+		if (c < 0x80) {
+			return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+		}
+		return Character.toLowerCase(c);
+	}
+
+	static boolean isPunctuation(char c) {
+
+		switch (Character.getType(c)) {
+			case Character.CONNECTOR_PUNCTUATION:
+			case Character.DASH_PUNCTUATION:
+			case Character.START_PUNCTUATION:
+			case Character.END_PUNCTUATION:
+			case Character.INITIAL_QUOTE_PUNCTUATION:
+			case Character.FINAL_QUOTE_PUNCTUATION:
+			case Character.OTHER_PUNCTUATION:
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes text in brackets, like "(Live)" or "[Remix]", and after " - ".
+	 */
+	static String stripExtras(String source) {
+
+		if (source == null) return "";
+		int end = source.indexOf(" - ");
+		if (end <= 0) end = source.length();
+		StringBuilder builder = new StringBuilder(end);
+		int depth = 0;
+		for (int i = 0; i < end; i++) {
+			char c = source.charAt(i);
+			switch (c) {
+				case '(':
+				case '[':
+				case '\uFF08':
+				case '\u3010':
+					depth++;
+					break;
+				case ')':
+				case ']':
+				case '\uFF09':
+				case '\u3011':
+					if (depth > 0) depth--;
+					break;
+				default:
+					if (depth == 0) builder.append(c);
+			}
+		}
+		// don't strip a title down to nothing
+		return builder.length() > 0 ? builder.toString() : source;
+	}
+
+	/**
+	 * @return sorted bigrams of a normalized string, or the single character
+	 *         of a one character string.
+	 */
+	static int[] signature(String normalized) {
+
+		final int length = normalized.length();
+		if (length == 0) return new int[0];
+		if (length == 1) return new int[] { normalized.charAt(0) };
+		int[] grams = new int[length - 1];
+		for (int i = 0; i < grams.length; i++) {
+			grams[i] = normalized.charAt(i) << 16 | normalized.charAt(i + 1);
+		}
+		Arrays.sort(grams);
+		return grams;
+	}
+
+	/**
+	 * @return Dice coefficient of two sorted multisets.
+	 */
+	static float dice(int[] a, int[] b) {
+
+		if (a.length == 0 || b.length == 0) return 0;
+		int common = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] == b[j]) {
+				common++;
+				i++;
+				j++;
+			} else if (a[i] < b[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return 2f * common / (a.length + b.length);
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * Lyrics offsets set by the user, by audio id.
+ *
+ * Offsets are applied by {@link LyricsParser#setOffset(long)} when lyrics are
+ * looked up, so changing one neither rewrites the lyrics file nor invalidates
+ * the {@link LyricsCache}. The table is a {@link SortedIdStore} with one
+ * column of offsets in milliseconds.
+ */
+public class LyricsOffsetStore extends SortedIdStore {
+
+	private final static int MAGIC = 0x4d4d4c4f; // "MMLO"
+	private final static int VERSION = 1;
+
+	private final static int OFFSET = 0;
+
+	public LyricsOffsetStore(File file) {
+
+		super(file, MAGIC, VERSION, int.class);
+	}
+
+	/**
+	 * @return offset of the track in milliseconds, 0 if none was set.
+	 */
+	public synchronized int get(long id) {
+
+		int index = indexOf(id);
+		return index >= 0 ? getInt(OFFSET, index) : 0;
+	}
+
+	/**
+	 * Sets the offset of a track, 0 removes it. Call {@link #save()} to
+	 * persist changes.
+	 */
+	public synchronized void put(long id, int offset) {
+
+		int index = indexOf(id);
+		if (index >= 0) {
+			if (offset != 0) {
+				setInt(OFFSET, index, offset);
+			} else {
+				remove(index);
+			}
+		} else if (offset != 0) {
+			setInt(OFFSET, insert(id), offset);
+		}
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("lyrics offsets: " + size() + " tracks" + (isDirty() ? ", unsaved" : ""));
+	}
+}
@@ -1,160 +1,719 @@
-/*
- *              Copyright (C) 2011 The MusicMod Project
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *            http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package org.musicmod.android.util;
-
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.mozilla.universalchardet.UniversalDetector;
-import org.musicmod.android.Constants;
-
-public class LyricsParser implements Constants {
-
-	private HashMap<Long, String> lyricsMap = new HashMap<Long, String>();
-	private ArrayList<Long> mTimestampList = new ArrayList<Long>();
-	private ArrayList<String> mLyricsList = new ArrayList<String>();
-	private long offset = 0;
-
-	public LyricsParser() {
-
-	}
-
-	private void parseLyricsString(String lyrics) {
-
-		Pattern pattern, patternOffset, patternTimestamp;
-
-		// lyrics offset tag
-		patternOffset = Pattern.compile("\\[offset:(\\d+)\\]", Pattern.CASE_INSENSITIVE);
-		Matcher matcherOffset = patternOffset.matcher(lyrics);
-		if (matcherOffset.find()) {
-			offset = Long.valueOf(matcherOffset.group(1));
-		}
-
-		// lyrics timestamp tag
-		pattern = Pattern.compile("^(\\[[0-9:\\.\\[\\]]+\\])+(.*)$", Pattern.MULTILINE);
-
-		// split each timestamp tag
-		patternTimestamp = Pattern.compile("\\[(\\d+):([0-9\\.]+)\\]");
-		Matcher matcher = pattern.matcher(lyrics);
-		while (matcher.find()) {
-			Matcher matcherTimestamp = patternTimestamp.matcher(matcher.group(1));
-			while (matcherTimestamp.find()) {
-				String content = matcher.group(2).trim();
-				if (content.length() == 0) continue;
-				long timestamp = Long.valueOf(matcherTimestamp.group(1)) * 60000
-						+ (long) (Float.valueOf(matcherTimestamp.group(2)) * 1000) + offset;
-				mTimestampList.add(timestamp);
-				lyricsMap.put(timestamp, content);
-			}
-		}
-		// Sort timestamp tag
-		Collections.sort(mTimestampList);
-
-		for (int i = 0; i < mTimestampList.size(); i++) {
-			mLyricsList.add(lyricsMap.get(mTimestampList.get(i)));
-		}
-
-	}
-
-	public int parseLyrics(String path) {
-
-		return parseLyrics(new File(path));
-	}
-
-	public int parseLyrics(File file) {
-
-		lyricsMap = new HashMap<Long, String>();
-		mTimestampList = new ArrayList<Long>();
-		mLyricsList = new ArrayList<String>();
-
-		if (!file.exists()) {
-			return LYRICS_STATUS_NOT_FOUND;
-		}
-
-		try {
-			BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-			ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-			byte[] temp = new byte[1024];
-			int size = 0;
-			while ((size = in.read(temp)) != -1) {
-				out.write(temp, 0, size);
-			}
-			in.close();
-			byte[] content = out.toByteArray();
-			String encoding;
-			UniversalDetector detector = new UniversalDetector(null);
-			detector.handleData(content, 0, content.length);
-			detector.dataEnd();
-			encoding = detector.getDetectedCharset();
-			if (encoding == null) encoding = "UTF-8";
-
-			parseLyricsString(new String(content, 0, content.length, encoding));
-		} catch (IOException e) {
-			e.printStackTrace();
-			return LYRICS_STATUS_INVALID;
-		}
-		if (lyricsMap.size() == 0) {
-			return LYRICS_STATUS_INVALID;
-		}
-		return LYRICS_STATUS_OK;
-	}
-
-	public ArrayList<String> getAllLyrics() {
-
-		return mLyricsList;
-	}
-
-	public ArrayList<Long> getAllTimestamp() {
-
-		return mTimestampList;
-	}
-
-	public int getId(long timestamp) {
-
-		for (int i = mTimestampList.size() - 1; i >= 0; i--) {
-
-			if (mTimestampList.get(i) <= timestamp) {
-				return i;
-			}
-
-		}
-
-		return 0;
-	}
-
-	public long getTimestamp(int id) {
-
-		if (mTimestampList.size() > 0) {
-			if (id >= mTimestampList.size()) {
-				return mTimestampList.get(mTimestampList.size() - 1);
-			}
-			if (id < 0) {
-				return 0;
-			}
-			return mTimestampList.get(id);
-		}
-		return 0;
-	}
-}
+/*
+ *              Copyright (C) 2011 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mozilla.universalchardet.UniversalDetector;
+import org.musicmod.android.Constants;
+
+/**
+ * LRC parser.
+ *
+ * The file is scanned once, char by char. Lyrics are kept as a structure of
+ * primitive arrays: every line points into one backing string holding the
+ * text of all lyrics lines, and lines sharing a timestamp (e.g. original and
+ * translation) form a group. Lyrics ids, as used by {@link #getId(long)} and
+ * {@link #getTimestamp(int)}, are group indices; group <code>i</code> holds
+ * lines <code>[getGroupFirst()[i], getGroupFirst()[i + 1])</code>.
+ *
+ * Word timing of enhanced LRC (<code>[mm:ss.xx] &lt;mm:ss.xx&gt; word
+ * &lt;mm:ss.xx&gt; word</code>) is stripped from the text and kept in
+ * {@link #getAllWords()}, one packed long per word:
+ * <code>(timestamp &lt;&lt; 16) | char offset in line</code>. Words of line
+ * <code>i</code> are <code>[getLineWords()[i], getLineWords()[i + 1])</code>.
+ */
+public class LyricsParser implements Constants {
+
+	private final static int MAX_ENTRIES = 1 << 20;
+	private final static int CURSOR_MAX_STEPS = 8;
+	private final static int READ_CHUNK = 4096;
+	private final static int MAX_CHARSET_ENTRIES = 64;
+	private final static int MAX_SHARED_BUFFER = 256 * 1024;
+	private final static int MAX_FILE_LENGTH = 16 * 1024 * 1024;
+
+	// Read buffer shared by all parsers, grown to the largest file seen up to
+	// MAX_SHARED_BUFFER. Taken while a file is read, null then. Guarded by
+	// the class lock.
+	private static byte[] sBuffer = new byte[READ_CHUNK * 4];
+
+	// Charset detected for the last files of each directory, most recently
+	// used last. Files in one directory almost always share an encoding.
+	// Guarded by the class lock.
+	private static final LinkedHashMap<String, String> sCharsets = new LinkedHashMap<String, String>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+
+			return size() > MAX_CHARSET_ENTRIES;
+		}
+	};
+
+	private String mText = "";
+	private long[] mTimestamps = new long[0];
+	private int[] mGroupFirst = new int[1];
+	private int[] mLineStart = new int[0];
+	private int[] mLineEnd = new int[0];
+	private long[] mWords = new long[0];
+	private int[] mLineWords = new int[1];
+	private int mCount = 0;
+	private int mLineCount = 0;
+	private long mTagOffset = 0;
+	private volatile long mOffset = 0;
+	private int mCursor = 0;
+
+	public LyricsParser() {
+
+	}
+
+	/**
+	 * Tokenizes lyrics text. Only lines starting with one or more
+	 * <code>[mm:ss.xx]</code> tags are taken, other tags such as
+	 * <code>[ar:]</code> are skipped, except <code>[offset:]</code>.
+	 */
+	private void parseLyricsString(String lyrics) {
+
+		final int length = lyrics.length();
+		StringBuilder text = new StringBuilder(length);
+		long[] timestamps = new long[64];
+		int[] lines = new int[64];
+		int count = 0;
+		StringBuilder line = null;
+		long[] words = new long[0];
+		int[] word_ranges = new int[64];
+		int word_count = 0;
+
+		int pos = length > 0 && lyrics.charAt(0) == '\uFEFF' ? 1 : 0;
+		while (pos < length) {
+			int eol = pos;
+			while (eol < length && lyrics.charAt(eol) != '\n' && lyrics.charAt(eol) != '\r') {
+				eol++;
+			}
+
+			// parse leading tags
+			int tagsStart = count;
+			int cur = pos;
+			while (cur < eol && lyrics.charAt(cur) == '[') {
+				int close = lyrics.indexOf(']', cur);
+				if (close < 0 || close >= eol) break;
+				long timestamp = parseTimestamp(lyrics, cur + 1, close);
+				if (timestamp >= 0) {
+					if (count == timestamps.length) {
+						timestamps = copyOf(timestamps, count * 2);
+					}
+					timestamps[count++] = timestamp;
+				} else if (count == tagsStart) {
+					parseOffset(lyrics, cur + 1, close);
+					break;
+				} else {
+					break;
+				}
+				cur = close + 1;
+			}
+
+			if (count > tagsStart) {
+				CharSequence content = lyrics;
+				int start = cur, end = eol;
+				int words_start = word_count;
+				int tag = cur;
+				while (tag < eol && lyrics.charAt(tag) != '<') {
+					tag++;
+				}
+				if (tag < eol) {
+					// strip word timing tags, times are kept relative to the line
+					if (line == null) {
+						line = new StringBuilder();
+					} else {
+						line.setLength(0);
+					}
+					long line_time = timestamps[tagsStart];
+					for (int i = cur; i < eol; i++) {
+						char c = lyrics.charAt(i);
+						if (c == '<') {
+							int close = i + 1;
+							while (close < eol && lyrics.charAt(close) != '>') {
+								close++;
+							}
+							long time = close < eol ? parseTimestamp(lyrics, i + 1, close) : -1;
+							if (time >= 0 && line.length() > 0xFFFF) {
+								// the word doesn't fit in 16 bits, the line is shown unsplit
+								i = close;
+								continue;
+							}
+							if (time >= 0) {
+								if (word_count == words.length) {
+									words = copyOf(words, Math.max(64, word_count * 2));
+								}
+								long relative = time > line_time ? time - line_time : 0;
+								words[word_count++] = relative << 16 | line.length();
+								i = close;
+								continue;
+							}
+						}
+						line.append(c);
+					}
+					content = line;
+					start = 0;
+					end = line.length();
+				}
+
+				// trim content
+				if (content == lyrics) {
+					while (start < end && lyrics.charAt(start) <= ' ') {
+						start++;
+					}
+					while (end > start && lyrics.charAt(end - 1) <= ' ') {
+						end--;
+					}
+				} else {
+					while (start < end && line.charAt(start) <= ' ') {
+						start++;
+					}
+					while (end > start && line.charAt(end - 1) <= ' ') {
+						end--;
+					}
+				}
+				if (start == end || count > MAX_ENTRIES) {
+					count = tagsStart;
+					word_count = words_start;
+				} else {
+					int line_start = text.length();
+					text.append(content, start, end);
+					for (int i = words_start; i < word_count; i++) {
+						long word_offset = (words[i] & 0xFFFF) - start;
+						if (word_offset < 0) word_offset = 0;
+						if (word_offset > end - start) word_offset = end - start;
+						words[i] = words[i] & ~0xFFFFL | word_offset;
+					}
+					if (lines.length < count * 2) {
+						lines = copyOf(lines, Math.max(lines.length * 2, count * 2));
+						word_ranges = copyOf(word_ranges, lines.length);
+					}
+					for (int i = tagsStart; i < count; i++) {
+						lines[i * 2] = line_start;
+						lines[i * 2 + 1] = text.length();
+						word_ranges[i * 2] = words_start;
+						word_ranges[i * 2 + 1] = word_count;
+					}
+				}
+			}
+			pos = eol + 1;
+		}
+
+		// Sort timestamp tag. Pack timestamp and entry index into one long so
+		// a primitive sort keeps entries with equal timestamps in file order.
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = (timestamps[i] << 20) | i;
+		}
+		Arrays.sort(keys);
+
+		mText = text.toString();
+		mLineStart = new int[count];
+		mLineEnd = new int[count];
+		mLineWords = new int[count + 1];
+		long[] group_timestamps = new long[count];
+		int[] group_first = new int[count + 1];
+		int groups = 0;
+		int total_words = 0;
+		for (int i = 0; i < count; i++) {
+			int index = (int) (keys[i] & (MAX_ENTRIES - 1));
+			long timestamp = (keys[i] >> 20) + mTagOffset;
+			if (groups == 0 || group_timestamps[groups - 1] != timestamp) {
+				group_timestamps[groups] = timestamp;
+				group_first[groups] = i;
+				groups++;
+			}
+			mLineStart[i] = lines[index * 2];
+			mLineEnd[i] = lines[index * 2 + 1];
+			mLineWords[i] = total_words;
+			total_words += word_ranges[index * 2 + 1] - word_ranges[index * 2];
+		}
+		mLineWords[count] = total_words;
+		group_first[groups] = count;
+		mTimestamps = groups == count ? group_timestamps : copyOf(group_timestamps, groups);
+		mGroupFirst = groups == count ? group_first : copyOf(group_first, groups + 1);
+
+		// lines repeated with several timestamps get their own copy of the words
+		mWords = new long[total_words];
+		for (int i = 0, w = 0; i < count; i++) {
+			int index = (int) (keys[i] & (MAX_ENTRIES - 1));
+			long timestamp = (keys[i] >> 20) + mTagOffset;
+			for (int k = word_ranges[index * 2]; k < word_ranges[index * 2 + 1]; k++) {
+				long time = timestamp + (words[k] >>> 16);
+				mWords[w++] = (time > 0 ? time : 0) << 16 | (words[k] & 0xFFFF);
+			}
+		}
+		mCount = groups;
+		mLineCount = count;
+	}
+
+	/**
+	 * Parses <code>mm:ss</code>, <code>mm:ss.x</code> and variants between
+	 * the brackets.
+	 *
+	 * @return timestamp in milliseconds, or -1 if this is not a timestamp tag
+	 */
+	private static long parseTimestamp(String s, int start, int end) {
+
+		long minutes = 0, seconds = 0, millis = 0;
+		int i = start;
+		int digits = 0;
+		while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			minutes = minutes * 10 + s.charAt(i) - '0';
+			i++;
+			digits++;
+		}
+		if (digits == 0 || digits > 6 || i >= end || s.charAt(i) != ':') return -1;
+		i++;
+		digits = 0;
+		while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			seconds = seconds * 10 + s.charAt(i) - '0';
+			i++;
+			digits++;
+		}
+		if (digits == 0 || digits > 6) return -1;
+		if (i < end) {
+			// some files use "mm:ss:xx" instead of "mm:ss.xx"
+			if (s.charAt(i) != '.' && s.charAt(i) != ':') return -1;
+			i++;
+			int scale = 100;
+			while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				millis += (s.charAt(i) - '0') * scale;
+				scale /= 10;
+				i++;
+			}
+			if (i < end) return -1;
+		}
+		return minutes * 60000 + seconds * 1000 + millis;
+	}
+
+	private void parseOffset(String s, int start, int end) {
+
+		final String tag = "offset:";
+		if (end - start <= tag.length() || !s.regionMatches(true, start, tag, 0, tag.length())) {
+			return;
+		}
+		int i = start + tag.length();
+		boolean negative = s.charAt(i) == '-';
+		if (negative || s.charAt(i) == '+') i++;
+		if (i == end) return;
+		long value = 0;
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') return;
+			value = value * 10 + c - '0';
+		}
+		mTagOffset = negative ? -value : value;
+	}
+
+	public int parseLyrics(String path) {
+
+		return parseLyrics(new File(path));
+	}
+
+	public int parseLyrics(File file) {
+
+		mText = "";
+		mTimestamps = new long[0];
+		mGroupFirst = new int[1];
+		mLineStart = new int[0];
+		mLineEnd = new int[0];
+		mWords = new long[0];
+		mLineWords = new int[1];
+		mCount = 0;
+		mLineCount = 0;
+		mCursor = 0;
+		mTagOffset = 0;
+
+		if (!file.exists()) {
+			return LYRICS_STATUS_NOT_FOUND;
+		}
+
+		String lyrics;
+		try {
+			lyrics = readLyricsFile(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return LYRICS_STATUS_INVALID;
+		}
+		parseLyricsString(lyrics);
+		if (mCount == 0) {
+			return LYRICS_STATUS_INVALID;
+		}
+		return LYRICS_STATUS_OK;
+	}
+
+	/**
+	 * Reads the file into the shared buffer and decodes it.
+	 *
+	 * The charset detector is fed while reading and not consulted any more once
+	 * it is sure. If a charset was detected for another file in the same
+	 * directory, it is tried first and detection is skipped entirely when the
+	 * content is valid in that charset.
+	 *
+	 * The class lock is only held to take and return the buffer and to look up
+	 * charsets, files are read and decoded without it.
+	 */
+	private static String readLyricsFile(File file) throws IOException {
+
+		String directory = file.getParent();
+		String remembered = null;
+		if (directory != null) {
+			synchronized (LyricsParser.class) {
+				remembered = sCharsets.get(directory);
+			}
+		}
+
+		long file_length = file.length();
+		if (file_length > MAX_FILE_LENGTH) {
+			throw new IOException("file too large: " + file);
+		}
+		byte[] buffer = obtainBuffer((int) file_length + READ_CHUNK);
+		try {
+			return decodeLyricsFile(file, directory, remembered, buffer);
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	private static String decodeLyricsFile(File file, String directory, String remembered,
+			byte[] buffer) throws IOException {
+
+		UniversalDetector detector = remembered == null ? new UniversalDetector(null) : null;
+		FileInputStream in = new FileInputStream(file);
+		int length = 0;
+		try {
+			int size;
+			while ((size = in.read(buffer, length, Math.min(READ_CHUNK, buffer.length - length))) > 0) {
+				if (detector != null && !detector.isDone()) {
+					detector.handleData(buffer, length, size);
+				}
+				length += size;
+				if (length == buffer.length) {
+					// file grew while reading
+					if (length >= MAX_FILE_LENGTH) {
+						throw new IOException("file too large: " + file);
+					}
+					buffer = copyOf(buffer, length * 2);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		if (remembered != null && !hasBom(buffer, length)) {
+			try {
+				return Charset.forName(remembered).newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(buffer, 0, length)).toString();
+			} catch (CharacterCodingException e) {
+				// not the same encoding as its neighbours, detect it
+			}
+		}
+		if (detector == null) {
+			detector = new UniversalDetector(null);
+			detector.handleData(buffer, 0, length);
+		}
+		detector.dataEnd();
+		String encoding = detector.getDetectedCharset();
+		if (encoding == null || !Charset.isSupported(encoding)) {
+			encoding = "UTF-8";
+		} else if (directory != null) {
+			synchronized (LyricsParser.class) {
+				sCharsets.put(directory, encoding);
+			}
+		}
+		return new String(buffer, 0, length, encoding);
+	}
+
+	/**
+	 * @return the shared buffer if it is free and large enough, a new one
+	 *         otherwise.
+	 */
+	private static byte[] obtainBuffer(int length) {
+
+		synchronized (LyricsParser.class) {
+			byte[] buffer = sBuffer;
+			if (buffer != null && buffer.length >= length) {
+				sBuffer = null;
+				return buffer;
+			}
+		}
+		return new byte[length];
+	}
+
+	/**
+	 * Keeps the buffer for the next file if it is larger than the shared one.
+	 */
+	private static void releaseBuffer(byte[] buffer) {
+
+		if (buffer.length > MAX_SHARED_BUFFER) return;
+		synchronized (LyricsParser.class) {
+			if (sBuffer == null || sBuffer.length < buffer.length) {
+				sBuffer = buffer;
+			}
+		}
+	}
+
+	// Arrays.copyOf() needs API level 9
+	private static long[] copyOf(long[] array, int length) {
+
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static byte[] copyOf(byte[] array, int length) {
+
+		byte[] copy = new byte[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static boolean hasBom(byte[] data, int length) {
+
+		if (length >= 3 && data[0] == (byte) 0xEF && data[1] == (byte) 0xBB
+				&& data[2] == (byte) 0xBF) {
+			return true;
+		}
+		return length >= 2
+				&& ((data[0] == (byte) 0xFE && data[1] == (byte) 0xFF) || (data[0] == (byte) 0xFF && data[1] == (byte) 0xFE));
+	}
+
+	/**
+	 * Loads lyrics compiled by {@link LyricsCache}.
+	 */
+	void setCompiled(String text, long[] timestamps, int[] group_first, int[] line_start,
+			int[] line_end, long[] words, int[] line_words) {
+
+		mText = text;
+		mTimestamps = timestamps;
+		mGroupFirst = group_first;
+		mLineStart = line_start;
+		mLineEnd = line_end;
+		mWords = words;
+		mLineWords = line_words;
+		mCount = timestamps.length;
+		mLineCount = line_start.length;
+		mCursor = 0;
+		mTagOffset = 0;
+	}
+
+	String getText() {
+
+		return mText;
+	}
+
+	int[] getLineStarts() {
+
+		return mLineStart;
+	}
+
+	int[] getLineEnds() {
+
+		return mLineEnd;
+	}
+
+	/**
+	 * @return number of lyrics ids, i.e. distinct timestamps.
+	 */
+	public int getCount() {
+
+		return mCount;
+	}
+
+	public int getLineCount() {
+
+		return mLineCount;
+	}
+
+	/**
+	 * @return text of a line, not of a lyrics id.
+	 */
+	public String getLyrics(int line) {
+
+		return mText.substring(mLineStart[line], mLineEnd[line]);
+	}
+
+	/**
+	 * @return text of all lines in display order.
+	 */
+	public String[] getAllLyrics() {
+
+		String[] lyrics = new String[mLineCount];
+		for (int i = 0; i < mLineCount; i++) {
+			lyrics[i] = getLyrics(i);
+		}
+		return lyrics;
+	}
+
+	/**
+	 * @return timestamps of all lyrics ids, without the offset set by
+	 *         {@link #setOffset(long)}.
+	 */
+	public long[] getAllTimestamp() {
+
+		return mTimestamps;
+	}
+
+	/**
+	 * @return index of the first line of each lyrics id, with one extra
+	 *         element for the end of the last one.
+	 */
+	public int[] getGroupFirst() {
+
+		return mGroupFirst;
+	}
+
+	/**
+	 * @return number of lines of each lyrics id.
+	 */
+	public int[] getGroupSizes() {
+
+		int[] sizes = new int[mCount];
+		for (int i = 0; i < mCount; i++) {
+			sizes[i] = mGroupFirst[i + 1] - mGroupFirst[i];
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return word timing of all lines, see class description for the format.
+	 */
+	public long[] getAllWords() {
+
+		return mWords;
+	}
+
+	/**
+	 * @return index of the first word of each line into {@link #getAllWords()},
+	 *         with one extra element for the end of the last line.
+	 */
+	public int[] getLineWords() {
+
+		return mLineWords;
+	}
+
+	/**
+	 * Sets an offset added to all timestamps when they are looked up, on top
+	 * of the <code>[offset:]</code> tag applied when parsing. A positive
+	 * offset shows lyrics later.
+	 */
+	public void setOffset(long offset) {
+
+		mOffset = offset;
+	}
+
+	public long getOffset() {
+
+		return mOffset;
+	}
+
+	/**
+	 * Returns the id of the last line whose timestamp is not after the given
+	 * timestamp, or 0 if there is none.
+	 */
+	public int getId(long timestamp) {
+
+		return find(timestamp - mOffset);
+	}
+
+	private int find(long timestamp) {
+
+		int low = 0, high = mCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mTimestamps[mid] <= timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high > 0 ? high : 0;
+	}
+
+	/**
+	 * Moves the playhead cursor to the given position and returns the line id
+	 * at that position, same as {@link #getId(long)}.
+	 * 
+	 * During normal playback the position only moves forward by a line or two
+	 * between calls, so the cursor steps forward from where it was. A jump
+	 * backwards or far ahead (i.e. a seek) falls back to binary search.
+	 */
+	public int advance(long position) {
+
+		final long time = position - mOffset;
+		int cursor = mCursor;
+		if (cursor >= mCount || (cursor > 0 && mTimestamps[cursor] > time)) {
+			mCursor = find(time);
+			return mCursor;
+		}
+		for (int steps = 0; cursor + 1 < mCount && mTimestamps[cursor + 1] <= time; steps++) {
+			if (steps == CURSOR_MAX_STEPS) {
+				mCursor = find(time);
+				return mCursor;
+			}
+			cursor++;
+		}
+		mCursor = cursor;
+		return cursor;
+	}
+
+	/**
+	 * Resets the playhead cursor after a seek.
+	 */
+	public int seek(long position) {
+
+		mCursor = getId(position);
+		return mCursor;
+	}
+
+	public long getTimestamp(int id) {
+
+		if (mCount > 0) {
+			if (id >= mCount) {
+				return mTimestamps[mCount - 1] + mOffset;
+			}
+			if (id < 0) {
+				return 0;
+			}
+			return mTimestamps[id] + mOffset;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A lyrics server {@link LyricsDownloader} can search.
+ *
+ * Implementations must be safe to call from several threads, searches of
+ * different providers run in parallel.
+ */
+public interface LyricsProvider {
+
+	/**
+	 * @return short name used in results and statistics.
+	 */
+	String getName();
+
+	/**
+	 * Searches lyrics of the track. Returned results must carry everything
+	 * needed to download them later, they may be cached for days.
+	 *
+	 * @param timeout
+	 *            Connect and read timeout in milliseconds.
+	 */
+	List<LyricsResult> search(String artist, String track, int timeout) throws IOException;
+}
@@ -0,0 +1,77 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+/**
+ * One lyrics search result.
+ */
+public class LyricsResult {
+
+	public final String provider;
+	public final String artist;
+	public final String title;
+	public final String url;
+	/**
+	 * Duration of the song in milliseconds, or 0 if the provider doesn't tell.
+	 */
+	public final long duration;
+
+	private final float score;
+
+	public LyricsResult(String provider, String artist, String title, String url) {
+
+		this(provider, artist, title, url, 0);
+	}
+
+	public LyricsResult(String provider, String artist, String title, String url, long duration) {
+
+		this.provider = provider;
+		this.artist = artist != null ? artist : "";
+		this.title = title != null ? title : "";
+		this.url = url;
+		this.duration = duration;
+		this.score = 0;
+	}
+
+	/**
+	 * Copy of a result with the score of one search.
+	 */
+	LyricsResult(LyricsResult result, float score) {
+
+		this.provider = result.provider;
+		this.artist = result.artist;
+		this.title = result.title;
+		this.url = result.url;
+		this.duration = result.duration;
+		this.score = score;
+	}
+
+	/**
+	 * @return how well the result matches the query, between 0 and 1.
+	 * @see LyricsMatcher
+	 */
+	public float getScore() {
+
+		return score;
+	}
+
+	@Override
+	public String toString() {
+
+		return artist + "\n" + title;
+	}
+}
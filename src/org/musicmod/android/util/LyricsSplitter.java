@@ -16,56 +16,261 @@
 
 package org.musicmod.android.util;
 
-import android.graphics.Paint;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import android.text.TextPaint;
+
+/**
+ * Breaks lyrics lines to fit a width.
+ *
+ * Lines are measured with the paint they are drawn with and wrapped to as
+ * many rows as needed, with rows balanced in width. Breaks are allowed at
+ * spaces, around brackets and punctuation and between CJK characters, except
+ * before closing punctuation and small kana or after opening brackets.
+ * Results are remembered per line, width and text size.
+ */
 public class LyricsSplitter {
 
-	public static String split(String line, float pixels) {
+	private final static int MAX_ENTRIES = 512;
+	private final static int BALANCE_PASSES = 6;
+
+	private final TextPaint mPaint;
+	private final LinkedHashMap<Key, String> mCache = new LinkedHashMap<Key, String>(64, 0.75f,
+			true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	public LyricsSplitter(TextPaint paint) {
+
+		mPaint = paint;
+	}
+
+	/**
+	 * @return the line with '\n' inserted where it has to be broken to fit the
+	 *         width, using the current text size of the paint.
+	 */
+	public String split(String line, int width) {
+
+		Key key = new Key(line, width, mPaint.getTextSize());
+		String result = mCache.get(key);
+		if (result == null) {
+			result = breakLine(line, width);
+			mCache.put(key, result);
+		}
+		return result;
+	}
+
+	public void clear() {
+
+		mCache.clear();
+	}
+
+	private String breakLine(String line, int width) {
 
-		if (measureString(line, pixels) <= 294)
+		final int length = line.length();
+		if (width <= 0 || mPaint.breakText(line, 0, length, true, width, null) >= length) {
 			return line;
-		else {
-			int half = line.length() / 2;
-			for (int i = 0; i < half / 2; i++) {
-				int pos = half - i;
-				char c = line.charAt(pos);
-				if (c == ' ' || c == '\u3000') {
-					return line.substring(0, pos).trim() + "\n"
-							+ line.substring(pos + 1, line.length()).trim();
-				} else if (c == '(' || c == '<' || c == '[' || c == '{' || c == '\uFF08'
-						|| c == '\u3010' || c == '\u3016' || c == '\u300C' || c == '/') {
-					return line.substring(0, pos).trim() + "\n"
-							+ line.substring(pos, line.length()).trim();
-				} else if (c == ')' || c == '>' || c == ']' || c == '}' || c == '\uFF09'
-						|| c == '\u3011' || c == '\u3017' || c == '\u300D' || c == ','
-						|| c == '\uFF0C' || c == '\u3002') {
-					return line.substring(0, pos + 1).trim() + "\n"
-							+ line.substring(pos + 1, line.length()).trim();
-				}
-				pos = half + i + 1;
-				c = line.charAt(pos);
-				if (c == ' ' || c == '\u3000') {
-					return line.substring(0, pos).trim() + "\n"
-							+ line.substring(pos + 1, line.length()).trim();
-				} else if (c == '(' || c == '<' || c == '[' || c == '{' || c == '\uFF08'
-						|| c == '\u3010' || c == '\u3016' || c == '\u300C' || c == '/') {
-					return line.substring(0, pos).trim() + "\n"
-							+ line.substring(pos, line.length()).trim();
-				} else if (c == ')' || c == '>' || c == ']' || c == '}' || c == '\uFF09'
-						|| c == '\u3011' || c == '\u3017' || c == '\u300D' || c == ','
-						|| c == '\uFF0C' || c == '\u3002') {
-					return line.substring(0, pos + 1).trim() + "\n"
-							+ line.substring(pos + 1, line.length()).trim();
+		}
+
+		// Wrap greedily to find out the row count, then look for the narrowest
+		// width giving the same count so the last row isn't left with a single
+		// word. Starts from the average row width, a few passes are enough.
+		int rows = wrap(line, width, null);
+		float low = mPaint.measureText(line) / rows, high = width;
+		if (wrap(line, low, null) <= rows) {
+			high = low;
+		} else {
+			for (int i = 0; i < BALANCE_PASSES && high - low > 1; i++) {
+				float mid = (low + high) / 2;
+				if (wrap(line, mid, null) > rows) {
+					low = mid;
+				} else {
+					high = mid;
 				}
 			}
-			return line.substring(0, half) + "\n" + line.substring(half, line.length());
 		}
+		StringBuilder out = new StringBuilder(length + rows);
+		wrap(line, high, out);
+		return out.toString();
 	}
 
-	private static float measureString(String line, float pixels) {
+	/**
+	 * @return number of rows
+	 */
+	private int wrap(String line, float width, StringBuilder out) {
 
-		Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-		mTextPaint.setTextSize(pixels);
-		return mTextPaint.measureText(line);
+		final int length = line.length();
+		int rows = 0;
+		int pos = 0;
+		while (pos < length) {
+			rows++;
+			int fit = mPaint.breakText(line, pos, length, true, width, null);
+			if (pos + fit >= length) {
+				if (out != null) out.append(line, pos, length);
+				break;
+			}
+			int end = pos + Math.max(fit, 1);
+			int brk = end;
+			while (brk > pos + 1 && !canBreakBefore(line, brk)) {
+				brk--;
+			}
+			if (brk <= pos + 1 && !canBreakBefore(line, brk)) {
+				// no break opportunity, cut the word
+				brk = end;
+			}
+			int row_end = brk;
+			while (row_end > pos && Character.isWhitespace(line.charAt(row_end - 1))) {
+				row_end--;
+			}
+			if (out != null) {
+				out.append(line, pos, row_end).append('\n');
+			}
+			pos = brk;
+			while (pos < length && Character.isWhitespace(line.charAt(pos))) {
+				pos++;
+			}
+		}
+		return rows;
+	}
+
+	private static boolean canBreakBefore(String line, int index) {
+
+		char before = line.charAt(index - 1), after = line.charAt(index);
+		if (Character.isWhitespace(before) || Character.isWhitespace(after)) return true;
+		if (isNoBreakAfter(before) || isNoBreakBefore(after)) return false;
+		return isCJK(before) || isCJK(after) || isBreakAfter(before);
+	}
+
+	static boolean isCJK(char c) {
+
+		return (c >= '\u2E80' && c <= '\u9FFF') || (c >= '\uAC00' && c <= '\uD7AF')
+				|| (c >= '\uF900' && c <= '\uFAFF') || (c >= '\uFF00' && c <= '\uFFEF');
+	}
+
+	// closing brackets and punctuation may end a row
+	private static boolean isBreakAfter(char c) {
+
+		switch (c) {
+			case ')':
+			case ']':
+			case '}':
+			case '>':
+			case ',':
+			case '/':
+			case '-':
+				return true;
+		}
+		return isNoBreakBefore(c);
+	}
+
+	// characters that must not start a row
+	private static boolean isNoBreakBefore(char c) {
+
+		switch (c) {
+			case ')':
+			case ']':
+			case '}':
+			case '>':
+			case ',':
+			case '.':
+			case '!':
+			case '?':
+			case ':':
+			case ';':
+			case '\u3001':
+			case '\u3002':
+			case '\uFF0C':
+			case '\uFF0E':
+			case '\uFF01':
+			case '\uFF1F':
+			case '\uFF1A':
+			case '\uFF1B':
+			case '\uFF09':
+			case '\u3009':
+			case '\u300B':
+			case '\u300D':
+			case '\u300F':
+			case '\u3011':
+			case '\u3015':
+			case '\u3017':
+			case '\u30FC':
+			case '\u3041':
+			case '\u3043':
+			case '\u3045':
+			case '\u3047':
+			case '\u3049':
+			case '\u3063':
+			case '\u3083':
+			case '\u3085':
+			case '\u3087':
+			case '\u30A1':
+			case '\u30A3':
+			case '\u30A5':
+			case '\u30A7':
+			case '\u30A9':
+			case '\u30C3':
+			case '\u30E3':
+			case '\u30E5':
+			case '\u30E7':
+				return true;
+		}
+		return false;
+	}
+
+	// opening brackets must not end a row
+	private static boolean isNoBreakAfter(char c) {
+
+		switch (c) {
+			case '(':
+			case '[':
+			case '{':
+			case '<':
+			case '\uFF08':
+			case '\u3008':
+			case '\u300A':
+			case '\u300C':
+			case '\u300E':
+			case '\u3010':
+			case '\u3014':
+			case '\u3016':
+				return true;
+		}
+		return false;
+	}
+
+	private static class Key {
+
+		final String line;
+		final int width;
+		final float size;
+
+		Key(String line, int width, float size) {
+
+			this.line = line;
+			this.width = width;
+			this.size = size;
+		}
+
+		@Override
+		public int hashCode() {
+
+			return (line.hashCode() * 31 + width) * 31 + Float.floatToIntBits(size);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return width == other.width && size == other.size && line.equals(other.line);
+		}
 	}
-}
\ No newline at end of file
+}
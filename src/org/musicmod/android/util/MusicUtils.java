@@ -756,6 +756,7 @@ public class MusicUtils implements Constants {
 						Log.e(LOGTAG_MUSICUTILS, "Failed to delete file " + lyrics);
 					} else {
 						mDeletedLyricsCount += 1;
+						LyricsIndexer.notifyChanged(f);
 					}
 					c.moveToNext();
 				} catch (SecurityException ex) {
@@ -1724,5 +1725,8 @@ public class MusicUtils implements Constants {
 				entry.dump(out);
 			}
 		}
+		LyricsCache.dump(out);
+		LyricsDownloader.dump(out);
+		LyricsIndexer.dump(out);
 	}
 }
@@ -0,0 +1,157 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+/**
+ * Audio ids of the play queue, kept in a gap buffer.
+ *
+ * The free space of the array is a gap that follows the last edit. An edit
+ * first moves the gap to where it happens, which copies only the ids between
+ * the old and the new place, so a run of edits close to each other, like
+ * dragging a track through the queue or enqueueing after the current one,
+ * costs O(1) amortized each instead of shifting the whole tail.
+ */
+public class PlayQueue {
+
+	private final static int MIN_CAPACITY = 16;
+
+	private long[] mBuffer = new long[MIN_CAPACITY];
+	// the gap is mBuffer[mGapStart] to mBuffer[mGapEnd - 1]
+	private int mGapStart = 0;
+	private int mGapEnd = MIN_CAPACITY;
+
+	public int size() {
+
+		return mBuffer.length - (mGapEnd - mGapStart);
+	}
+
+	public long get(int index) {
+
+		return mBuffer[index < mGapStart ? index : index + mGapEnd - mGapStart];
+	}
+
+	/**
+	 * Copies count ids starting at index into the array.
+	 */
+	public void get(int index, long[] dest, int offset, int count) {
+
+		int front = Math.max(0, Math.min(count, mGapStart - index));
+		System.arraycopy(mBuffer, index, dest, offset, front);
+		System.arraycopy(mBuffer, index + front + mGapEnd - mGapStart, dest, offset + front,
+				count - front);
+	}
+
+	public long[] toArray() {
+
+		long[] list = new long[size()];
+		get(0, list, 0, list.length);
+		return list;
+	}
+
+	/**
+	 * Replaces the whole queue with count ids of the list.
+	 */
+	public void set(long[] list, int count) {
+
+		if (count > mBuffer.length) {
+			mBuffer = new long[Math.max(count * 2, MIN_CAPACITY)];
+		}
+		System.arraycopy(list, 0, mBuffer, 0, count);
+		mGapStart = count;
+		mGapEnd = mBuffer.length;
+	}
+
+	public void clear() {
+
+		mGapStart = 0;
+		mGapEnd = mBuffer.length;
+	}
+
+	public void insert(int index, long id) {
+
+		moveGap(index, 1);
+		mBuffer[mGapStart++] = id;
+	}
+
+	/**
+	 * Inserts count ids of the list before index.
+	 */
+	public void insert(int index, long[] list, int count) {
+
+		moveGap(index, count);
+		System.arraycopy(list, 0, mBuffer, mGapStart, count);
+		mGapStart += count;
+	}
+
+	/**
+	 * Removes the ids from first to last inclusive.
+	 */
+	public void remove(int first, int last) {
+
+		moveGap(first, 0);
+		mGapEnd += last - first + 1;
+	}
+
+	/**
+	 * Moves the id at from so that it ends up at to.
+	 */
+	public void move(int from, int to) {
+
+		if (from == to) return;
+		long id = get(from);
+		remove(from, from);
+		insert(to, id);
+	}
+
+	/**
+	 * @return the last index of the id, or -1 if it isn't queued.
+	 */
+	public int lastIndexOf(long id) {
+
+		for (int i = size() - 1; i >= 0; i--) {
+			if (get(i) == id) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves the gap to index and makes it at least room ids long.
+	 */
+	private void moveGap(int index, int room) {
+
+		int gap = mGapEnd - mGapStart;
+		if (gap < room) {
+			int size = mBuffer.length - gap;
+			long[] buffer = new long[Math.max((size + room) * 2, MIN_CAPACITY)];
+			// ids after index go to the end of the new buffer
+			int after = size - index;
+			get(0, buffer, 0, index);
+			get(index, buffer, buffer.length - after, after);
+			mBuffer = buffer;
+			mGapStart = index;
+			mGapEnd = buffer.length - after;
+			return;
+		}
+		if (index < mGapStart) {
+			System.arraycopy(mBuffer, index, mBuffer, index + gap, mGapStart - index);
+		} else if (index > mGapStart) {
+			System.arraycopy(mBuffer, mGapEnd, mBuffer, mGapStart, index - mGapStart);
+		}
+		mGapStart = index;
+		mGapEnd = index + gap;
+	}
+}
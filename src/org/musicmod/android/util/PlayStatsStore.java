@@ -0,0 +1,71 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * How often and when tracks were last played, by audio id.
+ *
+ * The table is a {@link SortedIdStore} with two columns, the play count and
+ * the time the track was last played, in milliseconds since the epoch.
+ */
+public class PlayStatsStore extends SortedIdStore {
+
+	private final static int MAGIC = 0x4d4d5053; // "MMPS"
+	private final static int VERSION = 1;
+
+	private final static int COUNT = 0;
+	private final static int LAST_PLAYED = 1;
+
+	public PlayStatsStore(File file) {
+
+		super(file, MAGIC, VERSION, int.class, long.class);
+	}
+
+	public synchronized int getCount(long id) {
+
+		int index = indexOf(id);
+		return index >= 0 ? getInt(COUNT, index) : 0;
+	}
+
+	/**
+	 * @return when the track was last played, 0 if never.
+	 */
+	public synchronized long getLastPlayed(long id) {
+
+		int index = indexOf(id);
+		return index >= 0 ? getLong(LAST_PLAYED, index) : 0;
+	}
+
+	/**
+	 * Counts a play of the track. Call {@link #save()} to persist changes.
+	 */
+	public synchronized void played(long id, long time) {
+
+		int index = indexOf(id);
+		if (index < 0) index = insert(id);
+		setInt(COUNT, index, getInt(COUNT, index) + 1);
+		setLong(LAST_PLAYED, index, time);
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("play stats: " + size() + " tracks" + (isDirty() ? ", unsaved" : ""));
+	}
+}
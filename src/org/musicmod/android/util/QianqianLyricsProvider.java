@@ -0,0 +1,246 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Lyrics from the TTPlayer (qianqian) lyrics server.
+ */
+public class QianqianLyricsProvider implements LyricsProvider {
+
+	public final static String NAME = "qianqian";
+	public final static String DEFAULT_BASE_URL = "http://ttlrcct.qianqian.com/dll/lyricsvr.dll";
+
+	private final static char[] digit = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A',
+			'B', 'C', 'D', 'E', 'F' };
+	private final static String UTF_8 = "utf-8";
+
+	private final String mBaseUrl;
+
+	public QianqianLyricsProvider() {
+
+		this(DEFAULT_BASE_URL);
+	}
+
+	/**
+	 * @param base_url
+	 *            Server address, e.g. a local server for testing.
+	 */
+	public QianqianLyricsProvider(String base_url) {
+
+		mBaseUrl = base_url;
+	}
+
+	@Override
+	public String getName() {
+
+		return NAME;
+	}
+
+	@Override
+	public List<LyricsResult> search(String artist, String track, int timeout)
+			throws IOException {
+
+		String url = mBaseUrl + "?sh?Artist=" + encode(artist) + "&Title=" + encode(track)
+				+ "&Flags=0";
+		try {
+			return parseResult(LyricsDownloader.get(url, UTF_8, timeout));
+		} catch (XmlPullParserException e) {
+			throw new IOException(e.getMessage());
+		} catch (RuntimeException e) {
+			// malformed id or unexpected document
+			throw new IOException(e.toString());
+		}
+	}
+
+	private String urlDownload(int id, String code) {
+
+		return mBaseUrl + "?dl?Id=" + id + "&Code=" + code;
+	}
+
+	private static String encode(String source) {
+
+		final String UTF_16LE = "utf-16le";
+
+		// lower case without punctuation and spaces, as the server expects
+		source = LyricsMatcher.normalize(source);
+		byte[] bytes = null;
+
+		try {
+			bytes = source.getBytes(UTF_16LE);
+		} catch (Exception e) {
+			e.printStackTrace();
+			bytes = source.getBytes();
+		}
+
+		char[] charactor = new char[2];
+		StringBuilder builder = new StringBuilder();
+		for (byte byteValue : bytes) {
+			charactor[0] = digit[(byteValue >>> 4) & 0X0F];
+			charactor[1] = digit[byteValue & 0X0F];
+			builder.append(charactor);
+		}
+		return builder.toString();
+	}
+
+	private static String verify(String artist, String track, int id) {
+
+		try {
+			byte[] bytes = (artist + track).getBytes(UTF_8);
+			int[] song = new int[bytes.length];
+			for (int i = 0; i < bytes.length; i++) {
+				song[i] = bytes[i] & 0xff;
+			}
+			int intVal1 = 0, intVal2 = 0, intVal3 = 0;
+			intVal1 = (id & 0xFF00) >> 8;
+			if ((id & 0xFF0000) == 0) {
+				intVal3 = 0xFF & ~intVal1;
+			} else {
+				intVal3 = 0xFF & ((id & 0x00FF0000) >> 16);
+			}
+
+			intVal3 = intVal3 | ((0xFF & id) << 8);
+			intVal3 = intVal3 << 8;
+			intVal3 = intVal3 | (0xFF & intVal1);
+			intVal3 = intVal3 << 8;
+
+			if ((id & 0xFF000000) == 0) {
+				intVal3 = intVal3 | (0xFF & (~id));
+			} else {
+				intVal3 = intVal3 | (0xFF & (id >> 24));
+			}
+
+			int uBound = bytes.length - 1;
+			while (uBound >= 0) {
+				int c = song[uBound];
+				if (c >= 0x80) c = c - 0x100;
+				intVal1 = c + intVal2;
+				intVal2 = intVal2 << (uBound % 2 + 4);
+				intVal2 = intVal1 + intVal2;
+				uBound -= 1;
+			}
+
+			uBound = 0;
+			intVal1 = 0;
+
+			while (uBound <= bytes.length - 1) {
+				int c = song[uBound];
+				if (c >= 128) {
+					c -= 256;
+				}
+				int intVal4 = c + intVal1;
+				intVal1 = intVal1 << (uBound % 2 + 3);
+				intVal1 = intVal1 + intVal4;
+				uBound += 1;
+			}
+
+			int intVal5 = intVal2 ^ intVal3;
+			intVal5 = intVal5 + (intVal1 | id);
+			intVal5 = intVal5 * (intVal1 | intVal3);
+			intVal5 = intVal5 * (intVal2 ^ id);
+
+			return String.valueOf(intVal5);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	private List<LyricsResult> parseResult(String xml) throws XmlPullParserException,
+			IOException {
+
+		List<LyricsResult> results = new ArrayList<LyricsResult>();
+		if (xml == null || "".equals(xml)) {
+			return results;
+		}
+
+		String TAG_RESULT = "result", TAG_LRC = "lrc";
+		String ATTR_ID = "id", ATTR_ARTIST = "artist", ATTR_TITLE = "title";
+		LyricsResult result = null;
+
+		XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+
+		XmlPullParser parser = factory.newPullParser();
+		parser.setInput(new StringReader(xml));
+
+		int eventType = parser.getEventType();
+		String tagName;
+		boolean lookingForEndOfUnknownTag = false;
+		String unknownTagName = null;
+
+		// This loop will skip to the result start tag
+		do {
+			if (eventType == XmlPullParser.START_TAG) {
+				tagName = parser.getName();
+				if (TAG_RESULT.equals(tagName)) {
+					// Go to next tag
+					eventType = parser.next();
+					break;
+				}
+				throw new XmlPullParserException("Expecting result, got " + tagName);
+			}
+			eventType = parser.next();
+		} while (eventType != XmlPullParser.END_DOCUMENT);
+
+		boolean reachedEndOfResult = false;
+		while (!reachedEndOfResult && eventType != XmlPullParser.END_DOCUMENT) {
+			switch (eventType) {
+				case XmlPullParser.START_TAG:
+					if (lookingForEndOfUnknownTag) {
+						break;
+					}
+					tagName = parser.getName();
+					if (TAG_LRC.equals(tagName)) {
+						String artist = parser
+								.getAttributeValue(parser.getNamespace(), ATTR_ARTIST);
+						String title = parser.getAttributeValue(parser.getNamespace(), ATTR_TITLE);
+						int id = Integer.valueOf(parser.getAttributeValue(parser.getNamespace(),
+								ATTR_ID));
+						result = new LyricsResult(NAME, artist, title, urlDownload(id,
+								verify(artist, title, id)));
+					} else {
+						lookingForEndOfUnknownTag = true;
+						unknownTagName = tagName;
+					}
+					break;
+				case XmlPullParser.END_TAG:
+					tagName = parser.getName();
+					if (lookingForEndOfUnknownTag && tagName.equals(unknownTagName)) {
+						lookingForEndOfUnknownTag = false;
+						unknownTagName = null;
+					} else if (TAG_LRC.equals(tagName)) {
+						if (result != null) results.add(result);
+						result = null;
+					} else if (TAG_RESULT.equals(tagName)) {
+						reachedEndOfResult = true;
+					}
+					break;
+			}
+			eventType = parser.next();
+		}
+		return results;
+	}
+}
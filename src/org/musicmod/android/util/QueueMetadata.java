@@ -0,0 +1,530 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+
+/**
+ * Metadata of all tracks in the play queue, kept in memory.
+ *
+ * Tracks are loaded in background in chunks of {@link #CHUNK} tracks when
+ * they are added to the queue, and the whole queue is reloaded when the media
+ * provider reports a change. Rows are kept in parallel arrays sorted by audio
+ * id, so reordering the queue doesn't touch the table and a lookup is a binary
+ * search. Artist and album names repeat a lot and are interned.
+ *
+ * Added tracks go to a small table of recent rows first, which is merged into
+ * the main table once it holds {@link #MAX_RECENT} rows, so a single enqueue
+ * doesn't copy the whole table. Rows of tracks that left the queue are only
+ * dropped when the queue is replaced or reloaded.
+ *
+ * A track that isn't loaded yet can be loaded right away with
+ * {@link #require(long)}, the last track required is never dropped.
+ * Bookmarks written by {@link #writeBookmark(long, long)} are kept aside until
+ * a load sees them, and the change they cause in the provider doesn't reload
+ * the queue.
+ */
+public class QueueMetadata {
+
+	private final static int ADD = 1;
+	private final static int LOAD = 2;
+	private final static int RELOAD = 3;
+	private final static int CHUNK = 200;
+	private final static int MAX_RECENT = 256;
+	// coalesces bursts of changes, e.g. while the media scanner runs
+	private final static long RELOAD_DELAY = 1000;
+
+	private final static String[] COLUMNS = new String[] { MediaStore.Audio.Media._ID,
+			MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.ARTIST,
+			MediaStore.Audio.Media.ALBUM, MediaStore.Audio.Media.DATA,
+			MediaStore.Audio.Media.ARTIST_ID, MediaStore.Audio.Media.ALBUM_ID,
+			MediaStore.Audio.Media.DURATION, MediaStore.Audio.Media.BOOKMARK,
+			MediaStore.Audio.Media.IS_PODCAST };
+
+	/**
+	 * Rows sorted by id. Not modified once published.
+	 */
+	private static class Table {
+
+		int count = 0;
+		final long[] ids, artistIds, albumIds, durations, bookmarks;
+		final String[] titles, artists, albums, paths;
+		final boolean[] podcasts;
+
+		Table(int capacity) {
+
+			ids = new long[capacity];
+			artistIds = new long[capacity];
+			albumIds = new long[capacity];
+			durations = new long[capacity];
+			bookmarks = new long[capacity];
+			titles = new String[capacity];
+			artists = new String[capacity];
+			albums = new String[capacity];
+			paths = new String[capacity];
+			podcasts = new boolean[capacity];
+		}
+
+		int indexOf(long id) {
+
+			int low = 0, high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (ids[mid] < id) {
+					low = mid + 1;
+				} else if (ids[mid] > id) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+		void add(Cursor c) {
+
+			ids[count] = c.getLong(0);
+			titles[count] = c.getString(1);
+			artists[count] = intern(c.getString(2));
+			albums[count] = intern(c.getString(3));
+			paths[count] = c.getString(4);
+			artistIds[count] = c.getLong(5);
+			albumIds[count] = c.getLong(6);
+			durations[count] = c.getLong(7);
+			bookmarks[count] = c.getLong(8);
+			podcasts[count] = c.getInt(9) > 0;
+			count++;
+		}
+
+		void add(Table table, int index) {
+
+			ids[count] = table.ids[index];
+			titles[count] = table.titles[index];
+			artists[count] = table.artists[index];
+			albums[count] = table.albums[index];
+			paths[count] = table.paths[index];
+			artistIds[count] = table.artistIds[index];
+			albumIds[count] = table.albumIds[index];
+			durations[count] = table.durations[index];
+			bookmarks[count] = table.bookmarks[index];
+			podcasts[count] = table.podcasts[index];
+			count++;
+		}
+
+		private static String intern(String s) {
+
+			return s != null ? s.intern() : null;
+		}
+	}
+
+	/**
+	 * Provides the ids of the play queue.
+	 */
+	public interface QueueSource {
+
+		long[] getQueue();
+	}
+
+	private final static Table EMPTY = new Table(0);
+
+	private final Context mContext;
+	private final QueueSource mSource;
+	private final Handler mHandler;
+	private final ContentObserver mObserver;
+
+	// main and recent rows, not modified once published
+	private volatile Table[] mTables = new Table[] { EMPTY, EMPTY };
+	private long mRequiredId = -1;
+	// bookmarks written since the table was loaded
+	private final HashMap<Long, Long> mBookmarks = new HashMap<Long, Long>();
+	// changes of the provider caused by our own writes, not to reload for
+	private int mSelfChanges = 0;
+
+	private int mAdds, mLoads, mReloads, mMerges, mQueries, mRequired, mSkipped;
+	private long mLoadTime;
+
+	/**
+	 * @param source
+	 *            queried on the loader thread when the provider changed.
+	 */
+	public QueueMetadata(Context context, QueueSource source) {
+
+		mContext = context;
+		mSource = source;
+		HandlerThread thread = new HandlerThread("QueueMetadata",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper()) {
+
+			@Override
+			public void handleMessage(Message msg) {
+
+				switch (msg.what) {
+					case ADD:
+						load((long[]) msg.obj, false, false);
+						break;
+					case LOAD:
+						load((long[]) msg.obj, true, false);
+						break;
+					case RELOAD:
+						load(mSource.getQueue(), true, true);
+						break;
+				}
+			}
+		};
+		mObserver = new ContentObserver(mHandler) {
+
+			@Override
+			public void onChange(boolean selfChange) {
+
+				synchronized (QueueMetadata.this) {
+					if (mSelfChanges > 0) {
+						mSelfChanges--;
+						mSkipped++;
+						return;
+					}
+				}
+				mHandler.removeMessages(RELOAD);
+				mHandler.sendEmptyMessageDelayed(RELOAD, RELOAD_DELAY);
+			}
+		};
+		context.getContentResolver().registerContentObserver(
+				MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+	}
+
+	/**
+	 * Loads the tracks of a replaced queue in background, tracks no longer
+	 * queued are dropped.
+	 *
+	 * @param queue
+	 *            ids of the queue, not to be modified afterwards.
+	 */
+	public void load(long[] queue) {
+
+		mHandler.removeMessages(LOAD);
+		mHandler.obtainMessage(LOAD, queue).sendToTarget();
+	}
+
+	/**
+	 * Loads tracks added to the queue in background, if not loaded yet.
+	 *
+	 * @param ids
+	 *            ids of the added tracks, not to be modified afterwards.
+	 */
+	public void add(long[] ids) {
+
+		mHandler.obtainMessage(ADD, ids).sendToTarget();
+	}
+
+	/**
+	 * Loads a track right away if it isn't loaded yet.
+	 *
+	 * @return false if there is no such track.
+	 */
+	public boolean require(long id) {
+
+		if (find(id) != null) {
+			synchronized (this) {
+				mRequiredId = id;
+			}
+			return true;
+		}
+		return require(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MediaStore.Audio.Media._ID
+				+ "=" + id, null) >= 0;
+	}
+
+	/**
+	 * Loads the first track matching the query right away.
+	 *
+	 * @return id of the track, or -1 if none matched.
+	 */
+	public long require(Uri uri, String where, String[] selectionArgs) {
+
+		Cursor c = mContext.getContentResolver().query(uri, COLUMNS, where, selectionArgs,
+				null);
+		if (c == null) return -1;
+		try {
+			if (!c.moveToFirst()) return -1;
+			Table row = new Table(1);
+			row.add(c);
+			synchronized (this) {
+				mRequired++;
+				mRequiredId = row.ids[0];
+				publish(mTables[0], merge(mTables[1], row, null, -1));
+			}
+			return row.ids[0];
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @param prune
+	 *            whether tracks not in the queue are dropped.
+	 */
+	private void load(long[] queue, boolean prune, boolean reload) {
+
+		long start = SystemClock.elapsedRealtime();
+		long[] ids = distinct(queue);
+
+		// only query tracks we don't have yet, unless the provider changed
+		long[] missing = new long[ids.length];
+		int count = 0;
+		for (long id : ids) {
+			if (reload || find(id) == null) {
+				missing[count++] = id;
+			}
+		}
+		if (count == 0 && !prune) return;
+		Table loaded = new Table(count);
+		int queries = 0;
+		for (int i = 0; i < count; i += CHUNK) {
+			StringBuilder where = new StringBuilder(MediaStore.Audio.Media._ID + " IN (");
+			for (int j = i; j < Math.min(i + CHUNK, count); j++) {
+				if (j > i) where.append(',');
+				where.append(missing[j]);
+			}
+			where.append(')');
+			Cursor c = mContext.getContentResolver().query(
+					MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, COLUMNS, where.toString(),
+					null, MediaStore.Audio.Media._ID);
+			if (c == null) continue;
+			try {
+				while (c.moveToNext() && loaded.count < count) {
+					loaded.add(c);
+				}
+			} finally {
+				c.close();
+			}
+			queries++;
+		}
+
+		synchronized (this) {
+			Table[] tables = mTables;
+			Table recent = merge(tables[1], loaded, null, -1);
+			if (prune) {
+				// the track required last is kept even if it isn't queued any more
+				publish(merge(tables[0], recent, ids, mRequiredId), EMPTY);
+				mMerges++;
+			} else if (recent.count > MAX_RECENT) {
+				publish(merge(tables[0], recent, null, -1), EMPTY);
+				mMerges++;
+			} else {
+				publish(tables[0], recent);
+			}
+			// written bookmarks are dropped once the provider has them
+			Iterator<Long> iterator = mBookmarks.keySet().iterator();
+			while (iterator.hasNext()) {
+				long id = iterator.next();
+				int index = loaded.indexOf(id);
+				if ((index >= 0 && loaded.bookmarks[index] == mBookmarks.get(id))
+						|| find(id) == null) {
+					iterator.remove();
+				}
+			}
+			if (reload) {
+				mReloads++;
+			} else if (prune) {
+				mLoads++;
+			} else {
+				mAdds++;
+			}
+			mQueries += queries;
+			mLoadTime = SystemClock.elapsedRealtime() - start;
+		}
+	}
+
+	private static long[] distinct(long[] queue) {
+
+		long[] ids = new long[queue.length];
+		System.arraycopy(queue, 0, ids, 0, queue.length);
+		Arrays.sort(ids);
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (count == 0 || ids[i] != ids[count - 1]) {
+				ids[count++] = ids[i];
+			}
+		}
+		long[] result = new long[count];
+		System.arraycopy(ids, 0, result, 0, count);
+		return result;
+	}
+
+	private void publish(Table main, Table recent) {
+
+		mTables = new Table[] { main, recent };
+	}
+
+	/**
+	 * @return the table holding the track, or null if it isn't loaded.
+	 */
+	private Table find(long id) {
+
+		Table[] tables = mTables;
+		if (tables[1].indexOf(id) >= 0) return tables[1];
+		if (tables[0].indexOf(id) >= 0) return tables[0];
+		return null;
+	}
+
+	/**
+	 * Merges two tables, rows of the second one replace those of the first.
+	 *
+	 * @param keep
+	 *            sorted ids to keep, or null to keep all.
+	 * @param pinned
+	 *            id to keep in any case, or -1.
+	 */
+	private static Table merge(Table first, Table second, long[] keep, long pinned) {
+
+		Table table = new Table(first.count + second.count);
+		int i = 0, j = 0;
+		while (i < first.count || j < second.count) {
+			Table source;
+			int index;
+			if (j >= second.count || i < first.count && first.ids[i] < second.ids[j]) {
+				source = first;
+				index = i++;
+			} else {
+				if (i < first.count && first.ids[i] == second.ids[j]) i++;
+				source = second;
+				index = j++;
+			}
+			long id = source.ids[index];
+			if (keep == null || id == pinned || Arrays.binarySearch(keep, id) >= 0) {
+				table.add(source, index);
+			}
+		}
+		return table;
+	}
+
+	public String getTitle(long id) {
+
+		Table table = find(id);
+		return table != null ? table.titles[table.indexOf(id)] : null;
+	}
+
+	public String getArtist(long id) {
+
+		Table table = find(id);
+		return table != null ? table.artists[table.indexOf(id)] : null;
+	}
+
+	public String getAlbum(long id) {
+
+		Table table = find(id);
+		return table != null ? table.albums[table.indexOf(id)] : null;
+	}
+
+	public String getPath(long id) {
+
+		Table table = find(id);
+		return table != null ? table.paths[table.indexOf(id)] : null;
+	}
+
+	public long getArtistId(long id) {
+
+		Table table = find(id);
+		return table != null ? table.artistIds[table.indexOf(id)] : -1;
+	}
+
+	public long getAlbumId(long id) {
+
+		Table table = find(id);
+		return table != null ? table.albumIds[table.indexOf(id)] : -1;
+	}
+
+	public long getDuration(long id) {
+
+		Table table = find(id);
+		return table != null ? table.durations[table.indexOf(id)] : -1;
+	}
+
+	public long getBookmark(long id) {
+
+		synchronized (this) {
+			Long bookmark = mBookmarks.get(id);
+			if (bookmark != null) return bookmark;
+		}
+		Table table = find(id);
+		return table != null ? table.bookmarks[table.indexOf(id)] : 0;
+	}
+
+	public boolean isPodcast(long id) {
+
+		Table table = find(id);
+		return table != null && table.podcasts[table.indexOf(id)];
+	}
+
+	/**
+	 * Writes the bookmark of a track to the media provider and keeps it,
+	 * without reloading the queue.
+	 */
+	public void writeBookmark(long id, long bookmark) {
+
+		synchronized (this) {
+			mBookmarks.put(id, bookmark);
+			mSelfChanges++;
+		}
+		ContentValues values = new ContentValues();
+		values.put(MediaStore.Audio.Media.BOOKMARK, bookmark);
+		Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
+		boolean changed = false;
+		try {
+			changed = mContext.getContentResolver().update(uri, values, null, null) > 0;
+		} finally {
+			if (!changed) {
+				// no change is reported
+				synchronized (this) {
+					if (mSelfChanges > 0) mSelfChanges--;
+				}
+			}
+		}
+	}
+
+	public void release() {
+
+		mContext.getContentResolver().unregisterContentObserver(mObserver);
+		mHandler.removeCallbacksAndMessages(null);
+		mHandler.getLooper().quit();
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		Table[] tables = mTables;
+		out.println("queue metadata: " + tables[0].count + " + " + tables[1].count
+				+ " recent tracks, " + mAdds + " adds, " + mLoads + " loads, " + mReloads
+				+ " reloads (" + mSkipped + " own changes skipped), " + mMerges + " merges, "
+				+ mQueries + " queries, " + mRequired + " required, " + mBookmarks.size()
+				+ " written bookmarks, last load " + mLoadTime + " ms");
+	}
+}
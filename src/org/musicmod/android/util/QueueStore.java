@@ -0,0 +1,638 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Play queue saved as a snapshot plus a journal of the edits made since.
+ *
+ * Edits are appended to the journal as small records, so enqueueing a track
+ * writes a few bytes whatever the size of the queue. Once the journal grows
+ * past the snapshot, or holds more than {@link #MAX_EDITS} edits,
+ * {@link #needsSnapshot()} asks for a new snapshot, which replaces the
+ * journal. All writes are done in order on a background thread.
+ *
+ * Both files are read memory-mapped. Records carry a CRC32, so a record
+ * torn by a crash ends the journal instead of corrupting the queue, and a
+ * snapshot is written to a temporary file and renamed over the old one.
+ *
+ * Snapshot layout (big endian):
+ *
+ * <pre>
+ * int     magic
+ * int     version
+ * int     generation, matches the journal
+ * int     card id
+ * int     position
+ * int     shuffle cursor
+ * int     count
+ * long[]  audio ids
+ * int     order count
+ * int[]   shuffle order
+ * int     CRC32 of the above
+ * </pre>
+ *
+ * Journal layout: magic, version and generation, then records of an int
+ * length, the payload starting with the op, and the CRC32 of the payload.
+ */
+public class QueueStore {
+
+	private final static int SNAPSHOT_MAGIC = 0x4d4d5153; // "MMQS"
+	private final static int JOURNAL_MAGIC = 0x4d4d514a; // "MMQJ"
+	private final static int VERSION = 1;
+
+	private final static byte OP_INSERT = 1;
+	private final static byte OP_REMOVE = 2;
+	private final static byte OP_MOVE = 3;
+	private final static byte OP_POSITION = 4;
+
+	// bounds replaying, each edit moves part of the queue
+	private final static int MAX_EDITS = 512;
+	private final static int MIN_JOURNAL_SIZE = 16 * 1024;
+
+	/**
+	 * A queue as loaded from the store.
+	 */
+	public static class Queue {
+
+		public final long[] list;
+		public final int length;
+		public final int position;
+		public final int cardId;
+
+		public Queue(long[] list, int length, int position, int cardId) {
+
+			this.list = list;
+			this.length = length;
+			this.position = position;
+			this.cardId = cardId;
+		}
+	}
+
+	private final File mFile;
+	private final Handler mHandler;
+
+	// only touched on the store thread
+	private int mGeneration = 0;
+	// a write failed, records are dropped until a snapshot succeeds
+	private boolean mDiscarding = false;
+	private DataOutputStream mJournal;
+	private FileOutputStream mJournalStream;
+
+	// what has been handed to the store thread so far
+	private int mPosition = -1;
+	private int mEdits = 0;
+	private long mJournalSize = 0, mSnapshotSize = 0;
+	// the files don't match the queue until the next snapshot
+	private boolean mStale = false;
+
+	private int mSnapshots, mRecords;
+	private long mSnapshotTime, mLoadTime;
+
+	public QueueStore(File file) {
+
+		mFile = file;
+		HandlerThread thread = new HandlerThread("QueueStore", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Loads the snapshot and replays the journal on top of it, after
+	 * pending writes are done.
+	 *
+	 * @param order
+	 *            restored to the saved shuffle order, with the edits applied.
+	 * @return the queue, or null if none was saved.
+	 */
+	public Queue load(final ShuffleOrder order) {
+
+		final Queue[] result = new Queue[1];
+		final ConditionVariable done = new ConditionVariable();
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					result[0] = read(order);
+				} finally {
+					done.open();
+				}
+			}
+		});
+		done.block();
+		return result[0];
+	}
+
+	/**
+	 * @return true if the journal should be replaced by a snapshot.
+	 */
+	public synchronized boolean needsSnapshot() {
+
+		return mStale || mEdits > MAX_EDITS
+				|| mJournalSize > Math.max(MIN_JOURNAL_SIZE, mSnapshotSize);
+	}
+
+	/**
+	 * Asks for a snapshot after a change that isn't journaled, e.g. a new
+	 * shuffle order. Edits are not journaled until then.
+	 */
+	public synchronized void invalidate() {
+
+		mStale = true;
+	}
+
+	/**
+	 * Writes the whole queue in background and starts a new journal.
+	 */
+	public void snapshot(PlayQueue queue, ShuffleOrder order, int position, int cardId) {
+
+		final long[] ids = queue.toArray();
+		final int count = ids.length;
+		final int[] shuffle = new int[order.size()];
+		for (int i = 0; i < shuffle.length; i++) {
+			shuffle[i] = order.get(i);
+		}
+		final int cursor = order.getCursor();
+		final int pos = position;
+		final int card = cardId;
+		synchronized (this) {
+			mPosition = position;
+			mEdits = 0;
+			mJournalSize = 0;
+			mSnapshotSize = 36 + 8 * count + 4 * shuffle.length;
+			mStale = false;
+		}
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+
+				writeSnapshot(ids, count, shuffle, cursor, pos, card);
+			}
+		});
+	}
+
+	public void insert(int position, long[] list, int count) {
+
+		ByteBuffer record = ByteBuffer.allocate(9 + 8 * count);
+		record.put(OP_INSERT).putInt(position).putInt(count);
+		for (int i = 0; i < count; i++) {
+			record.putLong(list[i]);
+		}
+		append(record.array(), true);
+	}
+
+	public void remove(int first, int last) {
+
+		append(ByteBuffer.allocate(9).put(OP_REMOVE).putInt(first).putInt(last).array(), true);
+	}
+
+	public void move(int from, int to) {
+
+		if (from == to) return;
+		append(ByteBuffer.allocate(9).put(OP_MOVE).putInt(from).putInt(to).array(), true);
+	}
+
+	/**
+	 * Records the current position, nothing is written if it didn't change.
+	 */
+	public void setPosition(int position) {
+
+		synchronized (this) {
+			// kept unknown while stale, so it is written after the snapshot
+			if (mStale || position == mPosition) return;
+			mPosition = position;
+		}
+		append(ByteBuffer.allocate(5).put(OP_POSITION).putInt(position).array(), false);
+	}
+
+	private void append(final byte[] payload, boolean edit) {
+
+		synchronized (this) {
+			if (mStale) return;
+			if (edit) {
+				mEdits++;
+				// the position may now mean another track, record it again
+				mPosition = -2;
+			}
+			mJournalSize += payload.length + 8;
+		}
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+
+				writeRecord(payload);
+			}
+		});
+	}
+
+	/**
+	 * Waits for pending writes and stops the store thread.
+	 */
+	public void release() {
+
+		final ConditionVariable done = new ConditionVariable();
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+
+				closeJournal();
+				done.open();
+			}
+		});
+		done.block(1000);
+		mHandler.getLooper().quit();
+	}
+
+	private File getJournalFile(int generation) {
+
+		return new File(mFile.getPath() + ".journal." + generation);
+	}
+
+	private void writeRecord(byte[] payload) {
+
+		// the journal misses an earlier record, replaying it would be wrong
+		if (mDiscarding) return;
+		try {
+			if (mJournal == null) {
+				File file = getJournalFile(mGeneration);
+				boolean empty = file.length() == 0;
+				mJournalStream = new FileOutputStream(file, true);
+				mJournal = new DataOutputStream(new BufferedOutputStream(mJournalStream));
+				if (empty) {
+					mJournal.writeInt(JOURNAL_MAGIC);
+					mJournal.writeInt(VERSION);
+					mJournal.writeInt(mGeneration);
+				}
+			}
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			mJournal.writeInt(payload.length);
+			mJournal.write(payload);
+			mJournal.writeInt((int) crc.getValue());
+			mJournal.flush();
+			mJournalStream.getFD().sync();
+			synchronized (this) {
+				mRecords++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			discard();
+		}
+	}
+
+	/**
+	 * Stops journaling until the next snapshot is written.
+	 */
+	private void discard() {
+
+		closeJournal();
+		mDiscarding = true;
+		synchronized (this) {
+			mStale = true;
+		}
+	}
+
+	private void closeJournal() {
+
+		if (mJournal == null) return;
+		try {
+			mJournal.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		mJournal = null;
+		mJournalStream = null;
+	}
+
+	private void writeSnapshot(long[] ids, int count, int[] order, int cursor, int position,
+			int cardId) {
+
+		long start = SystemClock.elapsedRealtime();
+		int generation = mGeneration + 1;
+		File temp = new File(mFile.getPath() + ".tmp");
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(32 + 8 * count + 4 * order.length);
+			buffer.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putInt(generation).putInt(cardId);
+			buffer.putInt(position).putInt(cursor).putInt(count);
+			buffer.asLongBuffer().put(ids, 0, count);
+			buffer.position(buffer.position() + 8 * count);
+			buffer.putInt(order.length);
+			buffer.asIntBuffer().put(order);
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array());
+
+			FileOutputStream stream = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			try {
+				out.write(buffer.array());
+				out.writeInt((int) crc.getValue());
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mFile)) {
+				throw new IOException("cannot rename " + temp);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			// edits posted after this snapshot don't apply to the old one
+			discard();
+			return;
+		}
+		// the journal only applies to the old snapshot now
+		closeJournal();
+		getJournalFile(mGeneration).delete();
+		mGeneration = generation;
+		mDiscarding = false;
+		synchronized (this) {
+			mSnapshots++;
+			mSnapshotTime = SystemClock.elapsedRealtime() - start;
+		}
+	}
+
+	private Queue read(ShuffleOrder order) {
+
+		long start = SystemClock.elapsedRealtime();
+		closeJournal();
+		Replay replay = null;
+		try {
+			replay = readSnapshot(order);
+		} catch (FileNotFoundException e) {
+			// nothing saved yet
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (replay == null) {
+			synchronized (this) {
+				mStale = true;
+			}
+			return null;
+		}
+		mGeneration = replay.generation;
+		mDiscarding = false;
+		File journal = getJournalFile(mGeneration);
+		int edits = 0;
+		long valid = 0;
+		try {
+			valid = readJournal(journal, replay, order);
+			edits = replay.edits;
+		} catch (FileNotFoundException e) {
+			// no edits since the snapshot
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (journal.exists()) {
+			truncate(journal, valid);
+		}
+		deleteStaleJournals();
+
+		if (order.size() != replay.length) {
+			order.reset(replay.length, replay.position);
+		}
+		synchronized (this) {
+			mPosition = replay.position;
+			mEdits = edits;
+			mJournalSize = valid;
+			mSnapshotSize = mFile.length();
+			mStale = false;
+			mLoadTime = SystemClock.elapsedRealtime() - start;
+		}
+		return new Queue(replay.list, replay.length, replay.position, replay.cardId);
+	}
+
+	/**
+	 * The queue being rebuilt from the files.
+	 */
+	private static class Replay {
+
+		int generation, cardId, position, length, edits;
+		long[] list;
+
+		void ensureCapacity(int size) {
+
+			if (size <= list.length) return;
+			long[] grown = new long[Math.max(size, list.length * 2)];
+			System.arraycopy(list, 0, grown, 0, length);
+			list = grown;
+		}
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		while (length > 0) {
+			int n = Math.min(length, chunk.length);
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			length -= n;
+		}
+		return (int) crc.getValue();
+	}
+
+	private Replay readSnapshot(ShuffleOrder order) throws IOException {
+
+		MappedByteBuffer buffer = map(mFile);
+		int size = buffer.capacity();
+		if (size < 36 || buffer.getInt(0) != SNAPSHOT_MAGIC || buffer.getInt(4) != VERSION) {
+			return null;
+		}
+		if (checksum(buffer, 0, size - 4) != buffer.getInt(size - 4)) return null;
+
+		Replay replay = new Replay();
+		buffer.position(8);
+		replay.generation = buffer.getInt();
+		replay.cardId = buffer.getInt();
+		replay.position = buffer.getInt();
+		int cursor = buffer.getInt();
+		int count = buffer.getInt();
+		if (count < 0 || 32 + 8L * count + 4 > size) return null;
+		replay.list = new long[Math.max(count, 16)];
+		buffer.asLongBuffer().get(replay.list, 0, count);
+		replay.length = count;
+		buffer.position(buffer.position() + 8 * count);
+		int orderCount = buffer.getInt();
+		if (orderCount != count || 32 + 8L * count + 4L * orderCount + 4 != size) {
+			order.reset(count, replay.position);
+		} else {
+			int[] shuffle = new int[orderCount];
+			buffer.asIntBuffer().get(shuffle);
+			if (!order.restore(shuffle, orderCount, cursor)) {
+				order.reset(count, replay.position);
+			}
+		}
+		if (replay.position < -1 || replay.position >= count) return null;
+		return replay;
+	}
+
+	/**
+	 * Applies the records of the journal up to the first one that is torn
+	 * or doesn't fit the queue.
+	 *
+	 * @return size of the valid part of the journal.
+	 */
+	private static long readJournal(File file, Replay replay, ShuffleOrder order)
+			throws IOException {
+
+		MappedByteBuffer buffer = map(file);
+		int size = buffer.capacity();
+		if (size < 12 || buffer.getInt(0) != JOURNAL_MAGIC || buffer.getInt(4) != VERSION
+				|| buffer.getInt(8) != replay.generation) {
+			return 0;
+		}
+		int offset = 12;
+		while (offset + 8 <= size) {
+			int length = buffer.getInt(offset);
+			if (length < 5 || length > size - offset - 8) break;
+			if (checksum(buffer, offset + 4, length) != buffer.getInt(offset + 4 + length)) break;
+			buffer.position(offset + 4);
+			if (!apply(buffer, length, replay, order)) break;
+			offset += length + 8;
+		}
+		return offset;
+	}
+
+	private static boolean apply(ByteBuffer buffer, int length, Replay replay, ShuffleOrder order) {
+
+		byte op = buffer.get();
+		int a = buffer.getInt();
+		switch (op) {
+			case OP_INSERT: {
+				int count = length >= 9 ? buffer.getInt() : -1;
+				if (count < 0 || length != 9 + 8 * count || a < 0 || a > replay.length) {
+					return false;
+				}
+				replay.ensureCapacity(replay.length + count);
+				System.arraycopy(replay.list, a, replay.list, a + count, replay.length - a);
+				buffer.asLongBuffer().get(replay.list, a, count);
+				replay.length += count;
+				order.insert(a, count);
+				break;
+			}
+			case OP_REMOVE: {
+				int b = length == 9 ? buffer.getInt() : -1;
+				if (a < 0 || b < a || b >= replay.length) return false;
+				System.arraycopy(replay.list, b + 1, replay.list, a, replay.length - b - 1);
+				replay.length -= b - a + 1;
+				order.remove(a, b);
+				break;
+			}
+			case OP_MOVE: {
+				int b = length == 9 ? buffer.getInt() : -1;
+				if (a < 0 || a >= replay.length || b < 0 || b >= replay.length) return false;
+				long id = replay.list[a];
+				if (a < b) {
+					System.arraycopy(replay.list, a + 1, replay.list, a, b - a);
+				} else {
+					System.arraycopy(replay.list, b, replay.list, b + 1, a - b);
+				}
+				replay.list[b] = id;
+				order.move(a, b);
+				break;
+			}
+			case OP_POSITION:
+				if (length != 5 || a < -1 || a >= replay.length) return false;
+				replay.position = a;
+				order.moveTo(a);
+				return true;
+			default:
+				return false;
+		}
+		replay.edits++;
+		if (replay.position >= replay.length) replay.position = replay.length - 1;
+		return true;
+	}
+
+	private static void truncate(File file, long length) {
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (length < 12) {
+					raf.setLength(0);
+				} else if (raf.length() > length) {
+					raf.setLength(length);
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void deleteStaleJournals() {
+
+		File dir = mFile.getParentFile();
+		String prefix = mFile.getName() + ".journal.";
+		String current = getJournalFile(mGeneration).getName();
+		String[] names = dir != null ? dir.list() : null;
+		if (names == null) return;
+		for (String name : names) {
+			if (name.startsWith(prefix) && !name.equals(current)) {
+				new File(dir, name).delete();
+			}
+		}
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("queue store: generation " + mGeneration + ", snapshot " + mSnapshotSize
+				+ " bytes, journal " + mJournalSize + " bytes / " + mEdits + " edits"
+				+ (mStale ? ", stale" : "") + ", " + mSnapshots + " snapshots (last "
+				+ mSnapshotTime + " ms), " + mRecords + " records, load " + mLoadTime + " ms");
+	}
+}
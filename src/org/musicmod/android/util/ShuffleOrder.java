@@ -0,0 +1,282 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.util.Random;
+
+/**
+ * Play order of the queue in shuffle mode.
+ *
+ * The order is a random permutation of queue positions with a cursor at the
+ * current track: positions before the cursor have been played, in the order
+ * they were played, and positions after it are coming up. Going to the next
+ * or previous track moves the cursor, and the inverse permutation tells in
+ * constant time whether a position has been played.
+ *
+ * Tracks added to the queue are shuffled into the upcoming part, removed and
+ * moved tracks are renumbered, so editing the queue keeps the history and
+ * the upcoming order.
+ */
+public class ShuffleOrder {
+
+	private final Random mRandom;
+	// queue positions in play order, and the index of each position in it
+	private int[] mOrder = new int[16];
+	private int[] mIndex = new int[16];
+	private int mSize = 0;
+	private int mCursor = -1;
+
+	public ShuffleOrder(Random random) {
+
+		mRandom = random;
+	}
+
+	/**
+	 * Shuffles the whole queue, nothing has been played yet.
+	 *
+	 * @param current
+	 *            position to play first, -1 to pick one at random.
+	 */
+	public void reset(int size, int current) {
+
+		ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			mOrder[i] = i;
+		}
+		mSize = size;
+		shuffle(0);
+		mCursor = -1;
+		if (current >= 0 && current < size) {
+			moveTo(current);
+		} else if (size > 0) {
+			mCursor = 0;
+		}
+	}
+
+	/**
+	 * Starts another round over the whole queue after the current track,
+	 * which is not going to be picked first.
+	 */
+	public void reshuffle() {
+
+		int current = current();
+		if (current < 0) {
+			reset(mSize, -1);
+			return;
+		}
+		swap(0, mIndex[current]);
+		shuffle(1);
+		mCursor = 0;
+	}
+
+	/**
+	 * Restores an order saved with {@link #get(int)} and {@link #getCursor()}.
+	 *
+	 * @return false if the order is not a permutation of the queue.
+	 */
+	public boolean restore(int[] order, int size, int cursor) {
+
+		if (cursor < -1 || cursor >= size) return false;
+		ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			mIndex[i] = -1;
+		}
+		for (int i = 0; i < size; i++) {
+			int position = order[i];
+			if (position < 0 || position >= size || mIndex[position] >= 0) return false;
+			mIndex[position] = i;
+		}
+		System.arraycopy(order, 0, mOrder, 0, size);
+		mSize = size;
+		mCursor = cursor;
+		return true;
+	}
+
+	public int size() {
+
+		return mSize;
+	}
+
+	/**
+	 * @return the queue position at the given index of the play order.
+	 */
+	public int get(int index) {
+
+		return mOrder[index];
+	}
+
+	public int getCursor() {
+
+		return mCursor;
+	}
+
+	/**
+	 * @return the current position, or -1 if none.
+	 */
+	public int current() {
+
+		return mCursor >= 0 ? mOrder[mCursor] : -1;
+	}
+
+	/**
+	 * @return the position after the current one, or -1 if all have been
+	 *         played.
+	 */
+	public int peekNext() {
+
+		return mCursor + 1 < mSize ? mOrder[mCursor + 1] : -1;
+	}
+
+	/**
+	 * @return the position played before the current one, or -1 if none.
+	 */
+	public int peekPrevious() {
+
+		return mCursor > 0 ? mOrder[mCursor - 1] : -1;
+	}
+
+	public boolean isPlayed(int position) {
+
+		return mIndex[position] < mCursor;
+	}
+
+	/**
+	 * Makes a position the current one. The next or previous position just
+	 * moves the cursor, an upcoming one is swapped in after the cursor and a
+	 * played one is taken out of the history.
+	 */
+	public void moveTo(int position) {
+
+		if (position < 0 || position >= mSize) return;
+		int index = mIndex[position];
+		if (index == mCursor) return;
+		if (index == mCursor - 1) {
+			mCursor--;
+		} else if (index > mCursor) {
+			swap(index, mCursor + 1);
+			mCursor++;
+		} else {
+			// keep the rest of the history in order
+			System.arraycopy(mOrder, index + 1, mOrder, index, mCursor - index);
+			mOrder[mCursor] = position;
+			for (int i = index; i <= mCursor; i++) {
+				mIndex[mOrder[i]] = i;
+			}
+		}
+	}
+
+	/**
+	 * Inserts positions into the queue and shuffles them into the upcoming
+	 * part of the order.
+	 */
+	public void insert(int position, int count) {
+
+		if (count <= 0) return;
+		for (int i = 0; i < mSize; i++) {
+			if (mOrder[i] >= position) mOrder[i] += count;
+		}
+		ensureCapacity(mSize + count);
+		for (int i = 0; i < count; i++) {
+			// inside-out Fisher-Yates over the upcoming part
+			mOrder[mSize] = position + i;
+			int j = mCursor + 1 + mRandom.nextInt(mSize - mCursor);
+			int tmp = mOrder[j];
+			mOrder[j] = mOrder[mSize];
+			mOrder[mSize] = tmp;
+			mSize++;
+		}
+		reindex();
+	}
+
+	/**
+	 * Removes the range of positions from the queue. If the current position
+	 * is removed, the one played before it becomes current.
+	 */
+	public void remove(int first, int last) {
+
+		if (last < first) return;
+		int count = last - first + 1;
+		int size = 0, cursor = mCursor;
+		for (int i = 0; i < mSize; i++) {
+			int position = mOrder[i];
+			if (position >= first && position <= last) {
+				if (i <= mCursor) cursor--;
+			} else {
+				mOrder[size++] = position > last ? position - count : position;
+			}
+		}
+		mSize = size;
+		mCursor = cursor;
+		reindex();
+	}
+
+	/**
+	 * Renumbers positions after the track at from was moved to to.
+	 */
+	public void move(int from, int to) {
+
+		if (from == to) return;
+		for (int i = 0; i < mSize; i++) {
+			int position = mOrder[i];
+			if (position == from) {
+				mOrder[i] = to;
+			} else if (from < to && position > from && position <= to) {
+				mOrder[i] = position - 1;
+			} else if (from > to && position >= to && position < from) {
+				mOrder[i] = position + 1;
+			}
+		}
+		reindex();
+	}
+
+	private void shuffle(int start) {
+
+		for (int i = mSize - 1; i > start; i--) {
+			int j = start + mRandom.nextInt(i - start + 1);
+			int tmp = mOrder[i];
+			mOrder[i] = mOrder[j];
+			mOrder[j] = tmp;
+		}
+		reindex();
+	}
+
+	private void swap(int i, int j) {
+
+		int tmp = mOrder[i];
+		mOrder[i] = mOrder[j];
+		mOrder[j] = tmp;
+		mIndex[mOrder[i]] = i;
+		mIndex[mOrder[j]] = j;
+	}
+
+	private void reindex() {
+
+		for (int i = 0; i < mSize; i++) {
+			mIndex[mOrder[i]] = i;
+		}
+	}
+
+	private void ensureCapacity(int size) {
+
+		if (size <= mOrder.length) return;
+		int capacity = Math.max(size, mOrder.length * 2);
+		int[] order = new int[capacity];
+		System.arraycopy(mOrder, 0, order, 0, mSize);
+		mOrder = order;
+		mIndex = new int[capacity];
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+/**
+ * Values by audio id, kept in sorted parallel arrays and written to a single
+ * file as a whole.
+ *
+ * Each column holds int or long values. Subclasses synchronize on themselves
+ * around every access, {@link #save()} copies the table under that lock and
+ * writes it without it.
+ *
+ * File layout (big endian):
+ *
+ * <pre>
+ * int     magic
+ * int     version
+ * int     count
+ * long[]  audio ids, ascending
+ *         per column: int[] or long[] values
+ * </pre>
+ */
+public abstract class SortedIdStore {
+
+	private final static int MIN_CAPACITY = 16;
+
+	private final File mFile;
+	private final int mMagic;
+	private final int mVersion;
+	private long[] mIds = new long[MIN_CAPACITY];
+	// int[] or long[]
+	private final Object[] mColumns;
+	private int mCount = 0;
+	private boolean mDirty = false;
+
+	/**
+	 * @param types
+	 *            int.class or long.class for each column.
+	 */
+	protected SortedIdStore(File file, int magic, int version, Class<?>... types) {
+
+		mFile = file;
+		mMagic = magic;
+		mVersion = version;
+		mColumns = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			mColumns[i] = Array.newInstance(types[i], MIN_CAPACITY);
+		}
+		load();
+	}
+
+	protected final int size() {
+
+		return mCount;
+	}
+
+	protected final boolean isDirty() {
+
+		return mDirty;
+	}
+
+	/**
+	 * @return index of the id, or -(insertion point + 1) if it isn't stored.
+	 */
+	protected final int indexOf(long id) {
+
+		int low = 0, high = mCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mIds[mid] < id) {
+				low = mid + 1;
+			} else if (mIds[mid] > id) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Adds a row with all values 0 for an id that isn't stored.
+	 *
+	 * @return index of the new row.
+	 */
+	protected final int insert(long id) {
+
+		int index = -indexOf(id) - 1;
+		if (mCount == mIds.length) {
+			mIds = (long[]) copyOf(mIds, mCount * 2);
+			for (int i = 0; i < mColumns.length; i++) {
+				mColumns[i] = copyOf(mColumns[i], mCount * 2);
+			}
+		}
+		System.arraycopy(mIds, index, mIds, index + 1, mCount - index);
+		mIds[index] = id;
+		for (Object column : mColumns) {
+			System.arraycopy(column, index, column, index + 1, mCount - index);
+			if (column instanceof int[]) {
+				((int[]) column)[index] = 0;
+			} else {
+				((long[]) column)[index] = 0;
+			}
+		}
+		mCount++;
+		mDirty = true;
+		return index;
+	}
+
+	protected final void remove(int index) {
+
+		System.arraycopy(mIds, index + 1, mIds, index, mCount - index - 1);
+		for (Object column : mColumns) {
+			System.arraycopy(column, index + 1, column, index, mCount - index - 1);
+		}
+		mCount--;
+		mDirty = true;
+	}
+
+	protected final int getInt(int column, int index) {
+
+		return ((int[]) mColumns[column])[index];
+	}
+
+	protected final void setInt(int column, int index, int value) {
+
+		((int[]) mColumns[column])[index] = value;
+		mDirty = true;
+	}
+
+	protected final long getLong(int column, int index) {
+
+		return ((long[]) mColumns[column])[index];
+	}
+
+	protected final void setLong(int column, int index, long value) {
+
+		((long[]) mColumns[column])[index] = value;
+		mDirty = true;
+	}
+
+	private static Object copyOf(Object array, int capacity) {
+
+		Object copy = Array.newInstance(array.getClass().getComponentType(), capacity);
+		System.arraycopy(array, 0, copy, 0, Math.min(Array.getLength(array), capacity));
+		return copy;
+	}
+
+	private void load() {
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if (in.readInt() != mMagic || in.readInt() != mVersion) return;
+			int count = in.readInt();
+			int capacity = Math.max(count, MIN_CAPACITY);
+			long[] ids = new long[capacity];
+			for (int i = 0; i < count; i++) {
+				ids[i] = in.readLong();
+			}
+			Object[] columns = new Object[mColumns.length];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = copyOf(mColumns[i], capacity);
+				if (columns[i] instanceof int[]) {
+					int[] values = (int[]) columns[i];
+					for (int j = 0; j < count; j++) {
+						values[j] = in.readInt();
+					}
+				} else {
+					long[] values = (long[]) columns[i];
+					for (int j = 0; j < count; j++) {
+						values[j] = in.readLong();
+					}
+				}
+			}
+			mIds = ids;
+			System.arraycopy(columns, 0, mColumns, 0, columns.length);
+			mCount = count;
+		} catch (FileNotFoundException e) {
+			// nothing stored yet
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the table if it changed since it was loaded or last saved.
+	 */
+	public void save() {
+
+		long[] ids;
+		Object[] columns = new Object[mColumns.length];
+		int count;
+		synchronized (this) {
+			if (!mDirty) return;
+			mDirty = false;
+			count = mCount;
+			ids = (long[]) copyOf(mIds, count);
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = copyOf(mColumns[i], count);
+			}
+		}
+		File temp = new File(mFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			try {
+				out.writeInt(mMagic);
+				out.writeInt(mVersion);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeLong(ids[i]);
+				}
+				for (Object column : columns) {
+					if (column instanceof int[]) {
+						for (int value : (int[]) column) {
+							out.writeInt(value);
+						}
+					} else {
+						for (long value : (long[]) column) {
+							out.writeLong(value);
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mFile)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			synchronized (this) {
+				mDirty = true;
+			}
+		}
+	}
+}
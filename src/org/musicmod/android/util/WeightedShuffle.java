@@ -0,0 +1,268 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.util;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.musicmod.android.Constants;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore.Audio.Playlists;
+
+/**
+ * Picks queue positions at random, weighted by how much the track is liked.
+ *
+ * The weight of a track is
+ *
+ * <pre>
+ * (favorite ? FAVORITE_WEIGHT : 1) * (1 + log(1 + play count)) * recency
+ * </pre>
+ *
+ * where recency grows from {@link #MIN_RECENCY} right after the track was
+ * played towards 1 over about {@link #RECENCY_TIME}.
+ *
+ * Weights go into an {@link AliasTable} that is rebuilt in background
+ * whenever the favorites or the play counts change. Sampling only reads the
+ * last table built, so it never waits for the rebuild or any I/O. Editing the
+ * queue doesn't rebuild the table, a pick that no longer matches the queue
+ * falls back to a uniform pick and requests the rebuild.
+ */
+public class WeightedShuffle implements Constants {
+
+	private final static int REBUILD = 1;
+	private final static int RELOAD_FAVORITES = 2;
+	private final static int SAVE_STATS = 3;
+
+	private final static double FAVORITE_WEIGHT = 4;
+	private final static double MIN_RECENCY = 0.05;
+	private final static long RECENCY_TIME = 24 * 60 * 60 * 1000;
+	// coalesces weight changes, e.g. a burst of skipped tracks
+	private final static long REBUILD_DELAY = 1000;
+	private final static long SAVE_DELAY = 5000;
+	// tries to avoid picking the current track again
+	private final static int MAX_RETRIES = 8;
+
+	/**
+	 * A table and the queue it was built for. Not modified once published.
+	 */
+	private static class Snapshot {
+
+		final long[] queue;
+		final AliasTable table;
+
+		Snapshot(long[] queue, AliasTable table) {
+
+			this.queue = queue;
+			this.table = table;
+		}
+	}
+
+	private final Context mContext;
+	private final PlayStatsStore mStats;
+	private final Handler mHandler;
+	private final Random mRandom = new Random();
+
+	private volatile Snapshot mSnapshot = new Snapshot(new long[0], new AliasTable(
+			new double[0], 0));
+	private long[] mQueue = new long[0];
+	// a rebuild for a changed queue is on its way
+	private boolean mQueueChanged = false;
+	// sorted audio ids
+	private long[] mFavorites = new long[0];
+
+	private int mRebuilds, mFallbacks;
+	private long mRebuildTime;
+
+	public WeightedShuffle(Context context, File stats) {
+
+		mContext = context;
+		mStats = new PlayStatsStore(stats);
+		HandlerThread thread = new HandlerThread("WeightedShuffle",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper()) {
+
+			@Override
+			public void handleMessage(Message msg) {
+
+				switch (msg.what) {
+					case RELOAD_FAVORITES:
+						loadFavorites();
+						rebuild();
+						break;
+					case REBUILD:
+						rebuild();
+						break;
+					case SAVE_STATS:
+						mStats.save();
+						break;
+				}
+			}
+		};
+		mHandler.sendEmptyMessage(RELOAD_FAVORITES);
+	}
+
+	/**
+	 * Rebuilds the table for a changed queue.
+	 *
+	 * @param queue
+	 *            ids of the queue, not to be modified afterwards.
+	 */
+	public void update(long[] queue) {
+
+		synchronized (this) {
+			mQueue = queue;
+			mQueueChanged = true;
+		}
+		mHandler.removeMessages(REBUILD);
+		mHandler.sendEmptyMessage(REBUILD);
+	}
+
+	/**
+	 * Counts a play of the track, its weight drops for a while.
+	 */
+	public void played(long id) {
+
+		mStats.played(id, System.currentTimeMillis());
+		mHandler.removeMessages(SAVE_STATS);
+		mHandler.sendEmptyMessageDelayed(SAVE_STATS, SAVE_DELAY);
+		if (!mHandler.hasMessages(REBUILD)) {
+			mHandler.sendEmptyMessageDelayed(REBUILD, REBUILD_DELAY);
+		}
+	}
+
+	public void reloadFavorites() {
+
+		mHandler.removeMessages(RELOAD_FAVORITES);
+		mHandler.sendEmptyMessage(RELOAD_FAVORITES);
+	}
+
+	/**
+	 * @return a random position in the queue other than the current one if
+	 *         possible, -1 if the queue is empty.
+	 */
+	public int sample(PlayQueue queue, int current) {
+
+		int length = queue.size();
+		if (length <= 0) return -1;
+		if (length == 1) return 0;
+		Snapshot snapshot = mSnapshot;
+		boolean changed = snapshot.queue.length != length;
+		for (int i = 0; i < MAX_RETRIES && !changed; i++) {
+			int position = snapshot.table.sample(mRandom);
+			if (position < 0 || queue.get(position) != snapshot.queue[position]) {
+				changed = true;
+			} else if (position != current) {
+				return position;
+			}
+		}
+		boolean rebuild;
+		synchronized (this) {
+			mFallbacks++;
+			rebuild = changed && !mQueueChanged;
+		}
+		if (rebuild) update(queue.toArray());
+		int position = mRandom.nextInt(length - 1);
+		return current >= 0 && position >= current ? position + 1 : position;
+	}
+
+	private void loadFavorites() {
+
+		long[] favorites = new long[0];
+		Cursor c = MusicUtils.query(mContext, Playlists.EXTERNAL_CONTENT_URI,
+				new String[] { Playlists._ID }, Playlists.NAME + "=?",
+				new String[] { PLAYLIST_NAME_FAVORITES }, null);
+		long playlist = -1;
+		if (c != null) {
+			if (c.moveToFirst()) playlist = c.getLong(0);
+			c.close();
+		}
+		if (playlist >= 0) {
+			c = MusicUtils.query(mContext, Playlists.Members.getContentUri("external", playlist),
+					new String[] { Playlists.Members.AUDIO_ID }, null, null, null);
+			if (c != null) {
+				favorites = new long[c.getCount()];
+				int count = 0;
+				while (c.moveToNext() && count < favorites.length) {
+					favorites[count++] = c.getLong(0);
+				}
+				c.close();
+				Arrays.sort(favorites, 0, count);
+			}
+		}
+		synchronized (this) {
+			mFavorites = favorites;
+		}
+	}
+
+	private void rebuild() {
+
+		long start = SystemClock.elapsedRealtime();
+		long[] queue, favorites;
+		synchronized (this) {
+			queue = mQueue;
+			favorites = mFavorites;
+			mQueueChanged = false;
+		}
+		long now = System.currentTimeMillis();
+		double[] weights = new double[queue.length];
+		for (int i = 0; i < queue.length; i++) {
+			weights[i] = weight(queue[i], favorites, now);
+		}
+		mSnapshot = new Snapshot(queue, new AliasTable(weights, queue.length));
+		synchronized (this) {
+			mRebuilds++;
+			mRebuildTime = SystemClock.elapsedRealtime() - start;
+		}
+	}
+
+	private double weight(long id, long[] favorites, long now) {
+
+		double weight = Arrays.binarySearch(favorites, id) >= 0 ? FAVORITE_WEIGHT : 1;
+		weight *= 1 + Math.log(1 + mStats.getCount(id));
+		long last = mStats.getLastPlayed(id);
+		if (last > 0) {
+			double age = Math.max(now - last, 0);
+			weight *= Math.max(MIN_RECENCY, 1 - Math.exp(-3 * age / RECENCY_TIME));
+		}
+		return weight;
+	}
+
+	public void release() {
+
+		mHandler.removeCallbacksAndMessages(null);
+		mHandler.getLooper().quit();
+		mStats.save();
+	}
+
+	public synchronized void dump(PrintWriter out) {
+
+		out.println("weighted shuffle: " + mSnapshot.table.size() + " tracks, "
+				+ mFavorites.length + " favorites, " + mRebuilds + " rebuilds (last "
+				+ mRebuildTime + " ms), " + mFallbacks + " uniform fallbacks");
+		mStats.dump(out);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *              Copyright (C) 2012 The MusicMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *            http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.musicmod.android.widget;
+
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.text.TextPaint;
+
+/**
+ * Sweeps a highlight across a text layout following word timing of enhanced
+ * LRC lyrics, see {@link org.musicmod.android.util.LyricsParser#getAllWords()}.
+ *
+ * Word positions are measured once per layout, drawing a frame only clips
+ * and redraws the layout, so nothing is allocated while animating.
+ */
+public class KaraokeHighlighter {
+
+	private long[] mWords;
+	private int mFirst, mCount;
+	private Layout mLayout;
+	private int mLayoutWidth;
+	private float[] mWordStart = new float[0];
+	private float[] mWordEnd = new float[0];
+	private int[] mWordLine = new int[0];
+	private int mCursor;
+
+	/**
+	 * The range is clamped to the words, the line indexes and the words may
+	 * come from different lyrics if they changed while being fetched.
+	 *
+	 * @param words
+	 *            packed word timing
+	 * @param first
+	 *            first word of the line
+	 * @param last
+	 *            end of the words of the line, exclusive
+	 */
+	public void setWords(long[] words, int first, int last) {
+
+		int length = words != null ? words.length : 0;
+		first = Math.max(0, Math.min(first, length));
+		last = Math.max(first, Math.min(last, length));
+		mWords = words;
+		mFirst = first;
+		mCount = last - first;
+		mCursor = 0;
+		mLayout = null;
+	}
+
+	public boolean hasWords() {
+
+		return mWords != null && mCount > 0;
+	}
+
+	/**
+	 * @return time of the last word, the sweep is complete after it.
+	 */
+	public long getEndTime() {
+
+		return hasWords() ? mWords[mFirst + mCount - 1] >> 16 : 0;
+	}
+
+	private void measure(Layout layout) {
+
+		mLayout = layout;
+		mLayoutWidth = layout.getWidth();
+		if (mWordStart.length < mCount) {
+			mWordStart = new float[mCount];
+			mWordEnd = new float[mCount];
+			mWordLine = new int[mCount];
+		}
+		int length = layout.getText().length();
+		for (int i = 0; i < mCount; i++) {
+			int offset = Math.min((int) (mWords[mFirst + i] & 0xFFFF), length);
+			int next = i + 1 < mCount ? (int) (mWords[mFirst + i + 1] & 0xFFFF) : length;
+			next = Math.min(next, length);
+			int line = layout.getLineForOffset(offset);
+			mWordLine[i] = line;
+			mWordStart[i] = offset < length ? layout.getPrimaryHorizontal(offset) : layout
+					.getLineRight(line);
+			if (next > offset && next < length && layout.getLineForOffset(next) == line) {
+				mWordEnd[i] = layout.getPrimaryHorizontal(next);
+			} else {
+				mWordEnd[i] = layout.getLineRight(line);
+			}
+		}
+	}
+
+	/**
+	 * Draws the part of the layout that has been sung at the given position.
+	 * The canvas must be translated to the origin of the layout.
+	 * 
+	 * @return true if the highlight will still move after this position.
+	 */
+	public boolean draw(Canvas canvas, Layout layout, TextPaint paint, int color, long position) {
+
+		if (!hasWords()) return false;
+		if (layout != mLayout || layout.getWidth() != mLayoutWidth) {
+			measure(layout);
+		}
+
+		// words are in time order, move the cursor like LyricsParser.advance()
+		if (mCursor >= mCount || (mWords[mFirst + mCursor] >> 16) > position) {
+			mCursor = 0;
+		}
+		while (mCursor + 1 < mCount && (mWords[mFirst + mCursor + 1] >> 16) <= position) {
+			mCursor++;
+		}
+		int word = mCursor;
+		long start = mWords[mFirst + word] >> 16;
+		if (start > position) {
+			return true;
+		}
+
+		float x = mWordEnd[word];
+		if (word + 1 < mCount) {
+			long end = mWords[mFirst + word + 1] >> 16;
+			if (end > start) {
+				float fraction = Math.min(1f, (float) (position - start) / (end - start));
+				x = mWordStart[word] + (mWordEnd[word] - mWordStart[word]) * fraction;
+			}
+		}
+
+		int line = mWordLine[word];
+		int old_color = paint.getColor();
+		paint.setColor(color);
+		if (line > 0) {
+			canvas.save();
+			canvas.clipRect(0, 0, mLayoutWidth, layout.getLineTop(line));
+			layout.draw(canvas);
+			canvas.restore();
+		}
+		canvas.save();
+		canvas.clipRect(0, layout.getLineTop(line), x, layout.getLineBottom(line));
+		layout.draw(canvas);
+		canvas.restore();
+		paint.setColor(old_color);
+
+		return word + 1 < mCount;
+	}
+}
@@ -4,31 +4,67 @@ import org.musicmod.android.R;
 import org.musicmod.android.util.LyricsSplitter;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
 import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.GestureDetector;
 import android.view.Gravity;
+import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.View.OnLongClickListener;
-import android.widget.LinearLayout;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.Scroller;
 
-public class TextScrollView extends ScrollView implements OnLongClickListener {
+/**
+ * Scrolling lyrics view.
+ *
+ * Lines are laid out once into {@link StaticLayout}s when the content, width
+ * or text size changes, and only the lines inside the viewport are drawn.
+ * Changing the current line or the color doesn't cause a layout pass.
+ */
+public class TextScrollView extends View {
 
-	private LinearLayout mScrollContainer;
-	private LinearLayout mContentContainer, mContentEmptyView;
+	private final int TIMEOUT = 1;
+	private final static int SCROLL_DURATION = 400;
+
+	private TextPaint mPaint;
+	private LyricsSplitter mSplitter;
+	private Scroller mScroller;
+	private GestureDetector mGestureDetector;
+	private View mEmptyView;
 	private boolean mSmoothScrolling = false;
 	private boolean mEnableAutoScrolling = true;
 	private int mTextColor = Color.WHITE;
+	private int mHighlightColor;
 	private float mTextSize = 15.0f;
+	private Layout.Alignment mAlignment = Layout.Alignment.ALIGN_CENTER;
 	private int mLastLineId = -1;
-	private String[] mContent;
-	private final int TIMEOUT = 1;
 	public OnLineSelectedListener mListener;
-	private Context mContext;
+
+	private String[] mContent;
+	private int[] mGroupSizes;
+	private long[] mWords;
+	private int[] mLineWords;
+
+	// laid out content, arrays are reused across tracks
+	private StaticLayout[] mLayouts = new StaticLayout[0];
+	private int[] mLineTop = new int[1];
+	private int[] mGroupFirst = new int[1];
+	private int mLineCount, mGroupCount;
+	private int mLayoutWidth = -1;
+
+	// word timing of the lines of the current group
+	private KaraokeHighlighter[] mHighlighters = new KaraokeHighlighter[0];
+	private long mClockPosition, mClockRealtime;
+	private long mLyricsOffset;
+	private boolean mClockPlaying;
+	private long[] mTimestamps;
 
 	public TextScrollView(Context context) {
 
@@ -54,147 +90,459 @@ public class TextScrollView extends ScrollView implements OnLongClickListener {
 
 	private void init(Context context) {
 
-		mContext = context;
-		
+		mHighlightColor = context.getResources().getColor(R.color.lyrics_highlight_color);
+
+		float density = getResources().getDisplayMetrics().density;
+		mPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+		mPaint.density = density;
+		mPaint.setShadowLayer(4 * density, 0, 0, Color.BLACK);
+		mPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, mTextSize,
+				getResources().getDisplayMetrics()));
+		mSplitter = new LyricsSplitter(mPaint);
+
+		mScroller = new Scroller(context);
+		mGestureDetector = new GestureDetector(context, mGestureListener);
 		setVerticalScrollBarEnabled(false);
-		mScrollContainer = new LinearLayout(context);
-		mScrollContainer.setOrientation(LinearLayout.VERTICAL);
-		addView(mScrollContainer, new LayoutParams(LayoutParams.MATCH_PARENT,
-				LayoutParams.MATCH_PARENT));
+		setVerticalFadingEdgeEnabled(true);
+	}
 
-		mContentContainer = new LinearLayout(context);
-		mContentContainer.setOrientation(LinearLayout.VERTICAL);
-		mContentContainer.setPadding(0, getHeight() / 2, 0, getHeight() / 2);
-		mScrollContainer.addView(mContentContainer, new LayoutParams(LayoutParams.MATCH_PARENT,
-				LayoutParams.WRAP_CONTENT));
+	/**
+	 * Sets a view to be shown instead of this one when there are no lyrics.
+	 */
+	public void setEmptyView(View view) {
 
-		mContentEmptyView = (LinearLayout) inflate(context, R.layout.content_empty_view, null);
-		mContentEmptyView.setLayoutParams(new LayoutParams(getWidth(), getHeight()));
-		mScrollContainer.addView(mContentEmptyView, new LayoutParams(LayoutParams.MATCH_PARENT,
-				LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+		mEmptyView = view;
+		updateEmptyView();
 	}
 
 	public void setTextContent(String[] content) {
 
+		setTextContent(content, null, null, null);
+	}
+
+	/**
+	 * @param content
+	 *            all lines in display order
+	 * @param group_sizes
+	 *            number of lines of each lyrics id, lines sharing a timestamp
+	 *            such as translations are highlighted together. One line per
+	 *            id if null.
+	 * @param words
+	 *            packed word timing of all lines, may be null
+	 * @param line_words
+	 *            index of the first word of each line into words, may be null
+	 */
+	public void setTextContent(String[] content, int[] group_sizes, long[] words,
+			int[] line_words) {
+
 		mContent = content;
+		mGroupSizes = group_sizes;
+		mWords = words;
+		mLineWords = line_words;
 		mLastLineId = -1;
-		mContentContainer.removeAllViews();
-		System.gc();
+		mTimestamps = null;
+		removeCallbacks(mTimelineRunnable);
+
+		buildLayouts();
+		updateEmptyView();
+		mScroller.forceFinished(true);
+		scrollTo(0, 0);
+		invalidate();
+	}
+
+	private void updateEmptyView() {
+
+		if (mEmptyView != null) {
+			boolean empty = mContent == null || mContent.length == 0;
+			mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+		}
+	}
+
+	/**
+	 * Lays out all lines, done once per content, width or text size change.
+	 */
+	private void buildLayouts() {
 
-		if (content == null || content.length == 0) {
-			mContentContainer.setVisibility(View.GONE);
-			mContentEmptyView.setVisibility(View.VISIBLE);
+		int count = mContent != null ? mContent.length : 0;
+		int groups = mGroupSizes != null ? mGroupSizes.length : count;
+		if (mGroupFirst.length < groups + 1) {
+			mGroupFirst = new int[groups + 1];
+		}
+		int line = 0;
+		for (int i = 0; i < groups; i++) {
+			mGroupFirst[i] = line;
+			line = Math.min(count, line + (mGroupSizes != null ? mGroupSizes[i] : 1));
+		}
+		mGroupFirst[groups] = line;
+		mGroupCount = groups;
+		mLineCount = line;
+
+		int width = getWidth() - getPaddingLeft() - getPaddingRight();
+		if (width <= 0) {
+			// not measured yet, onSizeChanged() will do it
+			mLayoutWidth = -1;
 			return;
 		}
+		if (mLayouts.length < mLineCount) {
+			mLayouts = new StaticLayout[mLineCount];
+		}
+		if (mLineTop.length < mLineCount + 1) {
+			mLineTop = new int[mLineCount + 1];
+		}
+		mPaint.setFakeBoldText(false);
+		int top = 0;
+		for (int i = 0; i < mLineCount; i++) {
+			// word offsets refer to the original text, let the layout wrap it
+			String text = hasWords(i) ? mContent[i] : mSplitter.split(mContent[i], width);
+			mLayouts[i] = new StaticLayout(text, mPaint, width, mAlignment, 1.0f, 0.0f, true);
+			mLineTop[i] = top;
+			top += mLayouts[i].getHeight();
+		}
+		mLineTop[mLineCount] = top;
+		for (int i = mLineCount; i < mLayouts.length; i++) {
+			mLayouts[i] = null;
+		}
+		mLayoutWidth = width;
+	}
+
+	private boolean hasWords(int line) {
+
+		return mWords != null && mLineWords != null && line + 1 < mLineWords.length
+				&& mLineWords[line + 1] > mLineWords[line];
+	}
 
-		mContentContainer.setVisibility(View.VISIBLE);
-		mContentEmptyView.setVisibility(View.GONE);
-
-		int content_id = 0;
-
-		for (String line : content) {
-			TextView mTextView = new TextView(mContext);
-			mTextView.setText(LyricsSplitter.split(line, mTextView.getTextSize()));
-			mTextView.setTextColor(Color.argb(0xD0, Color.red(mTextColor), Color.green(mTextColor),
-					Color.blue(mTextColor)));
-			float density = getResources().getDisplayMetrics().density;
-			mTextView.setShadowLayer(4 * density, 0, 0, Color.BLACK);
-			mTextView.setGravity(Gravity.CENTER);
-			mTextView.setTextSize(mTextSize);
-			mTextView.setOnLongClickListener(this);
-			if (content_id < content.length) {
-				mTextView.setTag(content_id);
-				content_id++;
+	/**
+	 * Sets the playback position that word timing highlight is drawn for. It
+	 * is interpolated from realtime while playing.
+	 */
+	public void setPlaybackClock(long position, long realtime, boolean playing) {
+
+		mClockPosition = position;
+		mClockRealtime = realtime;
+		mClockPlaying = playing;
+		updateTimeline();
+		invalidate();
+	}
+
+	/**
+	 * Sets timestamps of the lyrics ids. The current line then follows the
+	 * playback clock without being set by {@link #setCurrentLine(int, boolean)}.
+	 */
+	public void setTimestamps(long[] timestamps) {
+
+		mTimestamps = timestamps;
+		updateTimeline();
+	}
+
+	/**
+	 * Sets the offset of the lyrics, which is subtracted from the playback
+	 * position before it is compared with timestamps.
+	 */
+	public void setLyricsOffset(long offset) {
+
+		mLyricsOffset = offset;
+		updateTimeline();
+		invalidate();
+	}
+
+	private long getClockPosition() {
+
+		if (mClockPlaying) {
+			return mClockPosition + SystemClock.elapsedRealtime() - mClockRealtime
+					- mLyricsOffset;
+		}
+		return mClockPosition - mLyricsOffset;
+	}
+
+	/**
+	 * Moves to the line at the clock position and schedules the next change.
+	 */
+	private void updateTimeline() {
+
+		removeCallbacks(mTimelineRunnable);
+		if (mTimestamps == null || mTimestamps.length == 0) return;
+
+		long position = getClockPosition();
+		int low = 0, high = mTimestamps.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mTimestamps[mid] <= position) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
 			}
-			mContentContainer.addView(mTextView, new LayoutParams(LayoutParams.WRAP_CONTENT,
-					LayoutParams.WRAP_CONTENT, Gravity.CENTER));
 		}
-		if (mSmoothScrolling) {
-			smoothScrollTo(0, 0);
-		} else {
-			scrollTo(0, 0);
+		int id = high;
+		if (id >= 0 && id != mLastLineId) {
+			setCurrentLine(id, false);
+		}
+		if (mClockPlaying && id + 1 < mTimestamps.length) {
+			postDelayed(mTimelineRunnable, Math.max(0, mTimestamps[id + 1] - position));
 		}
+	}
+
+	private final Runnable mTimelineRunnable = new Runnable() {
 
+		@Override
+		public void run() {
+
+			updateTimeline();
+		}
+	};
+
+	@Override
+	protected void onDetachedFromWindow() {
+
+		removeCallbacks(mTimelineRunnable);
+		super.onDetachedFromWindow();
+	}
+
+	public void setHighlightColor(int color) {
+
+		mHighlightColor = color;
+		invalidate();
 	}
 
 	public void setContentGravity(int gravity) {
 
-		if (mContentContainer != null) {
-			mContentContainer.setGravity(gravity);
+		switch (gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
+			case Gravity.LEFT:
+				mAlignment = Layout.Alignment.ALIGN_NORMAL;
+				break;
+			case Gravity.RIGHT:
+				mAlignment = Layout.Alignment.ALIGN_OPPOSITE;
+				break;
+			default:
+				mAlignment = Layout.Alignment.ALIGN_CENTER;
+				break;
 		}
+		buildLayouts();
+		invalidate();
 	}
 
 	public void setTextColor(int color) {
 
 		mTextColor = color;
-		setTextContent(mContent);
-		setCurrentLine(mLastLineId, true);
+		invalidate();
 	}
 
 	public void setTextSize(float size) {
 
 		mTextSize = size;
-		setTextContent(mContent);
+		mPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size,
+				getResources().getDisplayMetrics()));
+		buildLayouts();
 		setCurrentLine(mLastLineId, true);
+		invalidate();
 	}
 
 	public void setCurrentLine(int lineid, boolean force) {
 
-		if (findViewWithTag(mLastLineId) != null) {
-			((TextView) findViewWithTag(mLastLineId)).setTextColor(Color.argb(0xD0,
-					Color.red(mTextColor), Color.green(mTextColor), Color.blue(mTextColor)));
-			((TextView) findViewWithTag(mLastLineId)).getPaint().setFakeBoldText(false);
-		}
+		if (lineid < 0 || lineid >= mGroupCount) return;
 
-		if (findViewWithTag(lineid) != null) {
-			((TextView) findViewWithTag(lineid)).setTextColor(Color.argb(0xFF,
-					Color.red(mTextColor), Color.green(mTextColor), Color.blue(mTextColor)));
-			((TextView) findViewWithTag(lineid)).getPaint().setFakeBoldText(true);
-			if (mEnableAutoScrolling || force) {
-				if (mSmoothScrolling) {
-					smoothScrollTo(0, findViewWithTag(lineid).getTop()
-							+ findViewWithTag(lineid).getHeight() / 2 - getHeight() / 2);
+		if (lineid != mLastLineId) {
+			int first = mGroupFirst[lineid], size = mGroupFirst[lineid + 1] - first;
+			if (mHighlighters.length < size) {
+				KaraokeHighlighter[] highlighters = new KaraokeHighlighter[size];
+				for (int i = 0; i < size; i++) {
+					highlighters[i] = i < mHighlighters.length ? mHighlighters[i]
+							: new KaraokeHighlighter();
+				}
+				mHighlighters = highlighters;
+			}
+			for (int i = 0; i < size; i++) {
+				if (hasWords(first + i)) {
+					mHighlighters[i].setWords(mWords, mLineWords[first + i],
+							mLineWords[first + i + 1]);
 				} else {
-					scrollTo(0, findViewWithTag(lineid).getTop()
-							+ findViewWithTag(lineid).getHeight() / 2 - getHeight() / 2);
+					mHighlighters[i].setWords(null, 0, 0);
 				}
 			}
 			mLastLineId = lineid;
 		}
+		if (mEnableAutoScrolling || force) {
+			scrollToGroup(lineid, mSmoothScrolling);
+		}
+		invalidate();
+	}
 
+	private void scrollToGroup(int group, boolean smooth) {
+
+		if (mLayoutWidth < 0 || group < 0 || group >= mGroupCount) return;
+
+		int y = (mLineTop[mGroupFirst[group]] + mLineTop[mGroupFirst[group + 1]]) / 2;
+		if (smooth) {
+			mScroller.startScroll(0, getScrollY(), 0, y - getScrollY(), SCROLL_DURATION);
+		} else {
+			mScroller.forceFinished(true);
+			scrollTo(0, y);
+		}
+		invalidate();
+	}
+
+	public void setSmoothScrollingEnabled(boolean smooth) {
+
+		mSmoothScrolling = smooth;
 	}
 
 	@Override
-	public boolean onLongClick(View view) {
+	protected void onSizeChanged(int width, int height, int old_width, int old_height) {
 
-		if (mListener != null) {
-			Object tag = view.getTag();
-			int id = tag != null ? Integer.valueOf(tag.toString()) : 0;
-			mListener.onLineSelected(id);
+		super.onSizeChanged(width, height, old_width, old_height);
+		if (width - getPaddingLeft() - getPaddingRight() != mLayoutWidth) {
+			buildLayouts();
 		}
-		return true;
+		scrollToGroup(mLastLineId, false);
 	}
 
 	@Override
-	public void setSmoothScrollingEnabled(boolean smooth) {
+	protected void onDraw(Canvas canvas) {
 
-		mSmoothScrolling = smooth;
+		if (mLayoutWidth < 0 || mLineCount == 0) return;
+
+		// content starts half a view below the top so every line can be centered
+		int content_top = getHeight() / 2;
+		int bottom = getScrollY() + getHeight() - content_top;
+		int current_first = -1, current_end = -1;
+		if (mLastLineId >= 0 && mLastLineId < mGroupCount) {
+			current_first = mGroupFirst[mLastLineId];
+			current_end = mGroupFirst[mLastLineId + 1];
+		}
+		long position = getClockPosition();
+		int normal = Color.argb(0xD0, Color.red(mTextColor), Color.green(mTextColor),
+				Color.blue(mTextColor));
+		int highlighted = Color.argb(0xFF, Color.red(mTextColor), Color.green(mTextColor),
+				Color.blue(mTextColor));
+
+		boolean animating = false;
+		for (int i = getLineAt(getScrollY() - content_top); i < mLineCount
+				&& mLineTop[i] < bottom; i++) {
+			boolean current = i >= current_first && i < current_end;
+			mPaint.setColor(current ? highlighted : normal);
+			mPaint.setFakeBoldText(current);
+			canvas.save();
+			canvas.translate(getPaddingLeft(), content_top + mLineTop[i]);
+			mLayouts[i].draw(canvas);
+			if (current && mHighlighters[i - current_first].hasWords()) {
+				animating |= mHighlighters[i - current_first].draw(canvas, mLayouts[i], mPaint,
+						mHighlightColor, position);
+			}
+			canvas.restore();
+		}
+		mPaint.setFakeBoldText(false);
+		if (animating && mClockPlaying) {
+			invalidate();
+		}
+	}
+
+	/**
+	 * @return the line at given content offset, clamped to the first line.
+	 */
+	private int getLineAt(int y) {
+
+		int low = 0, high = mLineCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mLineTop[mid] <= y) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high > 0 ? high : 0;
+	}
+
+	private int getGroupOfLine(int line) {
+
+		int low = 0, high = mGroupCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mGroupFirst[mid] <= line) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high > 0 ? high : 0;
+	}
+
+	private int getMaxScrollY() {
+
+		return mLayoutWidth < 0 ? 0 : mLineTop[mLineCount];
+	}
+
+	@Override
+	public void computeScroll() {
+
+		if (mScroller.computeScrollOffset()) {
+			scrollTo(0, mScroller.getCurrY());
+			invalidate();
+		}
+	}
+
+	@Override
+	protected int computeVerticalScrollRange() {
+
+		return getMaxScrollY() + getHeight();
 	}
 
 	@Override
-	public void onSizeChanged(int width, int height, int old_width, int old_height) {
+	protected int computeVerticalScrollOffset() {
 
-		mContentEmptyView.setLayoutParams(new LinearLayout.LayoutParams(width, height));
-		mContentContainer.setLayoutParams(new LinearLayout.LayoutParams(
-				LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
-		mContentContainer.setPadding(0, height / 2, 0, height / 2);
+		return getScrollY();
 	}
 
+	@Override
+	protected int computeVerticalScrollExtent() {
+
+		return getHeight();
+	}
+
+	private GestureDetector.SimpleOnGestureListener mGestureListener = new GestureDetector.SimpleOnGestureListener() {
+
+		@Override
+		public boolean onDown(MotionEvent e) {
+
+			mScroller.forceFinished(true);
+			return true;
+		}
+
+		@Override
+		public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+
+			if (getParent() != null) {
+				getParent().requestDisallowInterceptTouchEvent(true);
+			}
+			int y = getScrollY() + (int) distanceY;
+			scrollTo(0, Math.max(0, Math.min(y, getMaxScrollY())));
+			return true;
+		}
+
+		@Override
+		public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+
+			mScroller.fling(0, getScrollY(), 0, (int) -velocityY, 0, 0, 0, getMaxScrollY());
+			invalidate();
+			return true;
+		}
+
+		@Override
+		public void onLongPress(MotionEvent e) {
+
+			if (mListener == null || mLayoutWidth < 0 || mLineCount == 0) return;
+			int y = (int) e.getY() + getScrollY() - getHeight() / 2;
+			if (y < 0 || y >= mLineTop[mLineCount]) return;
+			performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+			mListener.onLineSelected(getGroupOfLine(getLineAt(y)));
+		}
+	};
+
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 
 		switch (event.getAction()) {
 			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
 				mHandler.sendEmptyMessageDelayed(TIMEOUT, 2000L);
 				break;
 			case MotionEvent.ACTION_DOWN:
@@ -206,7 +554,8 @@ public class TextScrollView extends ScrollView implements OnLongClickListener {
 				mEnableAutoScrolling = false;
 				break;
 		}
-		return super.onTouchEvent(event);
+		mGestureDetector.onTouchEvent(event);
+		return true;
 
 	}
 
@@ -223,4 +572,4 @@ public class TextScrollView extends ScrollView implements OnLongClickListener {
 			}
 		}
 	};
-}
\ No newline at end of file
+}